@@ -0,0 +1,286 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Decides whether a query may run, so that a burst of queries is turned away
+ * early instead of all of them slowing down until they time out.
+ *
+ * Each query is charged its estimated cost (see {@link SlicePlanner#estimatedCost})
+ * until its response is written. While the queries running cost more than
+ * {@code admission.max.cost}, new queries wait in line for up to
+ * {@code admission.max.wait.ms}. A query which can't get in line because
+ * {@code admission.max.queued} queries are already waiting is rejected right away
+ * with a 429, one which waited too long with a 503. A query costing more than the
+ * whole budget is charged the budget, i.e. it runs on its own.
+ *
+ * Queries wait in line without holding a thread: they are let in as running
+ * queries finish, and turned away by a timer.
+ */
+public class AdmissionController {
+
+	// weight of the recent past in the average query time
+	private static final double ALPHA = 0.1;
+
+	private static final long MAX_RETRY_AFTER_SECONDS = 60;
+
+	// turns away queries which waited too long
+	private static final ScheduledThreadPoolExecutor TIMER = timer();
+
+	private static final AdmissionController CONTROLLER = new AdmissionController(
+			Config.get().getBoolean("admission.enable"),
+			Config.get().getInt("admission.max.cost", 200000),
+			Config.get().getInt("admission.max.wait.ms", 2000),
+			Config.get().getInt("admission.max.queued", 64));
+
+	private final boolean enabled;
+	private final long maxCost;
+	private final long maxWaitMs;
+	private final int maxQueued;
+
+	// queries waiting to get in, first come first served
+	private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+	private long outstanding = 0;
+	private int running = 0;
+
+	private long admitted = 0;
+	private long rejectedQueueFull = 0;
+	private long rejectedTimeout = 0;
+
+	private double avgQueryMs = 1000;
+
+	@VisibleForTesting
+	AdmissionController(boolean enabled, long maxCost, long maxWaitMs, int maxQueued) {
+		this.enabled = enabled;
+		this.maxCost = Math.max(1, maxCost);
+		this.maxWaitMs = maxWaitMs;
+		this.maxQueued = maxQueued;
+	}
+
+	public static AdmissionController get() {
+		return CONTROLLER;
+	}
+
+	/**
+	 * Get in line for room for a query of the given cost. Cancelling the returned
+	 * future gives up the place in line.
+	 *
+	 * @return the query's place, to be closed once it is done, or an
+	 *         {@link AdmissionException} if there is no room
+	 */
+	public ListenableFuture<Ticket> admit(long cost) {
+		long charged = enabled ? Math.max(0, Math.min(cost, maxCost)) : 0;
+		final Waiter waiter = new Waiter(charged);
+		synchronized (this) {
+			if (waiters.isEmpty() && outstanding + charged <= maxCost) {
+				return Futures.immediateFuture(newTicket(charged));
+			}
+
+			if (waiters.size() >= maxQueued) {
+				rejectedQueueFull++;
+				return Futures.immediateFailedFuture(new AdmissionException(
+						"Too many queries waiting, try again later", 429, retryAfterSeconds()));
+			}
+
+			waiters.addLast(waiter);
+			waiter.timeout = TIMER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timeOut(waiter);
+				}
+			}, maxWaitMs, TimeUnit.MILLISECONDS);
+		}
+
+		waiter.future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (waiter.future.isCancelled()) {
+					leave(waiter);
+				}
+			}
+		}, MoreExecutors.directExecutor());
+		return waiter.future;
+	}
+
+	private void timeOut(Waiter waiter) {
+		AdmissionException e;
+		synchronized (this) {
+			if (!waiters.remove(waiter)) {
+				return;
+			}
+			rejectedTimeout++;
+			e = new AdmissionException("Splicer is over capacity, try again later", 503, retryAfterSeconds());
+		}
+		waiter.future.setException(e);
+		// the next in line may fit now
+		admitWaiting();
+	}
+
+	private void leave(Waiter waiter) {
+		synchronized (this) {
+			if (!waiters.remove(waiter)) {
+				return;
+			}
+		}
+		admitWaiting();
+	}
+
+	/**
+	 * Let in the queries at the front of the line, as many as there is room for
+	 */
+	private void admitWaiting() {
+		List<Waiter> admitted = new ArrayList<>();
+		synchronized (this) {
+			Waiter next;
+			while ((next = waiters.peekFirst()) != null && outstanding + next.charged <= maxCost) {
+				waiters.removeFirst();
+				next.ticket = newTicket(next.charged);
+				admitted.add(next);
+			}
+		}
+		for (Waiter waiter: admitted) {
+			waiter.timeout.cancel(false);
+			if (!waiter.future.set(waiter.ticket)) {
+				// gave up just now
+				waiter.ticket.close();
+			}
+		}
+	}
+
+	private Ticket newTicket(long charged) {
+		outstanding += charged;
+		running++;
+		admitted++;
+		return new Ticket(charged);
+	}
+
+	private void release(Ticket ticket) {
+		synchronized (this) {
+			outstanding -= ticket.cost;
+			running--;
+			long ms = System.currentTimeMillis() - ticket.admittedMs;
+			avgQueryMs = ALPHA * ms + (1 - ALPHA) * avgQueryMs;
+		}
+		admitWaiting();
+	}
+
+	private static ScheduledThreadPoolExecutor timer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("admission-timer-thread-%d")
+				.build());
+		// most queries get in long before they would be turned away
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+
+	/**
+	 * @return when to try again, about the time a query takes to finish
+	 */
+	private long retryAfterSeconds() {
+		return Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, (long) Math.ceil(avgQueryMs / 1000)));
+	}
+
+	public synchronized long outstandingCost() {
+		return outstanding;
+	}
+
+	public synchronized void writeAsJson(JsonGenerator jgen) throws IOException {
+		jgen.writeStartObject();
+		jgen.writeBooleanField("enabled", enabled);
+		jgen.writeNumberField("maxCost", maxCost);
+		jgen.writeNumberField("outstandingCost", outstanding);
+		jgen.writeNumberField("running", running);
+		jgen.writeNumberField("queued", waiters.size());
+		jgen.writeNumberField("admitted", admitted);
+		jgen.writeNumberField("rejectedQueueFull", rejectedQueueFull);
+		jgen.writeNumberField("rejectedTimeout", rejectedTimeout);
+		jgen.writeNumberField("avgQueryMs", avgQueryMs);
+		jgen.writeEndObject();
+	}
+
+	public synchronized String config() {
+		return "enabled=" + enabled + ", maxCost=" + maxCost + ", maxWaitMs=" + maxWaitMs
+				+ ", maxQueued=" + maxQueued;
+	}
+
+	/**
+	 * A query waiting in line
+	 */
+	private static class Waiter {
+
+		final long charged;
+
+		final SettableFuture<Ticket> future = SettableFuture.create();
+
+		// guarded by the controller
+		ScheduledFuture<?> timeout;
+		Ticket ticket;
+
+		Waiter(long charged) {
+			this.charged = charged;
+		}
+	}
+
+	/**
+	 * The place of a running query. Closing it more than once has no effect.
+	 */
+	public class Ticket implements Closeable {
+
+		private final long cost;
+
+		private final long admittedMs = System.currentTimeMillis();
+
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private Ticket(long cost) {
+			this.cost = cost;
+		}
+
+		public long getCost() {
+			return cost;
+		}
+
+		@Override
+		public void close() {
+			if (released.compareAndSet(false, true)) {
+				release(this);
+			}
+		}
+	}
+}
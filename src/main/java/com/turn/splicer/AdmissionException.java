@@ -0,0 +1,46 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+/**
+ * A query was turned away because the splicer is over capacity. Clients are
+ * told to come back after {@link #getRetryAfterSeconds()}.
+ */
+public class AdmissionException extends RuntimeException {
+
+	private final int status;
+
+	private final long retryAfterSeconds;
+
+	public AdmissionException(String msg, int status, long retryAfterSeconds) {
+		super(msg);
+		this.status = status;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * @return HTTP status to answer with, 429 or 503
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer;
+
+import com.turn.splicer.hbase.RegionChecker;
+import com.turn.splicer.merge.TsdbResult;
+import com.turn.splicer.tsdbutils.TsQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a few consecutive slices of a query. Slices which are not cached and
+ * whose data is on the same region server are fetched from the TSD with one
+ * request covering all of them. The results are then split back into slices,
+ * so every slice can still be cached on its own.
+ */
+public class BatchHttpWorker implements Callable<List<TsdbResult[]>> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchHttpWorker.class);
+
+	private final TsQuery query;
+	private final RegionChecker checker;
+	private final QueryContext context;
+
+	private final List<HttpWorker> slices = new ArrayList<>();
+
+	/**
+	 * @param query the query the slices were cut from
+	 * @param slices consecutive slices of query, in time order
+	 */
+	public BatchHttpWorker(TsQuery query, List<TsQuery> slices, RegionChecker checker,
+	                       QueryContext context) {
+		this.query = query;
+		this.checker = checker;
+		this.context = context;
+		for (TsQuery slice: slices) {
+			this.slices.add(new HttpWorker(slice, checker, context));
+		}
+	}
+
+	/**
+	 * @return the results of every slice, in the order of the slices
+	 */
+	@Override
+	public List<TsdbResult[]> call() throws Exception
+	{
+		try {
+			return runSlices();
+		} catch (Exception e) {
+			throw HttpWorker.cancelledOr(context, e);
+		}
+	}
+
+	private List<TsdbResult[]> runSlices() throws Exception
+	{
+		context.checkAlive();
+
+		int n = slices.size();
+		TsdbResult[][] results = new TsdbResult[n][];
+		String[] hosts = new String[n];
+		for (int i = 0; i < n; i++) {
+			results[i] = slices.get(i).fromCacheOrPeer();
+			if (results[i] == null) {
+				hosts[i] = slices.get(i).regionHost();
+			}
+		}
+
+		int i = 0;
+		while (i < n) {
+			if (results[i] != null) {
+				i++;
+				continue;
+			}
+
+			// the run of uncached slices on the same host starting at i
+			int j = i + 1;
+			while (j < n && results[j] == null && hosts[j].equals(hosts[i])) {
+				j++;
+			}
+
+			if (j - i == 1) {
+				results[i] = slices.get(i).fetch(hosts[i]);
+			} else {
+				fetchRun(i, j, hosts[i], results);
+			}
+
+			for (int k = i; k < j; k++) {
+				slices.get(k).cache(results[k]);
+			}
+			i = j;
+		}
+
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Fetch slices [from, to) with one request, and split the results into results[from..to)
+	 */
+	private void fetchRun(int from, int to, String hostname, TsdbResult[][] results) throws Exception
+	{
+		TsQuery first = slices.get(from).getQuery();
+		TsQuery last = slices.get(to - 1).getQuery();
+		TsQuery covering = TsQuery.sliceOf(query, first.startTime(), last.endTime());
+		LOG.debug("Fetching {} slices from {} to {} on host={} in one request", to - from,
+				Const.tsFormat(covering.startTime()), Const.tsFormat(covering.endTime()), hostname);
+
+		TsdbResult[] all = new HttpWorker(covering, checker, context).fetch(hostname);
+		for (int k = from; k < to; k++) {
+			TsQuery slice = slices.get(k).getQuery();
+			results[k] = Splicer.trim(all, slice.startTime(), slice.endTime(), query.getMsResolution());
+		}
+	}
+}
@@ -103,11 +103,11 @@ public class Config {
 	 * this will return an iterable of the values.
 	 *
 	 * @param field property name
-	 * @return list of (value1, value2... valuek)
+	 * @return list of (value1, value2... valuek), empty if property doesn't exist
 	 */
 	public Iterable<String> getStrings(String field) {
 		String all = getString(field);
-		return COMMA_SPLITTER.split(all);
+		return COMMA_SPLITTER.split(all == null ? "" : all);
 	}
 
 	public void writeAsJson(JsonGenerator jgen) throws IOException
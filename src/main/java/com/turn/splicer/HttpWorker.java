@@ -1,143 +1,577 @@
 package com.turn.splicer;
 
 import com.turn.splicer.cache.JedisClient;
+import com.turn.splicer.hbase.RegionCheckException;
 import com.turn.splicer.hbase.RegionChecker;
+import com.turn.splicer.merge.MergeException;
+import com.turn.splicer.merge.TsdbResult;
+import com.turn.splicer.tsd.HedgePolicy;
+import com.turn.splicer.tsd.TsdClient;
+import com.turn.splicer.tsd.TsdEndpointException;
+import com.turn.splicer.tsd.TransferStats;
+import com.turn.splicer.tsd.TsdPermit;
+import com.turn.splicer.tsd.TsdResponseStream;
+import com.turn.splicer.tsd.TsdScheduler;
+import com.turn.splicer.tsd.TsdUnavailableException;
 import com.turn.splicer.tsdbutils.JSON;
 import com.turn.splicer.tsdbutils.TSSubQuery;
 import com.turn.splicer.tsdbutils.TsQuery;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Random;
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
-import org.apache.http.HttpResponse;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class HttpWorker implements Callable<String> {
+/**
+ * Runs one slice of a query on a TSD and parses the results. The response is
+ * parsed as it streams in from the TSD, so it never has to be held in memory
+ * as text.
+ */
+public class HttpWorker implements Callable<TsdbResult[]> {
 
 	private static final Logger LOG = LoggerFactory.getLogger(HttpWorker.class);
 
-	private static final Random RANDOM_GENERATOR = new Random();
+	private static final HedgePolicy HEDGE_POLICY = HedgePolicy.get();
+
+	// number of other TSDs a slice is retried on when its TSD fails
+	private static final int RETRIES = Config.get().getInt("tsd.retries", 2);
+
+	// data points may still be written this long after their time. slices ending
+	// later than that are not cached, as they may be incomplete.
+	private static final int FINALIZE_MS = Config.get().getInt("caching.finalize.ms", 120000);
+
+	// time to wait for another splicer which is fetching the same slice to cache it,
+	// before fetching it ourselves. 0 disables the lock.
+	private static final int LOCK_MS = Config.get().getInt("caching.lock.ms", 0);
+
+	// how far back to look for the point a rate of raw points starts from
+	private static final int RATE_LOOKBACK_MS = Config.get().getInt("slice.rate.lookback.ms", 60000);
+
+	// how often to look for the results of a slice another splicer is fetching
+	private static final long LOCK_POLL_MS = 100;
+
+	// runs hedges, while the first attempt of a slice runs on the slice's own thread.
+	// when all are busy the slice is not hedged, rather than piling up more requests.
+	private static final ThreadPoolExecutor HEDGE_POOL = hedgePool(Config.get().getInt("tsd.hedge.threads",
+			Math.max(1, Config.get().getInt("slice.threads", 50)
+					* Config.get().getInt("tsd.hedge.budget.percent", 5) / 100)));
 
-	public static final Map<String, LinkedBlockingQueue<String>> TSDMap = new HashMap<>();
+	// starts the hedges of slices which take too long
+	private static final ScheduledThreadPoolExecutor HEDGE_TIMER = hedgeTimer();
 
 	private final TsQuery query;
 	private final RegionChecker checker;
 
-	private final String[] hosts;
+	// slices of the same query share the context. its id lets the scheduler take
+	// turns between queries, and cancelling it aborts the slice.
+	private final QueryContext context;
 
-	public HttpWorker(TsQuery query, RegionChecker checker) {
+	public HttpWorker(TsQuery query, RegionChecker checker, QueryContext context) {
 		this.query = query;
 		this.checker = checker;
+		this.context = context;
 
-		Set<String> hosts = TSDMap.keySet();
-		if (hosts.size() == 0) {
-			throw new NullPointerException("No Query Hosts. TSDMap.size = 0");
+		if (TsdScheduler.get().hosts().size() == 0) {
+			throw new NullPointerException("No Query Hosts. TsdScheduler has no hosts");
 		}
+	}
 
-		this.hosts = new String[hosts.size()];
-		int i=0;
-		for (String h: hosts) {
-			this.hosts[i] = h;
-			i++;
+	@Override
+	public TsdbResult[] call() throws Exception
+	{
+		try {
+			return runSlice();
+		} catch (Exception e) {
+			throw cancelledOr(context, e);
 		}
 	}
 
-	@Override
-	public String call() throws Exception
+	/**
+	 * @return a {@link QueryCancelledException} if the query was cancelled (as the
+	 *         failure is then most likely the result of aborting its requests), or e
+	 */
+	static Exception cancelledOr(QueryContext context, Exception e) {
+		if (e instanceof QueryCancelledException || !context.isCancelled()) {
+			return e;
+		}
+		return new QueryCancelledException("Slice of query " + context.getId()
+				+ " cancelled: " + context.getCancelReason(), e);
+	}
+
+	private TsdbResult[] runSlice() throws Exception
 	{
+		context.checkAlive();
 		LOG.debug("Start time={}, End time={}", Const.tsFormat(query.startTime()),
 				Const.tsFormat(query.endTime()));
 
-		String metricName = query.getQueries().get(0).getMetric();
-		String cacheResult = JedisClient.get().get(this.query.toString());
-		if (cacheResult != null) {
-			LOG.debug("Cache hit for start=" + query.startTime()
-					+ ", end=" + query.endTime() + ", metric=" + metricName);
-			return cacheResult;
+		TsdbResult[] results = fromCacheOrPeer();
+		if (results != null) {
+			return results;
 		}
 
+		results = fetch(regionHost());
+		cache(results);
+		return results;
+	}
+
+	TsQuery getQuery() {
+		return query;
+	}
+
+	/**
+	 * @return the cached results of the query, or null if they are not cached
+	 */
+	TsdbResult[] fromCache() {
+		String cacheResult = JedisClient.get().get(this.query.cacheKey());
+		if (cacheResult == null) {
+			return null;
+		}
+		LOG.debug("Cache hit for start=" + query.startTime() + ", end=" + query.endTime()
+				+ ", metric=" + query.getQueries().get(0).getMetric());
+		return TsdbResult.fromArray(cacheResult);
+	}
+
+	/**
+	 * Look for the results of the query in the cache. With {@code caching.lock.ms}, a
+	 * short lock in redis tells other splicers that we are about to fetch the slice,
+	 * and if another splicer holds it we wait for that one to cache the results.
+	 *
+	 * @return the cached results of the query, or null if we should fetch them
+	 */
+	TsdbResult[] fromCacheOrPeer() throws InterruptedException {
+		TsdbResult[] results = fromCache();
+		if (results != null || LOCK_MS <= 0 || !isCacheable(query)) {
+			return results;
+		}
+
+		String lockKey = "lock:" + query.cacheKey();
+		long deadline = System.currentTimeMillis() + LOCK_MS;
+		while (!JedisClient.get().putIfAbsent(lockKey, context.getId(), LOCK_MS)) {
+			if (System.currentTimeMillis() >= deadline) {
+				LOG.info("Gave up waiting for another splicer to fetch {}", query.cacheKey());
+				return null;
+			}
+			Thread.sleep(LOCK_POLL_MS);
+			context.checkAlive();
+			results = fromCache();
+			if (results != null) {
+				return results;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the region server holding the data of the query
+	 * @throws RegionCheckException if there is none
+	 */
+	String regionHost() {
+		String metricName = query.getQueries().get(0).getMetric();
 		String hostname = checker.getBestRegionHost(metricName,
 				query.startTime() / 1000, query.endTime() / 1000);
 		LOG.debug("Found region server hostname={} for metric={}", hostname, metricName);
 
-		LinkedBlockingQueue<String> TSDs;
 		if (hostname == null) {
 			LOG.error("Could not find region server for metric={}", metricName);
-			return "{'error': 'Could not find region server for metric=" + metricName + "'}";
+			throw new RegionCheckException("Could not find region server for metric=" + metricName);
 		}
+		return hostname;
+	}
+
+	/**
+	 * Cache results of the query, if it is a slice whose results can be cached
+	 */
+	void cache(TsdbResult[] results) throws IOException {
+		context.checkAlive();
+		if (isCacheable(query)) {
+			String json = results.length == 0 ? "[]" : TsdbResult.toJson(results);
+			JedisClient.get().put(this.query.cacheKey(), json);
+		}
+	}
+
+	/**
+	 * Run the query on a TSD, preferably one on hostname. Retries on other TSDs
+	 * if the TSD fails.
+	 *
+	 * The TSD has no point before the start of a rate query to take the rate of
+	 * the first point against, so rate queries are run from a little earlier
+	 * (see {@link #rateLookbackMs(TsQuery)}), and the extra points cut off again.
+	 * That way the first point of every slice is there, and right.
+	 */
+	TsdbResult[] fetch(String hostname) throws Exception
+	{
+		long lookback = rateLookbackMs(query);
+		if (lookback > 0) {
+			TsQuery extended = TsQuery.sliceOf(query, query.startTime() - lookback, query.endTime());
+			TsdbResult[] results = new HttpWorker(extended, checker, context).fetchExactly(hostname);
+			return Splicer.trim(results, query.startTime(), query.endTime(), query.getMsResolution());
+		}
+		return fetchExactly(hostname);
+	}
 
-		TSDs = TSDMap.get(hostname);
-		if (TSDs == null) {
-			String host = select(); // randomly select a host (basic load balancing)
-			TSDs = TSDMap.get(host);
-			if (TSDs == null) {
-				LOG.error("We are not running TSDs on regionserver={}. Fallback failed. Returning error", hostname);
-				return "{'error': 'Fallback to hostname=" + hostname + " failed.'}";
-			} else {
-				LOG.info("Falling back to " + host + " for queries");
+	/**
+	 * @return how much earlier than its start to run query: a downsample interval
+	 *         for a downsampled rate, as the TSD downsamples before taking rates,
+	 *         {@code slice.rate.lookback.ms} for a rate of raw points, and 0 if
+	 *         the query has no rate
+	 */
+	static long rateLookbackMs(TsQuery query)
+	{
+		long lookback = 0;
+		for (TSSubQuery sub: query.getQueries()) {
+			if (!sub.getRate()) {
+				continue;
+			}
+			long interval = sub.downsampleInterval();
+			if (interval == Long.MAX_VALUE) {
+				// a single bucket, which is never sliced
+				continue;
+			}
+			lookback = Math.max(lookback, interval > 0 ? interval : RATE_LOOKBACK_MS);
+		}
+		return lookback;
+	}
+
+	private TsdbResult[] fetchExactly(String hostname) throws Exception
+	{
+		if (!TsdScheduler.get().hosts().contains(hostname)) {
+			LOG.info("We are not running TSDs on regionserver={}. Falling back to other hosts", hostname);
+		}
+
+		// waits for a TSD on hostname, failing over to other hosts if they are all busy
+		Set<String> failed = new HashSet<>();
+		TsdPermit permit = TsdScheduler.get().acquire(context.getId(), hostname, failed, acquireTimeoutMs());
+
+		TsdbResult[] results;
+		while (true) {
+			try {
+				if (HEDGE_POLICY.isEnabled()) {
+					results = callHedged(hostname, new Attempt(permit));
+				} else {
+					results = new Attempt(permit).call();
+				}
+				break;
+			} catch (TsdEndpointException e) {
+				failed.add(e.getAddress());
+				if (failed.size() > RETRIES) {
+					throw e;
+				}
+				LOG.warn("Slice failed on {}, retrying on another TSD: {}", e.getAddress(), e.getMessage());
+				try {
+					permit = TsdScheduler.get().acquire(context.getId(), hostname, failed, acquireTimeoutMs());
+				} catch (TsdUnavailableException noTsd) {
+					LOG.error("No TSD left to retry the slice on", noTsd);
+					throw e;
+				}
 			}
 		}
 
-		String server = TSDs.take();
-		String uri = "http://" + server + "/api/query/qexp/";
+		return results;
+	}
 
-		CloseableHttpClient postman = HttpClientBuilder.create().build();
+	/**
+	 * Don't wait for a TSD past the query's deadline
+	 */
+	private long acquireTimeoutMs() {
+		context.checkAlive();
+		return Math.min(TsdScheduler.get().getTimeoutMs(), context.remainingMs());
+	}
+
+	/**
+	 * Run the primary attempt on this thread, and if it takes longer than the hedge
+	 * delay, send the same slice to a second TSD on the {@link #HEDGE_POOL}. The first
+	 * successful response wins, and the other request is aborted.
+	 */
+	private TsdbResult[] callHedged(String hostname, Attempt primary) throws Exception
+	{
+		HEDGE_POLICY.onRequest();
+
+		long delay = HEDGE_POLICY.hedgeDelayMs();
+		if (delay < 0) {
+			return timed(primary);
+		}
+
+		Hedge hedge = new Hedge(hostname, primary, delay);
+		ScheduledFuture<?> timer = HEDGE_TIMER.schedule(hedge, delay, TimeUnit.MILLISECONDS);
 		try {
+			return timed(primary);
+		} catch (Exception e) {
+			// the primary is aborted when the hedge wins, but it may also have failed first
+			TsdbResult[] results = hedge.awaitResults();
+			if (results == null) {
+				throw e;
+			}
+			return results;
+		} finally {
+			timer.cancel(false);
+			hedge.abort();
+		}
+	}
 
-			HttpPost postRequest = new HttpPost(uri);
+	/**
+	 * Run the primary attempt of a slice, and record how long it took for the hedge
+	 * delay. Failed and aborted attempts count too, or the delay would only reflect
+	 * the fast ones.
+	 */
+	private static TsdbResult[] timed(Attempt primary) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		try {
+			return primary.call();
+		} finally {
+			HEDGE_POLICY.recordLatency(System.currentTimeMillis() - start);
+		}
+	}
+
+	private static ThreadPoolExecutor hedgePool(int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new ThreadFactoryBuilder()
+						.setDaemon(true)
+						.setNameFormat("hedge-pool-thread-%d")
+						.build());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private static ScheduledThreadPoolExecutor hedgeTimer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("hedge-timer-thread-%d")
+				.build());
+		// most slices are done before their hedge is due
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
 
-			StringEntity input = new StringEntity(JSON.serializeToString(query));
-			input.setContentType("application/json");
-			postRequest.setEntity(input);
-			LOG.debug("Sending request to: {} for query {} ", uri, query);
+	/**
+	 * Sends a slice to a second TSD once its primary attempt has taken longer than
+	 * the hedge delay, if the budget allows it and a TSD and a hedge thread are free.
+	 * Only hedges which are sent are paid for. A successful hedge aborts the primary.
+	 */
+	private class Hedge implements Runnable {
 
-			HttpResponse response = postman.execute(postRequest);
+		private final String hostname;
+		private final Attempt primary;
+		private final long delayMs;
 
-			if (response.getStatusLine().getStatusCode() != 200) {
-				throw new RuntimeException("Failed : HTTP error code : "
-						+ response.getStatusLine().getStatusCode());
+		// guarded by this
+		private boolean closed = false;
+		private Attempt attempt;
+		private Future<TsdbResult[]> future;
+
+		Hedge(String hostname, Attempt primary, long delayMs) {
+			this.hostname = hostname;
+			this.primary = primary;
+			this.delayMs = delayMs;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+			}
+			if (!HEDGE_POLICY.tryHedge()) {
+				return;
+			}
+			TsdPermit permit = TsdScheduler.get().tryAcquire(hostname, primary.permit.getAddress());
+			if (permit == null) {
+				HEDGE_POLICY.refund();
+				return;
 			}
 
-			List<String> dl = IOUtils.readLines(response.getEntity().getContent());
-			String result = StringUtils.join(dl, "");
-			LOG.debug("Result={}", result);
-			if (isCacheable(query)) {
-				JedisClient.get().put(this.query.toString(), result);
+			final Attempt hedge = new Attempt(permit);
+			synchronized (this) {
+				if (closed) {
+					permit.close();
+					HEDGE_POLICY.refund();
+					return;
+				}
+				try {
+					future = HEDGE_POOL.submit(new Callable<TsdbResult[]>() {
+						@Override
+						public TsdbResult[] call() throws Exception {
+							TsdbResult[] results = hedge.call();
+							primary.abort();
+							return results;
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					LOG.debug("No thread free to hedge slice on {}", primary.permit.getAddress());
+					permit.close();
+					HEDGE_POLICY.refund();
+					return;
+				}
+				attempt = hedge;
 			}
-			return result;
-		} finally {
-			IOUtils.closeQuietly(postman);
+			LOG.info("Slice on {} is taking more than {}ms, hedging on {}",
+					primary.permit.getAddress(), delayMs, permit.getAddress());
+		}
 
-			TSDs.put(server);
-			LOG.debug("Returned {} into the available queue", server);
+		/**
+		 * Don't hedge from now on, and wait for the hedge if there is one
+		 *
+		 * @return the results of the hedge, or null if there is none or it failed
+		 */
+		TsdbResult[] awaitResults() throws InterruptedException {
+			Future<TsdbResult[]> hedged;
+			synchronized (this) {
+				closed = true;
+				hedged = future;
+			}
+			if (hedged == null) {
+				return null;
+			}
+			try {
+				return hedged.get();
+			} catch (ExecutionException e) {
+				LOG.error("Slice attempt failed", e.getCause());
+				return null;
+			}
+		}
+
+		/**
+		 * Don't hedge from now on, and abort the hedge if it is still running
+		 */
+		void abort() {
+			Attempt hedge;
+			synchronized (this) {
+				closed = true;
+				hedge = attempt;
+			}
+			if (hedge != null) {
+				hedge.abort();
+			}
 		}
 	}
 
-	private boolean isCacheable(TsQuery query) {
-		long interval = query.endTime() - query.startTime();
+	/**
+	 * One request for the slice to a single TSD. Releases the permit when done.
+	 * Failures of the TSD itself are reported to the scheduler, and thrown as
+	 * {@link TsdEndpointException} so the slice can be retried elsewhere.
+	 * The request is aborted if the query is cancelled.
+	 */
+	private class Attempt implements Callable<TsdbResult[]> {
+
+		private final TsdPermit permit;
+
+		private final HttpPost postRequest;
+
+		private final Runnable abortOnCancel = new Runnable() {
+			@Override
+			public void run() {
+				abort();
+			}
+		};
 
-		if (Config.get().getBoolean("slice.overflow.enable")) {
-			return interval == (Splicer.SLICE_SIZE + Splicer.OVERFLOW) * 1000;
-		} else {
-			return interval == (Splicer.SLICE_SIZE) * 1000;
+		Attempt(TsdPermit permit) {
+			this.permit = permit;
+			this.postRequest = new HttpPost("http://" + permit.getAddress() + "/api/query/qexp/");
+		}
+
+		@Override
+		public TsdbResult[] call() throws Exception
+		{
+			String server = permit.getAddress();
+			long start = System.currentTimeMillis();
+			context.addCancelListener(abortOnCancel);
+			try {
+				StringEntity input = new StringEntity(JSON.serializeToString(query));
+				input.setContentType("application/json");
+				postRequest.setEntity(input);
+				TsdClient.get().acceptCompressed(postRequest);
+				LOG.debug("Sending request to: {} for query {} ", postRequest.getURI(), query);
+
+				// closing the response hands the connection back to the shared pool
+				try (CloseableHttpResponse response = TsdClient.get().http().execute(postRequest)) {
+					int status = response.getStatusLine().getStatusCode();
+					if (status != 200) {
+						EntityUtils.consumeQuietly(response.getEntity());
+						if (status >= 500) {
+							throw endpointFailure("Failed : HTTP error code : " + status, null);
+						}
+						throw new RuntimeException("Failed : HTTP error code : " + status);
+					}
+
+					TsdbResult[] results;
+					long bytes;
+					try (TsdResponseStream content = TsdResponseStream.open(response.getEntity())) {
+						results = TsdbResult.fromStream(content);
+						bytes = content.getDecodedBytes();
+						TransferStats.get().record(content);
+						LOG.debug("Read {} bytes of {} json ({} bytes) from {}", content.getWireBytes(),
+								content.getEncoding(), content.getDecodedBytes(), server);
+					} catch (MergeException e) {
+						// the connection broke while reading, as opposed to a bad response
+						if (e.getCause() instanceof IOException
+								&& !(e.getCause() instanceof JsonProcessingException)) {
+							throw endpointFailure("Failed reading response", (IOException) e.getCause());
+						}
+						throw e;
+					}
+					LOG.debug("Got {} results from {}", results.length, server);
+
+					long latency = System.currentTimeMillis() - start;
+					permit.recordLatency(latency);
+					permit.recordSuccess();
+					SlicePlanner.get().record(query, results, bytes, latency);
+					return results;
+				}
+			} catch (IOException e) {
+				throw endpointFailure("Request failed", e);
+			} finally {
+				context.removeCancelListener(abortOnCancel);
+				permit.close();
+				LOG.debug("Returned permit for {} to the scheduler", server);
+			}
+		}
+
+		private Exception endpointFailure(String msg, IOException cause) {
+			// an aborted hedge is not the TSD's fault
+			if (postRequest.isAborted()) {
+				return cause != null ? cause : new IOException("Aborted");
+			}
+			permit.recordFailure();
+			return new TsdEndpointException(permit.getAddress(), msg + " from " + permit.getAddress(), cause);
+		}
+
+		/**
+		 * Abort the request if it is still running. The permit is given back by
+		 * {@link #call()} once the connection is released, not here, so the TSD isn't
+		 * handed another request while this one is still open.
+		 */
+		void abort() {
+			postRequest.abort();
 		}
 	}
 
-	private String select() {
-		int index = RANDOM_GENERATOR.nextInt(hosts.length);
-		return hosts[index];
+	/**
+	 * Complete slices are cached once they have ended long enough ago that no
+	 * more data is expected to arrive for them
+	 */
+	private boolean isCacheable(TsQuery query) {
+		return Splicer.isFullSlice(query)
+				&& query.endTime() < System.currentTimeMillis() - FINALIZE_MS;
 	}
 
 	private String stringify(TsQuery query)
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * What an hour of a metric costs to fetch from the TSDs: the bytes of JSON, and
+ * the time it takes, as moving averages of the slices seen so far. Also keeps
+ * the number of series the metric's slices return.
+ */
+public class MetricStats {
+
+	// weight of a new sample in the moving averages
+	private static final double ALPHA = 0.3;
+
+	private double bytesPerHour;
+
+	private double msPerHour;
+
+	private double series;
+
+	private long samples;
+
+	MetricStats() {}
+
+	MetricStats(double bytesPerHour, double msPerHour, double series, long samples) {
+		this.bytesPerHour = bytesPerHour;
+		this.msPerHour = msPerHour;
+		this.series = series;
+		this.samples = samples;
+	}
+
+	/**
+	 * Record a slice of the metric
+	 *
+	 * @param hours length of the slice
+	 */
+	synchronized void record(double bytes, double latencyMs, int seriesCount, double hours) {
+		if (samples == 0) {
+			bytesPerHour = bytes / hours;
+			msPerHour = latencyMs / hours;
+			series = seriesCount;
+		} else {
+			bytesPerHour = ALPHA * bytes / hours + (1 - ALPHA) * bytesPerHour;
+			msPerHour = ALPHA * latencyMs / hours + (1 - ALPHA) * msPerHour;
+			series = ALPHA * seriesCount + (1 - ALPHA) * series;
+		}
+		samples++;
+	}
+
+	public synchronized double getBytesPerHour() {
+		return bytesPerHour;
+	}
+
+	public synchronized double getMsPerHour() {
+		return msPerHour;
+	}
+
+	public synchronized double getSeries() {
+		return series;
+	}
+
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the stats as a string which {@link #decode(String)} reads back
+	 */
+	synchronized String encode() {
+		return bytesPerHour + "," + msPerHour + "," + series + "," + samples;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if s was not written by {@link #encode()}
+	 */
+	static MetricStats decode(String s) {
+		String[] parts = s.split(",");
+		if (parts.length != 4) {
+			throw new IllegalArgumentException("Bad metric stats: " + s);
+		}
+		try {
+			return new MetricStats(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+					Double.parseDouble(parts[2]), Long.parseLong(parts[3]));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad metric stats: " + s, e);
+		}
+	}
+
+	public synchronized void writeAsJson(JsonGenerator jgen) throws IOException {
+		jgen.writeStartObject();
+		jgen.writeNumberField("bytesPerHour", (long) bytesPerHour);
+		jgen.writeNumberField("msPerHour", msPerHour);
+		jgen.writeNumberField("series", series);
+		jgen.writeNumberField("samples", samples);
+		jgen.writeEndObject();
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.net.InetAddresses;
+
+/**
+ * Decides the {@link QueryPriority} of a request. A class asked for with the
+ * {@code X-Splicer-Priority} header or the {@code priority} parameter wins. Otherwise
+ * the first of the {@code priority.rules} matching the client's address applies,
+ * e.g. {@code 10.1.0.0/16=batch, 10.2.3.4=interactive}. Requests matching no rule
+ * get {@code priority.default}.
+ */
+public class PriorityClassifier {
+
+	private static final PriorityClassifier CLASSIFIER = new PriorityClassifier(
+			Config.get().getString("priority.rules"),
+			QueryPriority.parse(Config.get().getString("priority.default")));
+
+	private final List<Rule> rules = new ArrayList<>();
+
+	private final QueryPriority defaultPriority;
+
+	@VisibleForTesting
+	PriorityClassifier(@Nullable String rules, @Nullable QueryPriority defaultPriority) {
+		this.defaultPriority = defaultPriority == null ? QueryPriority.DASHBOARD : defaultPriority;
+		if (rules == null) {
+			return;
+		}
+
+		for (String rule: rules.split(",")) {
+			rule = rule.trim();
+			if (rule.isEmpty()) continue;
+			int ix = rule.indexOf('=');
+			QueryPriority priority = ix > 0 ? QueryPriority.parse(rule.substring(ix + 1)) : null;
+			if (priority == null) {
+				throw new IllegalArgumentException("Bad priority.rules entry: " + rule);
+			}
+			this.rules.add(new Rule(rule.substring(0, ix).trim(), priority));
+		}
+	}
+
+	public static PriorityClassifier get() {
+		return CLASSIFIER;
+	}
+
+	/**
+	 * @param requested class asked for by the client, if any
+	 * @param clientAddress IP address of the client
+	 */
+	public QueryPriority classify(@Nullable String requested, @Nullable String clientAddress) {
+		QueryPriority priority = QueryPriority.parse(requested);
+		if (priority != null) {
+			return priority;
+		}
+
+		if (clientAddress != null && InetAddresses.isInetAddress(clientAddress)) {
+			byte[] address = InetAddresses.forString(clientAddress).getAddress();
+			for (Rule rule: rules) {
+				if (rule.matches(address)) {
+					return rule.priority;
+				}
+			}
+		}
+		return defaultPriority;
+	}
+
+	public String config() {
+		return "rules=" + rules.size() + ", default=" + defaultPriority;
+	}
+
+	/**
+	 * Addresses in a subnet, given as address/prefix length or as a single address
+	 */
+	private static class Rule {
+
+		final byte[] network;
+		final int prefixBits;
+		final QueryPriority priority;
+
+		Rule(String subnet, QueryPriority priority) {
+			int ix = subnet.indexOf('/');
+			String address = ix < 0 ? subnet : subnet.substring(0, ix);
+			if (!InetAddresses.isInetAddress(address)) {
+				throw new IllegalArgumentException("Bad address in priority.rules: " + subnet);
+			}
+			this.network = InetAddresses.forString(address).getAddress();
+			this.prefixBits = ix < 0 ? network.length * 8 : Integer.parseInt(subnet.substring(ix + 1).trim());
+			this.priority = priority;
+		}
+
+		boolean matches(byte[] address) {
+			if (address.length != network.length) {
+				return false;
+			}
+			for (int bit = 0; bit < prefixBits; bit += 8) {
+				int mask = prefixBits - bit >= 8 ? 0xff : (0xff << (8 - (prefixBits - bit))) & 0xff;
+				if ((address[bit / 8] & mask) != (network[bit / 8] & mask)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer;
+
+/**
+ * A query was stopped before it finished, because its deadline passed or
+ * the client went away.
+ */
+public class QueryCancelledException extends RuntimeException {
+
+	public QueryCancelledException(String msg) {
+		super(msg);
+	}
+
+	public QueryCancelledException(String msg, Exception e) {
+		super(msg, e);
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * State shared by all the work done for one client request: its id, its
+ * deadline and whether it has been cancelled.
+ *
+ * Work in progress (slice futures, HTTP requests to the TSDs) registers a cancel
+ * listener, which is run when the deadline passes, when the client disconnects
+ * (see {@link #watch(Supplier)}) or when {@link #cancel(String)} is called. Close
+ * the context once the request is done.
+ */
+public class QueryContext implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(QueryContext.class);
+
+	private static final AtomicInteger QUERY_NUMBER = new AtomicInteger(0);
+
+	// how often to check whether the client is still connected
+	private static final long WATCH_INTERVAL_MS = 1000;
+
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder()
+					.setDaemon(true)
+					.setNameFormat("query-timer-%d")
+					.build());
+
+	private final String id;
+
+	private final long deadlineMs;
+
+	private final List<Runnable> cancelListeners = new ArrayList<>();
+
+	private final List<ScheduledFuture<?>> timers = new ArrayList<>();
+
+	private volatile String cancelReason;
+
+	private volatile QueryPriority priority = QueryPriority.DASHBOARD;
+
+	private volatile double weight = 1;
+
+	/**
+	 * @param timeoutMs time the query may take from now
+	 */
+	public QueryContext(long timeoutMs) {
+		this.id = String.format("splice-query-%d", QUERY_NUMBER.incrementAndGet());
+		this.deadlineMs = System.currentTimeMillis() + timeoutMs;
+
+		timers.add(TIMER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				cancel("deadline of " + deadlineMs + " exceeded");
+			}
+		}, timeoutMs, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * @return identifies the query, e.g. to take turns between queries
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return share of the {@link SliceExecutor} threads the query gets relative to
+	 *         other queries with slices waiting, 1 by default
+	 */
+	public double getWeight() {
+		return weight;
+	}
+
+	public QueryPriority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Set the class of the query, and its weight to that of the class
+	 */
+	public void setPriority(QueryPriority priority) {
+		this.priority = priority;
+		setWeight(priority.getWeight());
+	}
+
+	public void setWeight(double weight) {
+		Preconditions.checkArgument(weight > 0, "weight must be positive: %s", weight);
+		this.weight = weight;
+	}
+
+	public long getDeadlineMs() {
+		return deadlineMs;
+	}
+
+	/**
+	 * @return ms left until the deadline, 0 if it has passed
+	 */
+	public long remainingMs() {
+		return Math.max(0, deadlineMs - System.currentTimeMillis());
+	}
+
+	public boolean isCancelled() {
+		return cancelReason != null;
+	}
+
+	/**
+	 * @return why the query was cancelled, or null if it wasn't
+	 */
+	public String getCancelReason() {
+		return cancelReason;
+	}
+
+	/**
+	 * @throws QueryCancelledException if the query was cancelled or its deadline passed
+	 */
+	public void checkAlive() {
+		if (cancelReason == null && System.currentTimeMillis() >= deadlineMs) {
+			cancel("deadline of " + deadlineMs + " exceeded");
+		}
+		if (cancelReason != null) {
+			throw new QueryCancelledException("Query " + id + " cancelled: " + cancelReason);
+		}
+	}
+
+	/**
+	 * Wait for work done for the query
+	 *
+	 * @throws QueryCancelledException if the query or the work was cancelled
+	 */
+	public <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (CancellationException e) {
+			throw new QueryCancelledException("Query " + id + " cancelled: " + cancelReason, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof QueryCancelledException) {
+				throw (QueryCancelledException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueryCancelledException("Interrupted while waiting for query " + id, e);
+		}
+	}
+
+	/**
+	 * Cancel the query and run the cancel listeners. Only the first call has any effect.
+	 */
+	public void cancel(String reason) {
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (cancelReason != null) {
+				return;
+			}
+			cancelReason = reason;
+			listeners = new ArrayList<>(cancelListeners);
+			cancelListeners.clear();
+		}
+
+		LOG.info("Cancelling query {}: {}", id, reason);
+		for (Runnable listener: listeners) {
+			runQuietly(listener);
+		}
+	}
+
+	/**
+	 * Run listener when the query is cancelled, or right away if it already is
+	 */
+	public void addCancelListener(Runnable listener) {
+		synchronized (this) {
+			if (cancelReason == null) {
+				cancelListeners.add(listener);
+				return;
+			}
+		}
+		runQuietly(listener);
+	}
+
+	public synchronized void removeCancelListener(Runnable listener) {
+		cancelListeners.remove(listener);
+	}
+
+	/**
+	 * Periodically check whether the client is still there, and cancel the query
+	 * once it's not
+	 *
+	 * @param clientConnected returns false once the client has disconnected
+	 */
+	public synchronized void watch(final Supplier<Boolean> clientConnected) {
+		timers.add(TIMER.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (!clientConnected.get()) {
+					cancel("client disconnected");
+				}
+			}
+		}, WATCH_INTERVAL_MS, WATCH_INTERVAL_MS, TimeUnit.MILLISECONDS));
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			for (ScheduledFuture<?> timer: timers) {
+				timer.cancel(false);
+			}
+			timers.clear();
+			cancelListeners.clear();
+		}
+	}
+
+	private void runQuietly(Runnable listener) {
+		try {
+			listener.run();
+		} catch (RuntimeException e) {
+			LOG.warn("Cancel listener failed for query " + id, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return id + "[remainingMs=" + remainingMs() + (isCancelled() ? ", cancelled=" + cancelReason : "") + "]";
+	}
+}
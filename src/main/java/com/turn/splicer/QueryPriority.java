@@ -0,0 +1,61 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+/**
+ * Priority classes of queries, from most to least urgent. With weighted priority
+ * (the default) a query of a class gets {@code priority.weight.<class>} times the
+ * share of slice threads of a query of weight 1. With {@code priority.strict}
+ * slices of a class are only dispatched when no slice of a more urgent class is
+ * waiting.
+ */
+public enum QueryPriority {
+
+	// someone is looking at the result right now, e.g. while debugging an incident
+	INTERACTIVE(Config.get().getInt("priority.weight.interactive", 10)),
+
+	// auto refreshing dashboard panels
+	DASHBOARD(Config.get().getInt("priority.weight.dashboard", 3)),
+
+	// exports and other scripts
+	BATCH(Config.get().getInt("priority.weight.batch", 1));
+
+	private final double weight;
+
+	QueryPriority(int weight) {
+		this.weight = Math.max(1, weight);
+	}
+
+	public double getWeight() {
+		return weight;
+	}
+
+	/**
+	 * @return the class with the given (case insensitive) name, or null if there is none
+	 */
+	public static QueryPriority parse(String name) {
+		if (name == null) {
+			return null;
+		}
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
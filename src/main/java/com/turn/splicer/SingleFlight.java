@@ -0,0 +1,158 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import com.turn.splicer.merge.TsdbResult;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Slices being fetched right now, by {@link com.turn.splicer.tsdbutils.TsQuery#cacheKey()}.
+ * When many clients open the same dashboard at once, only the first of them
+ * fetches each slice from the TSDs; the others wait for its results.
+ *
+ * A slice is fetched at the priority of the first query asking for it. When a more
+ * urgent query joins while the slice still waits for a thread, the slice is
+ * promoted to the priority of that query, so it doesn't wait behind less urgent ones.
+ */
+public class SingleFlight {
+
+	private static final SingleFlight FLIGHTS = new SingleFlight(SliceExecutor.get());
+
+	private final SliceExecutor executor;
+
+	private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong led = new AtomicLong();
+
+	private final AtomicLong joined = new AtomicLong();
+
+	private final AtomicLong promoted = new AtomicLong();
+
+	@VisibleForTesting
+	SingleFlight(SliceExecutor executor) {
+		this.executor = executor;
+	}
+
+	public static SingleFlight get() {
+		return FLIGHTS;
+	}
+
+	/**
+	 * Become the one fetching the slice with the given key, unless someone already is.
+	 * The leader completes the returned future with the slice's results; it is
+	 * forgotten once complete.
+	 *
+	 * @param priority of the query asking for the slice
+	 * @return the future of the fetch already in flight, or null if the caller
+	 *         leads and must complete leader
+	 */
+	public ListenableFuture<TsdbResult[]> lead(final String key, final SettableFuture<TsdbResult[]> leader,
+	                                           QueryPriority priority) {
+		final Flight flight = new Flight(leader, priority);
+		Flight existing = inFlight.putIfAbsent(key, flight);
+		if (existing != null) {
+			joined.incrementAndGet();
+			hurry(existing, priority);
+			return existing.leader;
+		}
+
+		led.incrementAndGet();
+		leader.addListener(new Runnable() {
+			@Override
+			public void run() {
+				inFlight.remove(key, flight);
+			}
+		}, MoreExecutors.directExecutor());
+		return null;
+	}
+
+	/**
+	 * Tell which task of the {@link SliceExecutor} fetches the slice led with leader,
+	 * so that it can be promoted for more urgent queries joining later.
+	 */
+	public void fetching(String key, SettableFuture<TsdbResult[]> leader, ListenableFuture<?> task) {
+		Flight flight = inFlight.get(key);
+		if (flight == null || flight.leader != leader) {
+			return;
+		}
+		QueryPriority priority;
+		synchronized (flight) {
+			flight.task = task;
+			priority = flight.priority;
+		}
+		// someone more urgent may have joined before the task was submitted
+		if (executor.promote(task, priority)) {
+			promoted.incrementAndGet();
+		}
+	}
+
+	private void hurry(Flight flight, QueryPriority priority) {
+		ListenableFuture<?> task;
+		synchronized (flight) {
+			if (priority.compareTo(flight.priority) >= 0) {
+				return;
+			}
+			flight.priority = priority;
+			task = flight.task;
+		}
+		if (task != null && executor.promote(task, priority)) {
+			promoted.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return number of slices being fetched
+	 */
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	public void writeAsJson(JsonGenerator jgen) throws IOException {
+		jgen.writeStartObject();
+		jgen.writeNumberField("inFlight", inFlight.size());
+		jgen.writeNumberField("fetched", led.get());
+		jgen.writeNumberField("coalesced", joined.get());
+		jgen.writeNumberField("promoted", promoted.get());
+		jgen.writeEndObject();
+	}
+
+	private static class Flight {
+		final SettableFuture<TsdbResult[]> leader;
+
+		// the most urgent priority of the queries waiting for the slice. guarded by the flight
+		QueryPriority priority;
+
+		// the task fetching the slice, null until it is submitted. guarded by the flight
+		ListenableFuture<?> task;
+
+		Flight(SettableFuture<TsdbResult[]> leader, QueryPriority priority) {
+			this.leader = leader;
+			this.priority = priority;
+		}
+	}
+}
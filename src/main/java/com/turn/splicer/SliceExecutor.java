@@ -0,0 +1,375 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ExecutionList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the slices of all queries on one pool of {@code slice.threads} threads,
+ * which caps how many slices are fetched at once across the whole splicer.
+ *
+ * Slices waiting for a thread are dispatched with start-time fair queuing: each
+ * query gets a share of the threads in proportion to its {@link QueryContext#getWeight()},
+ * however many slices it has queued. A query over a week of data cannot hold up a
+ * query over the last hour submitted after it; the two take turns instead.
+ * With {@code priority.strict}, slices of a {@link QueryPriority} are only dispatched
+ * while none of a more urgent class wait. {@code priority.interactive.reserved.threads}
+ * of the threads only run slices of interactive queries, so those get started
+ * right away however busy the splicer is with the others.
+ *
+ * Work which only combines results (merging slices, the functions of expressions)
+ * runs on the {@link #computeExecutor()} as their inputs complete, so no thread ever
+ * waits on the result of another.
+ */
+public class SliceExecutor {
+
+	// weight of the recent past in the average wait time
+	private static final double ALPHA = 0.1;
+
+	private static final SliceExecutor EXECUTOR = new SliceExecutor(
+			Math.max(1, Config.get().getInt("slice.threads", 50)),
+			Math.max(1, Config.get().getInt("compute.threads", Runtime.getRuntime().availableProcessors())),
+			Config.get().getBoolean("priority.strict"),
+			Config.get().getInt("priority.interactive.reserved.threads", 5));
+
+	private final int threads;
+
+	private final ExecutorService pool;
+
+	private final int computeThreads;
+
+	private final Executor compute;
+
+	private final boolean strict;
+
+	// threads only interactive queries may use
+	private final int reserved;
+
+	// slices waiting for a thread, by priority
+	private final List<PriorityQueue<Task<?>>> queues = new ArrayList<>();
+
+	// queries with slices waiting, by query id
+	private final Map<String, Flow> flows = new HashMap<>();
+
+	// start tag of the slice dispatched last
+	private double virtualTime = 0;
+
+	private long sequence = 0;
+
+	private int running = 0;
+
+	// running slices of queries that aren't interactive
+	private int runningShared = 0;
+
+	private long dispatched = 0;
+	private double avgWaitMs = 0;
+	private long maxWaitMs = 0;
+
+	@VisibleForTesting
+	SliceExecutor(int threads) {
+		this(threads, 1, false, 0);
+	}
+
+	@VisibleForTesting
+	SliceExecutor(int threads, int computeThreads, boolean strict, int reserved) {
+		this.threads = threads;
+		this.computeThreads = computeThreads;
+		this.strict = strict;
+		this.reserved = Math.max(0, Math.min(threads - 1, reserved));
+		for (int i = 0; i < QueryPriority.values().length; i++) {
+			queues.add(new PriorityQueue<Task<?>>());
+		}
+		this.compute = Executors.newFixedThreadPool(computeThreads, new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("compute-thread-%d")
+				.build());
+		// never given more slices than it has threads, see dispatch()
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("slice-executor-thread-%d")
+				.build());
+	}
+
+	public static SliceExecutor get() {
+		return EXECUTOR;
+	}
+
+	/**
+	 * Queue a slice of a query. Cancelling the returned future before the slice
+	 * has started takes it off the queue.
+	 */
+	public <T> ListenableFuture<T> submit(QueryContext context, Callable<T> slice) {
+		Task<T> task;
+		synchronized (this) {
+			Flow flow = flows.get(context.getId());
+			if (flow == null) {
+				flow = new Flow();
+				flows.put(context.getId(), flow);
+			}
+			double start = Math.max(virtualTime, flow.finish);
+			flow.finish = start + 1.0 / context.getWeight();
+			flow.queued++;
+			task = new Task<>(slice, context.getId(), context.getPriority(), start, sequence++);
+			queues.get(task.priority.ordinal()).add(task);
+		}
+		dispatch();
+		return task;
+	}
+
+	/**
+	 * Move a slice still waiting for a thread up to a more urgent priority, when a
+	 * more urgent query waits for its results too. It also goes ahead of the slices
+	 * queued so far, as the first slice of an idle query would.
+	 *
+	 * @param future as returned by {@link #submit(QueryContext, Callable)}
+	 * @return whether the slice was moved, false if it has started already
+	 */
+	public boolean promote(ListenableFuture<?> future, QueryPriority priority) {
+		if (!(future instanceof Task)) {
+			return false;
+		}
+		Task<?> task = (Task<?>) future;
+		synchronized (this) {
+			if (priority.compareTo(task.priority) >= 0
+					|| !queues.get(task.priority.ordinal()).remove(task)) {
+				return false;
+			}
+			task.priority = priority;
+			task.start = Math.min(task.start, virtualTime);
+			queues.get(priority.ordinal()).add(task);
+		}
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * @return bounded executor for continuations which combine the results of slices
+	 */
+	public Executor computeExecutor() {
+		return compute;
+	}
+
+	/**
+	 * Hand waiting slices to the pool while it has threads free for them
+	 */
+	private void dispatch() {
+		List<Task<?>> ready = new ArrayList<>();
+		synchronized (this) {
+			Task<?> task;
+			while (running < threads && (task = next()) != null) {
+				running++;
+				if (task.priority != QueryPriority.INTERACTIVE) {
+					runningShared++;
+				}
+				onDispatch(task);
+				ready.add(task);
+			}
+		}
+		for (Task<?> task: ready) {
+			pool.execute(task);
+		}
+	}
+
+	/**
+	 * @return the slice to run next, taken off its queue, or null if none may run
+	 */
+	private Task<?> next() {
+		boolean shared = runningShared < threads - reserved;
+		PriorityQueue<Task<?>> best = null;
+		for (QueryPriority priority: QueryPriority.values()) {
+			PriorityQueue<Task<?>> queue = queues.get(priority.ordinal());
+			if (queue.isEmpty() || (priority != QueryPriority.INTERACTIVE && !shared)) {
+				continue;
+			}
+			if (best == null || queue.peek().compareTo(best.peek()) < 0) {
+				best = queue;
+			}
+			if (strict) {
+				break;
+			}
+		}
+		return best == null ? null : best.poll();
+	}
+
+	private void onDispatch(Task<?> task) {
+		virtualTime = Math.max(virtualTime, task.start);
+		dequeued(task);
+
+		long waitMs = System.currentTimeMillis() - task.queuedMs;
+		avgWaitMs = dispatched == 0 ? waitMs : ALPHA * waitMs + (1 - ALPHA) * avgWaitMs;
+		maxWaitMs = Math.max(maxWaitMs, waitMs);
+		dispatched++;
+	}
+
+	private void onDone(Task<?> task) {
+		synchronized (this) {
+			running--;
+			if (task.priority != QueryPriority.INTERACTIVE) {
+				runningShared--;
+			}
+		}
+		dispatch();
+	}
+
+	private synchronized void onCancel(Task<?> task) {
+		if (!task.dequeued && queues.get(task.priority.ordinal()).remove(task)) {
+			dequeued(task);
+		}
+	}
+
+	private void dequeued(Task<?> task) {
+		if (task.dequeued) {
+			return;
+		}
+		task.dequeued = true;
+		Flow flow = flows.get(task.queryId);
+		if (flow != null && --flow.queued == 0) {
+			// an idle query starts again from the current virtual time
+			flows.remove(task.queryId);
+		}
+	}
+
+	/**
+	 * @return number of slices waiting for a thread
+	 */
+	public synchronized int queueDepth() {
+		int depth = 0;
+		for (PriorityQueue<Task<?>> queue: queues) {
+			depth += queue.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return number of queries with slices waiting for a thread
+	 */
+	public synchronized int queuedQueries() {
+		return flows.size();
+	}
+
+	/**
+	 * @return recent average of the time slices wait for a thread
+	 */
+	public synchronized double avgWaitMs() {
+		return avgWaitMs;
+	}
+
+	public synchronized void writeAsJson(JsonGenerator jgen) throws IOException {
+		jgen.writeStartObject();
+		jgen.writeNumberField("threads", threads);
+		jgen.writeNumberField("running", running);
+		jgen.writeNumberField("computeThreads", computeThreads);
+		jgen.writeNumberField("queueDepth", queueDepth());
+		jgen.writeObjectFieldStart("queueDepthByPriority");
+		for (QueryPriority priority: QueryPriority.values()) {
+			jgen.writeNumberField(priority.name().toLowerCase(), queues.get(priority.ordinal()).size());
+		}
+		jgen.writeEndObject();
+		jgen.writeNumberField("queuedQueries", flows.size());
+		jgen.writeNumberField("dispatched", dispatched);
+		jgen.writeNumberField("avgWaitMs", avgWaitMs);
+		jgen.writeNumberField("maxWaitMs", maxWaitMs);
+		jgen.writeEndObject();
+	}
+
+	public synchronized String config() {
+		return "threads=" + threads + ", computeThreads=" + computeThreads + ", strict=" + strict
+				+ ", reserved=" + reserved + ", queueDepth=" + queueDepth() + ", queuedQueries=" + flows.size();
+	}
+
+	/**
+	 * Slices of one query waiting for a thread
+	 */
+	private static class Flow {
+		// virtual time at which the last queued slice of the query is done
+		double finish;
+		int queued;
+	}
+
+	private class Task<T> extends FutureTask<T> implements ListenableFuture<T>, Comparable<Task<?>> {
+
+		final String queryId;
+		final long seq;
+		final long queuedMs = System.currentTimeMillis();
+
+		final ExecutionList listeners = new ExecutionList();
+
+		// guarded by the executor; promote() changes priority and start
+		boolean dequeued = false;
+		QueryPriority priority;
+		double start;
+
+		Task(Callable<T> callable, String queryId, QueryPriority priority, double start, long seq) {
+			super(callable);
+			this.queryId = queryId;
+			this.priority = priority;
+			this.start = start;
+			this.seq = seq;
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				onDone(this);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				onCancel(this);
+			}
+			return cancelled;
+		}
+
+		@Override
+		public void addListener(Runnable listener, Executor executor) {
+			listeners.add(listener, executor);
+		}
+
+		@Override
+		protected void done() {
+			listeners.execute();
+		}
+
+		@Override
+		public int compareTo(Task<?> o) {
+			int c = Double.compare(start, o.start);
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
+}
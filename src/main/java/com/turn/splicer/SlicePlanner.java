@@ -0,0 +1,326 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import com.turn.splicer.cache.JedisClient;
+import com.turn.splicer.merge.TsdbResult;
+import com.turn.splicer.tsdbutils.TSSubQuery;
+import com.turn.splicer.tsdbutils.TsQuery;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses how wide the slices of a query are, from what the slices of its metrics
+ * have cost so far. Slices are made as wide as possible while staying under
+ * {@code slice.target.bytes} of JSON and {@code slice.target.ms} of TSD time, so
+ * sparse metrics are fetched in a few large slices and dense ones in many small
+ * ones. Metrics we know nothing about yet get slices of {@link Splicer#SLICE_SIZE}.
+ *
+ * The stats are kept in memory, and with {@code slice.stats.persist} also saved
+ * to Redis so they survive restarts and are shared between splicers.
+ */
+public class SlicePlanner {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SlicePlanner.class);
+
+	private static final long MINUTE = 60 * 1000L;
+
+	private static final long HOUR = 60 * MINUTE;
+
+	// the widths slices are cut in. a fixed set, so slices of a metric are cut the
+	// same way most of the time and their cached results get reused.
+	@VisibleForTesting
+	static final long[] WIDTHS = {
+			5 * MINUTE, 10 * MINUTE, 15 * MINUTE, 30 * MINUTE,
+			HOUR, 2 * HOUR, 3 * HOUR, 4 * HOUR, 6 * HOUR, 12 * HOUR, 24 * HOUR
+	};
+
+	// slices shorter than this are too short to tell what an hour costs
+	private static final long MIN_SAMPLE_MS = 5 * MINUTE;
+
+	// redis hash holding the stats, by metric
+	private static final String REDIS_KEY = "splicer:metric-stats";
+
+	private static final SlicePlanner PLANNER = new SlicePlanner(
+			Config.get().getInt("slice.target.bytes", 8 * 1024 * 1024),
+			Config.get().getInt("slice.target.ms", 5000));
+
+	private static final boolean PERSIST = Config.get().getBoolean("slice.stats.persist");
+
+	private static final int FLUSH_MS = Config.get().getInt("slice.stats.flush.ms", 60000);
+
+	private final long targetBytes;
+
+	private final long targetMs;
+
+	private final ConcurrentMap<String, MetricStats> stats = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService flusher;
+
+	@VisibleForTesting
+	SlicePlanner(long targetBytes, long targetMs) {
+		this.targetBytes = targetBytes;
+		this.targetMs = targetMs;
+	}
+
+	public static SlicePlanner get() {
+		return PLANNER;
+	}
+
+	/**
+	 * Load the persisted stats, and start saving them every {@code slice.stats.flush.ms}
+	 */
+	public synchronized void start() {
+		if (!PERSIST || flusher != null) {
+			return;
+		}
+
+		try {
+			load(JedisClient.get().getAll(REDIS_KEY));
+		} catch (Exception e) {
+			LOG.error("Could not load metric stats from redis", e);
+		}
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("metric-stats-flush-%d")
+				.build());
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					JedisClient.get().putAll(REDIS_KEY, dump());
+				} catch (Exception e) {
+					LOG.error("Could not save metric stats to redis", e);
+				}
+			}
+		}, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return width of the slices of query in ms, a multiple of the downsample
+	 *         intervals of its sub queries
+	 */
+	public long sliceWidth(TsQuery query) {
+		double hours = hoursPerSlice(query);
+		if (hours < 0) {
+			return Splicer.alignedWidth(query, Splicer.SLICE_SIZE * 1000L);
+		}
+
+		long width = WIDTHS[0];
+		for (long w: WIDTHS) {
+			if (w <= hours * HOUR) {
+				width = w;
+			}
+		}
+		return Splicer.alignedWidth(query, width);
+	}
+
+	/**
+	 * @param width the width of the slices, as returned by {@link #sliceWidth(TsQuery)}
+	 * @return true if query should be run in slices, false if it is cheap enough, or
+	 *         short enough, to be run with a single request
+	 */
+	public boolean shouldSlice(TsQuery query, long width) {
+		long duration = query.endTime() - query.startTime();
+		// only worth slicing if the query spans more than two slices
+		if (duration / 2 <= width) {
+			return false;
+		}
+
+		// the whole query costs less than the target for one slice
+		double hours = hoursPerSlice(query);
+		return hours < 0 || duration > hours * HOUR;
+	}
+
+	/**
+	 * @return how long the TSDs will take for all of query, as one request, or -1
+	 *         if we don't know the cost of all of its metrics yet
+	 */
+	public long estimatedMs(TsQuery query) {
+		Set<String> metrics = metrics(query);
+		if (metrics.isEmpty()) {
+			return -1;
+		}
+
+		double msPerHour = 0;
+		for (String metric: metrics) {
+			MetricStats s = stats.get(metric);
+			if (s == null) {
+				return -1;
+			}
+			msPerHour += s.getMsPerHour();
+		}
+		return (long) (msPerHour * (query.endTime() - query.startTime()) / HOUR);
+	}
+
+	/**
+	 * @return rough cost of query, for admission control: the number of slices it is
+	 *         cut in times the series expected from its sub queries (1 for a metric
+	 *         we know nothing about yet)
+	 */
+	public long estimatedCost(TsQuery query) {
+		long width = sliceWidth(query);
+		long duration = query.endTime() - query.startTime();
+		long slices = shouldSlice(query, width) ? Math.max(1, (duration + width - 1) / width) : 1;
+
+		double series = 0;
+		for (TSSubQuery sub: query.getQueries()) {
+			MetricStats s = sub.getMetric() == null ? null : stats.get(sub.getMetric());
+			series += s == null ? 1 : Math.max(1, s.getSeries());
+		}
+		return (long) Math.ceil(slices * series);
+	}
+
+	/**
+	 * @return how many hours of query fit in a slice of the target cost, -1 if we
+	 *         don't know the cost of all of its metrics yet
+	 */
+	private double hoursPerSlice(TsQuery query) {
+		Set<String> metrics = metrics(query);
+		if (metrics.isEmpty()) {
+			return -1;
+		}
+
+		double bytesPerHour = 0;
+		double msPerHour = 0;
+		for (String metric: metrics) {
+			MetricStats s = stats.get(metric);
+			if (s == null) {
+				return -1;
+			}
+			bytesPerHour += s.getBytesPerHour();
+			msPerHour += s.getMsPerHour();
+		}
+
+		// a metric which costs nothing can have slices of any width
+		return Math.min(targetBytes / bytesPerHour, targetMs / msPerHour);
+	}
+
+	/**
+	 * Record what a slice cost. The bytes and time are split between the metrics of
+	 * the slice by the number of series returned for each of them.
+	 *
+	 * @param bytes size of the JSON returned by the TSD
+	 */
+	public void record(TsQuery slice, TsdbResult[] results, long bytes, long latencyMs) {
+		long duration = slice.endTime() - slice.startTime() + 1;
+		Set<String> metrics = metrics(slice);
+		// partitions only fetch part of the series of their metric
+		if (duration < MIN_SAMPLE_MS || metrics.isEmpty() || TagPartitioner.isPartition(slice)) {
+			return;
+		}
+
+		Map<String, Integer> series = new HashMap<>();
+		for (String metric: metrics) {
+			series.put(metric, 0);
+		}
+		int matched = 0;
+		for (TsdbResult result: results) {
+			Integer n = series.get(result.getMetric());
+			if (n != null) {
+				series.put(result.getMetric(), n + 1);
+				matched++;
+			}
+		}
+
+		double hours = (double) duration / HOUR;
+		for (Map.Entry<String, Integer> e: series.entrySet()) {
+			double share = matched == 0 ? 1.0 / series.size() : (double) e.getValue() / matched;
+			statsFor(e.getKey()).record(bytes * share, latencyMs * share, e.getValue(), hours);
+		}
+	}
+
+	/**
+	 * @return stats of metric, or null if none of its slices were recorded
+	 */
+	public MetricStats getStats(String metric) {
+		return stats.get(metric);
+	}
+
+	private MetricStats statsFor(String metric) {
+		MetricStats s = stats.get(metric);
+		if (s == null) {
+			MetricStats existing = stats.putIfAbsent(metric, s = new MetricStats());
+			if (existing != null) {
+				s = existing;
+			}
+		}
+		return s;
+	}
+
+	private static Set<String> metrics(TsQuery query) {
+		Set<String> metrics = new LinkedHashSet<>();
+		for (TSSubQuery sub: query.getQueries()) {
+			if (sub.getMetric() != null) {
+				metrics.add(sub.getMetric());
+			}
+		}
+		return metrics;
+	}
+
+	@VisibleForTesting
+	void load(Map<String, String> persisted) {
+		for (Map.Entry<String, String> e: persisted.entrySet()) {
+			try {
+				stats.putIfAbsent(e.getKey(), MetricStats.decode(e.getValue()));
+			} catch (IllegalArgumentException ex) {
+				LOG.warn("Ignoring stats of metric={}: {}", e.getKey(), ex.getMessage());
+			}
+		}
+		LOG.info("Loaded stats of {} metrics", persisted.size());
+	}
+
+	@VisibleForTesting
+	Map<String, String> dump() {
+		Map<String, String> dump = new HashMap<>();
+		for (Map.Entry<String, MetricStats> e: stats.entrySet()) {
+			dump.put(e.getKey(), e.getValue().encode());
+		}
+		return dump;
+	}
+
+	public void writeAsJson(JsonGenerator jgen) throws IOException {
+		jgen.writeStartObject();
+		for (Map.Entry<String, MetricStats> e: stats.entrySet()) {
+			jgen.writeFieldName(e.getKey());
+			e.getValue().writeAsJson(jgen);
+		}
+		jgen.writeEndObject();
+	}
+
+	public String config() {
+		return "targetBytes=" + targetBytes + ", targetMs=" + targetMs + ", persist=" + PERSIST
+				+ ", metrics=" + stats.size();
+	}
+}
@@ -16,11 +16,18 @@
 
 package com.turn.splicer;
 
+import com.turn.splicer.merge.TsdbResult;
+import com.turn.splicer.tsdbutils.TSSubQuery;
 import com.turn.splicer.tsdbutils.TsQuery;
 
+import java.math.RoundingMode;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.TreeSet;
 
+import com.google.common.math.LongMath;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,63 +36,189 @@ public class Splicer {
 	private static final Logger LOG = LoggerFactory.getLogger(Splicer.class);
 
 	public static final int SLICE_SIZE = 3600;
-	public static final int OVERFLOW = 300;
+
+	private static final long HOUR = 3600 * 1000L;
 
 	private final TsQuery tsQuery;
 
+	private final long width;
+
 	public Splicer(TsQuery tsQuery) {
+		this(tsQuery, SlicePlanner.get().sliceWidth(tsQuery));
+	}
+
+	/**
+	 * @param width width of the slices in ms, a multiple of the downsample intervals
+	 *              of the query (see {@link #alignedWidth(TsQuery, long)})
+	 */
+	public Splicer(TsQuery tsQuery, long width) {
 		this.tsQuery = tsQuery;
+		this.width = width;
 	}
 
 	/**
-	 * Slices a query into pieces with each with time frame atmost of {@link #SLICE_SIZE}.
-	 *
-	 * NOTE: It must be noted that this method does not take into consideration the downsample.
+	 * Slices a query into pieces of the slice width, aligned to multiples of that
+	 * width. Slices don't overlap: each ends 1ms before the next one starts, except
+	 * for the last one which ends at the end of the query.
 	 *
-	 * What does this mean? If we have a downsample of 30m, and each slice is divided into one hour
-	 * blocks, then we will only get one point per hour slice. This will reduce the output of the
-	 * final query by 50%. Thus, if {@link #SLICE_SIZE} is one hour, we must add some overflow
-	 * time to accomodate for these points. By default, this is set to {@link #OVERFLOW}.
-	 *
-	 * This can be better tuned, than hardcoding to a fixed {@link #OVERFLOW} value. As most queries
-	 * use a downsample of 1-5 minutes, this would mean dropping 1 out of 60-12 points respectively.
+	 * Since the width is a multiple of the downsample interval, and the TSD aligns the
+	 * downsample buckets to multiples of the interval, every bucket falls into exactly
+	 * one slice and is computed from all of its data points.
 	 *
 	 * @return list of queries
 	 */
 	public List<TsQuery> sliceQuery()
 	{
-		final long bucket_size = SLICE_SIZE * 1000;
-
-		final long overflow_in_millis;
-		if (Config.get().getBoolean("slice.overflow.enable")) {
-			overflow_in_millis = OVERFLOW * 1000;
-		} else {
-			overflow_in_millis = 0;
-		}
+		return sliceQuery(Collections.<Long>emptyList());
+	}
 
+	/**
+	 * Slices a query as {@link #sliceQuery()} does, and also cuts the slices at the
+	 * given times, e.g. where the rows of the metric move to another HBase region.
+	 * The cuts are moved back to the start of their downsample bucket, so buckets
+	 * are still never split.
+	 *
+	 * @param cuts times in ms
+	 * @return list of queries
+	 */
+	public List<TsQuery> sliceQuery(Collection<Long> cuts)
+	{
 		long startTime = tsQuery.startTime();
 		long endTime = tsQuery.endTime();
 
-		List<TsQuery> slices = new ArrayList<>();
+		TreeSet<Long> starts = new TreeSet<>();
+		long start = startTime - (startTime % width);
+		starts.add(start);
+		while (start < endTime - width) {
+			start = start + width;
+			starts.add(start);
+		}
 
-		long end = startTime - (startTime % bucket_size) + bucket_size;
-		TsQuery first = TsQuery.sliceOf(tsQuery, startTime - (startTime % bucket_size), end + overflow_in_millis);
-		slices.add(first);
-		LOG.debug("First interval is {} to {}", Const.tsFormat(first.startTime()), Const.tsFormat(first.endTime()));
+		long grain = cutGrain(tsQuery);
+		for (long cut: cuts) {
+			cut = cut - (cut % grain);
+			if (cut > starts.first() && cut < endTime) {
+				starts.add(cut);
+			}
+		}
 
-		while (end + bucket_size < endTime) {
-			TsQuery slice = TsQuery.sliceOf(tsQuery, end, end + bucket_size + overflow_in_millis);
+		List<TsQuery> slices = new ArrayList<>();
+		Long next;
+		for (long s = starts.first(); (next = starts.higher(s)) != null; s = next) {
+			TsQuery slice = TsQuery.sliceOf(tsQuery, s, next - 1);
 			slices.add(slice);
-			end = end + bucket_size;
 			LOG.debug("Add interval# {} from {} to {}", slices.size(),
 					Const.tsFormat(slice.startTime()),
 					Const.tsFormat(slice.endTime()));
 		}
 
-		slices.add(TsQuery.sliceOf(tsQuery, end, endTime));
-		LOG.debug("Last interval is {} to {}", Const.tsFormat(end), Const.tsFormat(endTime));
+		start = starts.last();
+		slices.add(TsQuery.sliceOf(tsQuery, start, endTime));
+		LOG.debug("Last interval is {} to {}", Const.tsFormat(start), Const.tsFormat(endTime));
 
 		return slices;
 	}
 
+	/**
+	 * Cut the points out of the spliced results of query which lie in its time range.
+	 * The first slice of a query starts at a multiple of the slice width, usually
+	 * before the query does, so it can be cached and reused by later queries. The
+	 * downsample bucket holding the start of the query is kept.
+	 */
+	public static TsdbResult[] trim(TsdbResult[] results, TsQuery query)
+	{
+		long start = query.startTime() - (query.startTime() % downsampleInterval(query));
+		return trim(results, start, query.endTime(), query.getMsResolution());
+	}
+
+	/**
+	 * Cut the points between startMs and endMs (both inclusive, as in a TSD query)
+	 * out of results. Series with no points in between (or none at all) are left
+	 * out, as the TSD would not have returned them for that time range either.
+	 *
+	 * @param msResolution true if the timestamps of the points are in ms, not seconds
+	 */
+	public static TsdbResult[] trim(TsdbResult[] results, long startMs, long endMs, boolean msResolution)
+	{
+		List<TsdbResult> sliced = new ArrayList<>();
+		// the range in the units of the timestamps of the points
+		long from = msResolution ? startMs : LongMath.divide(startMs, 1000, RoundingMode.CEILING);
+		long to = msResolution ? endMs : LongMath.divide(endMs, 1000, RoundingMode.FLOOR);
+		for (TsdbResult result: results) {
+			if (result.getDps() == null) {
+				continue;
+			}
+			TsdbResult.Points points = result.getDps().range(from, to);
+			if (!points.isEmpty()) {
+				TsdbResult copy = TsdbResult.copyMeta(result);
+				copy.setDps(points);
+				sliced.add(copy);
+			}
+		}
+		return sliced.toArray(new TsdbResult[sliced.size()]);
+	}
+
+	/**
+	 * @return width rounded up to a multiple of the downsample intervals of the
+	 *         sub queries of query
+	 */
+	public static long alignedWidth(TsQuery query, long width)
+	{
+		long interval = downsampleInterval(query);
+		if (interval >= width) {
+			return interval;
+		}
+		return (width + interval - 1) / interval * interval;
+	}
+
+	/**
+	 * @return true if query is a complete slice of one of the widths the
+	 *         {@link SlicePlanner} cuts slices in, or a piece of one cut at an
+	 *         HBase region. Only those always cover the same time range, and so
+	 *         can be cached.
+	 */
+	public static boolean isFullSlice(TsQuery query)
+	{
+		long grain = cutGrain(query);
+		for (long w: SlicePlanner.WIDTHS) {
+			long width = alignedWidth(query, w);
+			long cellStart = query.startTime() - (query.startTime() % width);
+			long cellEnd = cellStart + width - 1;
+			if (query.endTime() <= cellEnd
+					&& (query.startTime() == cellStart || query.startTime() % grain == 0)
+					&& (query.endTime() == cellEnd || (query.endTime() + 1) % grain == 0)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return what slices are cut at besides the slice width: whole hours, as
+	 *         HBase rows hold an hour each, and whole downsample buckets
+	 */
+	private static long cutGrain(TsQuery query)
+	{
+		return lcm(HOUR, downsampleInterval(query));
+	}
+
+	private static long downsampleInterval(TsQuery query)
+	{
+		long interval = 1;
+		for (TSSubQuery sub: query.getQueries()) {
+			if (sub.downsampleInterval() > 0) {
+				interval = lcm(interval, sub.downsampleInterval());
+			}
+		}
+		return interval;
+	}
+
+	private static long lcm(long a, long b)
+	{
+		long gcd = LongMath.gcd(a, b);
+		long lcm = a / gcd * b;
+		// intervals this large are never sliced anyway
+		return lcm / b != a / gcd ? Long.MAX_VALUE : lcm;
+	}
+
 }
@@ -17,8 +17,9 @@
 package com.turn.splicer;
 
 import com.turn.splicer.cache.JedisClient;
-
-import java.util.concurrent.LinkedBlockingQueue;
+import com.turn.splicer.tsd.TsdClient;
+import com.turn.splicer.tsd.TsdHealthChecker;
+import com.turn.splicer.tsd.TsdScheduler;
 
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
@@ -27,6 +28,7 @@ import org.eclipse.jetty.server.handler.DefaultHandler;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,20 +60,27 @@ public class SplicerMain {
 			for (String TSD : TSDs) {
 				for (int port = TSD_START_PORT; port < TSD_END_PORT; port++) {
 					String r = TSD + ":" + port;
-					if (HttpWorker.TSDMap.get(TSD) == null) {
-						HttpWorker.TSDMap.put(TSD, new LinkedBlockingQueue<String>());
-					}
 
 					//with load balancer we actually have 10 tsdb instances behind each port
-					for(int j = 0; j < TSD_QUERIES_PER_PORT; j++) {
-						HttpWorker.TSDMap.get(TSD).put(r);
-					}
+					TsdScheduler.get().register(TSD, r, TSD_QUERIES_PER_PORT);
 					LOG.info("Registering {}", r);
 				}
 			}
+
+			TsdHealthChecker.get().start();
 		}
 
+		SlicePlanner.get().start();
+
 		LOG.info("JedisClient Status: " + JedisClient.get().config());
+		LOG.info("TsdClient Status: " + TsdClient.get().config());
+		LOG.info("TsdScheduler Status: " + TsdScheduler.get().config());
+		LOG.info("TsdHealthChecker Status: " + TsdHealthChecker.get().config());
+		LOG.info("SlicePlanner Status: " + SlicePlanner.get().config());
+		LOG.info("SliceExecutor Status: " + SliceExecutor.get().config());
+		LOG.info("AdmissionController Status: " + AdmissionController.get().config());
+		LOG.info("PriorityClassifier Status: " + PriorityClassifier.get().config());
+		LOG.info("TagPartitioner Status: " + TagPartitioner.get().config());
 
 		final Server server = new Server();
 
@@ -84,11 +93,15 @@ public class SplicerMain {
 		server.setThreadPool(qtp);
 
 		ServletHandler servletHandler = new ServletHandler();
-		servletHandler.addServletWithMapping(SplicerServlet.class.getName(), "/api/query");
-		servletHandler.addServletWithMapping(SplicerServlet.class.getName(), "/api/query/query");
-		servletHandler.addServletWithMapping(SplicerServlet.class.getName(), "/api/query/qexp");
+		// queries complete asynchronously, so they don't hold on to a jetty thread
+		for (String path: new String[]{"/api/query", "/api/query/query", "/api/query/qexp"}) {
+			ServletHolder splicerServlet = new ServletHolder(SplicerServlet.class);
+			splicerServlet.setAsyncSupported(true);
+			servletHandler.addServletWithMapping(splicerServlet, path);
+		}
 		servletHandler.addServletWithMapping(ConfigServlet.class.getName(), "/api/config");
 		servletHandler.addServletWithMapping(SuggestServlet.class.getName(), "/api/suggest");
+		servletHandler.addServletWithMapping(StatsServlet.class.getName(), "/api/stats");
 
 		HandlerList handlers = new HandlerList();
 		handlers.setHandlers(new Handler[]{
@@ -16,7 +16,6 @@
 
 package com.turn.splicer;
 
-import com.google.common.collect.Lists;
 import com.turn.splicer.hbase.RegionChecker;
 import com.turn.splicer.hbase.RegionUtil;
 import com.turn.splicer.merge.ResultsMerger;
@@ -25,19 +24,28 @@ import com.turn.splicer.tsdbutils.*;
 import com.turn.splicer.tsdbutils.expression.Expression;
 import com.turn.splicer.tsdbutils.expression.ExpressionTree;
 
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
-import com.turn.splicer.tsdbutils.expression.ExpressionTreeWorker;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.AbstractHttpConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,7 +55,18 @@ public class SplicerServlet extends HttpServlet {
 
 	public static RegionUtil REGION_UTIL = new RegionUtil();
 
-	private static ExecutorService pool = Executors.newCachedThreadPool();
+	// time a query may take unless the client asks for another timeout (up to the max)
+	private static final int DEFAULT_TIMEOUT_MS = Config.get().getInt("query.timeout.ms", 120000);
+	private static final int MAX_TIMEOUT_MS = Config.get().getInt("query.timeout.max.ms", 600000);
+
+	// how long past the query's deadline the container waits for its response
+	private static final long ASYNC_GRACE_MS = 10000;
+
+	// request header with the timeout in ms. can also be given as the timeout parameter
+	static final String TIMEOUT_HEADER = "X-Splicer-Timeout-Ms";
+
+	// request header with the priority class of the query. can also be given as the priority parameter
+	static final String PRIORITY_HEADER = "X-Splicer-Priority";
 
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -68,6 +87,10 @@ public class SplicerServlet extends HttpServlet {
 	{
 		try {
 			doPostWork(request, response);
+		} catch (QueryCancelledException e) {
+			LOG.info(e.getMessage());
+			response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+			response.getWriter().write(error(e.getMessage()));
 		} catch (Exception e) {
 			LOG.error("Exception which processing POST request", e);
 
@@ -95,6 +118,8 @@ public class SplicerServlet extends HttpServlet {
 	 * either x or m must be provided, otherwise nothing to query!
 	 * ms - optional for millisecond resolution
 	 * padding - optional pad front of value's with 0's
+	 * timeout - optional max time in ms the query may take
+	 * priority - optional priority class: interactive, dashboard or batch
 	 *
 	 *example:
 	 * /api/query?start=1436910725795&x=abs(sum:1m-avg:tcollector.collector.lines_received)"
@@ -119,12 +144,12 @@ public class SplicerServlet extends HttpServlet {
 		}
 
 		List<ExpressionTree> expressionTrees = null;
+		List<String> metricQueries = new ArrayList<String>();
 
 		final String[] expressions = request.getParameterValues("x");
 
 		if(expressions != null) {
 			expressionTrees = new ArrayList<ExpressionTree>();
-			List<String> metricQueries = new ArrayList<String>();
 
 			SplicerUtils.syntaxCheck(expressions, dataQuery, metricQueries, expressionTrees);
 		}
@@ -147,33 +172,25 @@ public class SplicerServlet extends HttpServlet {
     response.setCharacterEncoding("UTF-8");
     response.setContentType("application/json");
 
-		try (RegionChecker checker = REGION_UTIL.getRegionChecker()) {
-			List<TsdbResult[]> exprResults = Lists.newArrayList();
-			if(expressionTrees == null || expressionTrees.size() == 0) {
-				System.out.println("expression trees == null...figure this out later");
-				response.getWriter().write("No expression or error parsing expression");
-			}
-			else {
-				try {
-					List<Future<TsdbResult[]>> futureList = new ArrayList<Future<TsdbResult[]>>(expressionTrees.size());
-
-					TsQuery prev = null;
-
-					for (ExpressionTree expressionTree : expressionTrees) {
-						futureList.add(pool.submit(new ExpressionTreeWorker(expressionTree)));
-					}
+		if(expressionTrees == null || expressionTrees.size() == 0) {
+			System.out.println("expression trees == null...figure this out later");
+			response.getWriter().write("No expression or error parsing expression");
+			return;
+		}
 
-					for (Future<TsdbResult[]> future : futureList) {
-						exprResults.add(future.get());
+		final List<ExpressionTree> trees = expressionTrees;
+		final QueryContext context = newQueryContext(request);
+		admitAndRespond(request, estimatedCost(dataQuery, metricQueries), context,
+				new AsyncFunction<Resources, List<TsdbResult[]>>() {
+					@Override
+					public ListenableFuture<List<TsdbResult[]>> apply(Resources resources) {
+						List<ListenableFuture<TsdbResult[]>> futureList = new ArrayList<>(trees.size());
+						for (ExpressionTree expressionTree : trees) {
+							futureList.add(expressionTree.evaluate(context));
+						}
+						return Futures.allAsList(futureList);
 					}
-					response.getWriter().write(TsdbResult.toJson(SplicerUtils.flatten(
-							exprResults)));
-				} catch (Exception e) {
-					LOG.error("Could not evaluate expression tree", e);
-					e.printStackTrace();
-				}
-			}
-		}
+				});
 	}
 
 	private void doPostWork(HttpServletRequest request, HttpServletResponse response)
@@ -201,29 +218,303 @@ public class SplicerServlet extends HttpServlet {
     response.setCharacterEncoding("UTF-8");
     response.setContentType("application/json");
 
-		try (RegionChecker checker = REGION_UTIL.getRegionChecker()) {
+		final TsQuery query = tsQuery;
+		final QueryContext context = newQueryContext(request);
+		admitAndRespond(request, SlicePlanner.get().estimatedCost(tsQuery), context,
+				new AsyncFunction<Resources, List<TsdbResult[]>>() {
+					@Override
+					public ListenableFuture<List<TsdbResult[]>> apply(Resources resources) throws IOException {
+						RegionChecker checker = REGION_UTIL.getRegionChecker();
+						resources.add(checker);
+						SplicerQueryRunner queryRunner = new SplicerQueryRunner();
+
+						List<ListenableFuture<TsdbResult[]>> resultsFromAllSubQueries = new ArrayList<>();
+						if (query.getQueries().size() == 1) {
+							resultsFromAllSubQueries.add(queryRunner.sliceAndRunQueryAsync(query, checker, context));
+						} else {
+							for (TSSubQuery subQuery: query.getQueries()) {
+								TsQuery tsQueryCopy = TsQuery.validCopyOf(query);
+								tsQueryCopy.addSubQuery(subQuery);
+								resultsFromAllSubQueries.add(queryRunner.sliceAndRunQueryAsync(tsQueryCopy, checker, context));
+							}
+						}
+						return Futures.allAsList(resultsFromAllSubQueries);
+					}
+				});
+	}
 
-			List<TSSubQuery> subQueries = new ArrayList<>(tsQuery.getQueries());
-			SplicerQueryRunner queryRunner = new SplicerQueryRunner();
+	/**
+	 * Wait for the query to be let in by the {@link AdmissionController}, then
+	 * start it and respond once its results are in. The request waits in line
+	 * without holding its thread.
+	 *
+	 * @param start starts the query, adding what it opens to the resources
+	 *              closed once the response is written
+	 */
+	private void admitAndRespond(HttpServletRequest request, long cost, final QueryContext context,
+	                             final AsyncFunction<Resources, List<TsdbResult[]>> start)
+	{
+		final ListenableFuture<AdmissionController.Ticket> admission = AdmissionController.get().admit(cost);
+		final Resources resources = new Resources(new Closeable() {
+			@Override
+			public void close() {
+				// gives up the place in line if the query never got in
+				admission.cancel(false);
+			}
+		});
+		context.addCancelListener(new Runnable() {
+			@Override
+			public void run() {
+				admission.cancel(false);
+			}
+		});
+
+		ListenableFuture<List<TsdbResult[]>> results = Futures.transform(admission,
+				new AsyncFunction<AdmissionController.Ticket, List<TsdbResult[]>>() {
+					@Override
+					public ListenableFuture<List<TsdbResult[]>> apply(AdmissionController.Ticket ticket)
+							throws Exception {
+						resources.add(ticket);
+						try {
+							context.checkAlive();
+							return start.apply(resources);
+						} catch (Exception e) {
+							context.cancel("could not start query: " + e.getMessage());
+							throw e;
+						}
+					}
+				}, SliceExecutor.get().computeExecutor());
+		respondLater(request, results, context, resources);
+	}
 
-			if (subQueries.size() == 1) {
-				TsdbResult[] results = queryRunner.sliceAndRunQuery(tsQuery, checker);
-				if (results == null || results.length == 0) {
-					response.getWriter().write("[]");
+	/**
+	 * Hand the request over to the threads completing the query, so the request
+	 * thread is free to serve other requests as soon as the query is dispatched.
+	 * The response is written once results are in, after which context and
+	 * resources are closed.
+	 */
+	private void respondLater(HttpServletRequest request, ListenableFuture<List<TsdbResult[]>> results,
+	                          final QueryContext context, final Closeable... resources)
+	{
+		final AsyncContext async = request.startAsync();
+		final AtomicBoolean done = new AtomicBoolean(false);
+
+		// a safety net, the query fails on its own once its deadline passes
+		async.setTimeout(context.remainingMs() + ASYNC_GRACE_MS);
+		async.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				context.cancel("request timed out");
+				respond(async, done, HttpServletResponse.SC_GATEWAY_TIMEOUT,
+						error("Query " + context.getId() + " timed out"), context, resources);
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				context.cancel("request failed: " + event.getThrowable());
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+		});
+
+		Futures.addCallback(results, new FutureCallback<List<TsdbResult[]>>() {
+			@Override
+			public void onSuccess(List<TsdbResult[]> results) {
+				String json;
+				try {
+					TsdbResult[] flat = SplicerUtils.flatten(results);
+					json = flat.length == 0 ? "[]" : TsdbResult.toJson(flat);
+				} catch (IOException | RuntimeException e) {
+					onFailure(e);
+					return;
+				}
+				respond(async, done, HttpServletResponse.SC_OK, json, context, resources);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (t instanceof AdmissionException) {
+					AdmissionException e = (AdmissionException) t;
+					LOG.info("Rejected query with status={}: {}", e.getStatus(), e.getMessage());
+					respond(async, done, e.getStatus(), e.getRetryAfterSeconds(), error(e.getMessage()),
+							context, resources);
+					return;
+				}
+				if (t instanceof QueryCancelledException || t instanceof CancellationException) {
+					String msg = t instanceof QueryCancelledException ? t.getMessage()
+							: "Query " + context.getId() + " cancelled: " + context.getCancelReason();
+					LOG.info(msg);
+					respond(async, done, HttpServletResponse.SC_GATEWAY_TIMEOUT, error(msg), context, resources);
+					return;
+				}
+
+				LOG.error("Exception which processing query " + context.getId(), t);
+				String stackTrace = "";
+				if (t.getStackTrace() != null && t.getStackTrace().length > 2) {
+					stackTrace += t.getStackTrace()[0] + ", " + t.getStackTrace()[1];
 				} else {
-					response.getWriter().write(TsdbResult.toJson(results));
+					stackTrace = "<empty>";
 				}
-				response.getWriter().flush();
-			} else {
-				List<TsdbResult[]> resultsFromAllSubQueries = new ArrayList<>();
-				for (TSSubQuery subQuery: subQueries) {
-					TsQuery tsQueryCopy = TsQuery.validCopyOf(tsQuery);
-					tsQueryCopy.addSubQuery(subQuery);
-					TsdbResult[] results = queryRunner.sliceAndRunQuery(tsQueryCopy, checker);
-					resultsFromAllSubQueries.add(results);
+				respond(async, done, HttpServletResponse.SC_OK,
+						error(t.getMessage() + ", stacktrace=" + stackTrace), context, resources);
+			}
+		}, SliceExecutor.get().computeExecutor());
+	}
+
+	/**
+	 * Write the response of an async request and complete it, unless that was
+	 * done already
+	 */
+	private static void respond(AsyncContext async, AtomicBoolean done, int status, String body,
+	                            QueryContext context, Closeable... resources)
+	{
+		respond(async, done, status, null, body, context, resources);
+	}
+
+	/**
+	 * @param retryAfterSeconds tells the client when to try again, if not null
+	 */
+	private static void respond(AsyncContext async, AtomicBoolean done, int status,
+	                            @Nullable Long retryAfterSeconds, String body,
+	                            QueryContext context, Closeable... resources)
+	{
+		if (!done.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			HttpServletResponse response = (HttpServletResponse) async.getResponse();
+			response.setStatus(status);
+			if (retryAfterSeconds != null) {
+				response.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+			}
+			response.getWriter().write(body);
+			response.getWriter().flush();
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Could not write response of query " + context.getId(), e);
+		} finally {
+			try {
+				async.complete();
+			} catch (IllegalStateException e) {
+				LOG.debug("Request of query {} already completed", context.getId());
+			}
+			context.close();
+			for (Closeable resource: resources) {
+				try {
+					resource.close();
+				} catch (IOException e) {
+					LOG.warn("Could not close " + resource, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return estimated cost of the metric queries of an expression, as they would
+	 *         be run together in one query
+	 */
+	private static long estimatedCost(TsQuery dataQuery, List<String> metricQueries) {
+		TsQuery query = TsQuery.validCopyOf(dataQuery);
+		for (String metricQuery: metricQueries) {
+			SplicerUtils.parseMTypeSubQuery(metricQuery, query);
+		}
+		query.validateAndSetQuery();
+		return SlicePlanner.get().estimatedCost(query);
+	}
+
+	private static String error(String msg) {
+		return "{\"error\": \"" + msg + "\"}\n";
+	}
+
+	/**
+	 * Create the context of a query, with the timeout and priority the client asked
+	 * for, and watch the client's connection so the query is cancelled if it goes away.
+	 */
+	private QueryContext newQueryContext(HttpServletRequest request) {
+		String timeout = request.getParameter("timeout");
+		if (timeout == null) {
+			timeout = request.getHeader(TIMEOUT_HEADER);
+		}
+
+		long timeoutMs = DEFAULT_TIMEOUT_MS;
+		if (timeout != null) {
+			try {
+				timeoutMs = Long.parseLong(timeout.trim());
+			} catch (NumberFormatException e) {
+				LOG.warn("Ignoring bad timeout={}", timeout);
+			}
+		}
+		if (timeoutMs <= 0 || timeoutMs > MAX_TIMEOUT_MS) {
+			timeoutMs = MAX_TIMEOUT_MS;
+		}
+
+		QueryContext context = new QueryContext(timeoutMs);
+
+		String priority = request.getParameter("priority");
+		if (priority == null) {
+			priority = request.getHeader(PRIORITY_HEADER);
+		}
+		context.setPriority(PriorityClassifier.get().classify(priority, request.getRemoteAddr()));
+
+		// jetty closes the endpoint once it notices the client is gone
+		AbstractHttpConnection connection = AbstractHttpConnection.getCurrentConnection();
+		if (connection != null) {
+			final EndPoint endPoint = connection.getEndPoint();
+			context.watch(new Supplier<Boolean>() {
+				@Override
+				public Boolean get() {
+					return endPoint.isOpen();
+				}
+			});
+		}
+
+		LOG.debug("Created query context {}", context);
+		return context;
+	}
+
+	/**
+	 * What a query opens as it goes, closed once its response is written. Anything
+	 * opened after that is closed right away.
+	 */
+	private static class Resources implements Closeable {
+
+		private final List<Closeable> opened = new ArrayList<>();
+
+		private boolean closed = false;
+
+		Resources(Closeable... resources) {
+			opened.addAll(Arrays.asList(resources));
+		}
+
+		void add(Closeable resource) throws IOException {
+			synchronized (this) {
+				if (!closed) {
+					opened.add(resource);
+					return;
+				}
+			}
+			resource.close();
+		}
+
+		@Override
+		public void close() {
+			List<Closeable> toClose;
+			synchronized (this) {
+				closed = true;
+				toClose = new ArrayList<>(opened);
+				opened.clear();
+			}
+			for (Closeable resource: toClose) {
+				try {
+					resource.close();
+				} catch (IOException | RuntimeException e) {
+					LOG.warn("Could not close " + resource, e);
 				}
-				response.getWriter().write(TsdbResult.toJson(SplicerUtils.flatten(
-						resultsFromAllSubQueries)));
 			}
 		}
 	}
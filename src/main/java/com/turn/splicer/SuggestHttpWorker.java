@@ -16,24 +16,27 @@
 
 package com.turn.splicer;
 
+import com.turn.splicer.tsd.TsdClient;
+import com.turn.splicer.tsd.TsdPermit;
+import com.turn.splicer.tsd.TsdScheduler;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
-import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
-import java.util.Random;
-import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Takes a api/suggest query string and runs it against a random TSD node,
- * returns the result of the query
+ * returns the result of the query. Also runs GET requests to other apis of the
+ * TSD, such as api/search/lookup.
  *
  * TODO: needs to be refactored with HttpWorker, there is a lot of duplicate logic
  * TODO: error reporting differs from regular TSDB - no error message for invalid type
@@ -41,77 +44,76 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class SuggestHttpWorker implements Callable<String> {
 	private static final Logger LOG = LoggerFactory.getLogger(SuggestHttpWorker.class);
 
-	private final String suggestQuery;
-
-	private final String[] hosts;
+	private final String api;
 
-	private static final Random RANDOM_GENERATOR = new Random();
+	private final String suggestQuery;
 
 	public SuggestHttpWorker(String queryString) {
-		this.suggestQuery = queryString;
+		this("/api/suggest", queryString);
+	}
 
-		Set<String> hosts = HttpWorker.TSDMap.keySet();
-		if (hosts.size() == 0) {
-			throw new NullPointerException("No Query Hosts. TSDMap.size = 0");
-		}
+	/**
+	 * @param api path of the api to call, e.g. /api/search/lookup
+	 */
+	public SuggestHttpWorker(String api, String queryString) {
+		this.api = api;
+		this.suggestQuery = queryString;
 
-		this.hosts = new String[hosts.size()];
-		int i=0;
-		for (String h: hosts) {
-			this.hosts[i] = h;
-			i++;
+		if (TsdScheduler.get().hosts().size() == 0) {
+			throw new NullPointerException("No Query Hosts. TsdScheduler has no hosts");
 		}
 	}
 
 	@Override
 	public String call() throws Exception {
-		LinkedBlockingQueue<String> TSDs;
+		return call(new ResponseReader<String>() {
+			@Override
+			public String read(InputStream content) throws IOException {
+				List<String> dl = IOUtils.readLines(content);
+				String result = StringUtils.join(dl, "");
+				LOG.debug("Result={}", result);
+				return result;
+			}
+		});
+	}
 
+	/**
+	 * Run the request, and read the response as it streams in from the TSD
+	 */
+	public <T> T call(ResponseReader<T> reader) throws Exception {
 		//TODO: have it implement its own RegionChecker to get hbase locality looking for metric names
-		//lets have it just pick a random host
-		String hostname = getRandomHost();
-		TSDs = HttpWorker.TSDMap.get(hostname);
-
-		if (TSDs == null) {
-			LOG.error("We are not running TSDs on regionserver={}. Choosing a random host failed", hostname);
-			return "{'error': 'Choice of hostname=" + hostname + " failed.'}";
-		}
-
-		String server = TSDs.take();
-		String uri = "http://" + server + "/api/suggest?" + suggestQuery;
+		//lets have it just pick the least loaded TSD on any host
+		TsdPermit permit = TsdScheduler.get().acquire("suggest", null);
+		String server = permit.getAddress();
+		String hostname = permit.getEndpoint().getHost();
+		String uri = "http://" + server + api + "?" + suggestQuery;
 
-		CloseableHttpClient postman = HttpClientBuilder.create().build();
 		try {
 			HttpGet getRequest = new HttpGet(uri);
 
 			LOG.info("Sending query=" + uri + " to TSD running on host=" + hostname);
 
-			HttpResponse response = postman.execute(getRequest);
+			try (CloseableHttpResponse response = TsdClient.get().http().execute(getRequest)) {
+				if (response.getStatusLine().getStatusCode() != 200) {
+					EntityUtils.consumeQuietly(response.getEntity());
+					throw new RuntimeException("Failed : HTTP error code : "
+							+ response.getStatusLine().getStatusCode());
+				}
 
-			if (response.getStatusLine().getStatusCode() != 200) {
-				throw new RuntimeException("Failed : HTTP error code : "
-						+ response.getStatusLine().getStatusCode());
+				try (InputStream content = response.getEntity().getContent()) {
+					return reader.read(content);
+				}
 			}
-
-			List<String> dl = IOUtils.readLines(response.getEntity().getContent());
-			String result = StringUtils.join(dl, "");
-			LOG.info("Result={}", result);
-
-			return result;
 		} finally {
-			IOUtils.closeQuietly(postman);
-
-			TSDs.put(server);
-			LOG.info("Returned {} into the available queue", server);
+			permit.close();
+			LOG.info("Returned permit for {} to the scheduler", server);
 		}
 	}
 
 	/**
-	 * Chooses a random number between 0 - (host.length-1) inclusive
-	 * returns that index in the hosts list
-	 * @return
+	 * Reads the body of a successful response
 	 */
-	private String getRandomHost() {
-		return hosts[RANDOM_GENERATOR.nextInt(hosts.length)];
+	public interface ResponseReader<T> {
+		T read(InputStream content) throws IOException;
 	}
 }
@@ -0,0 +1,454 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import com.turn.splicer.merge.QueryAwareResultsMerger;
+import com.turn.splicer.merge.TsdbResult;
+import com.turn.splicer.tsdbutils.TSSubQuery;
+import com.turn.splicer.tsdbutils.TsQuery;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits queries over many values of a tag (e.g. {@code host=*} over thousands of
+ * hosts) into partitions, each over part of the values, which run on different
+ * TSDs in parallel.
+ *
+ * A query which groups by the tag gets disjoint series from every partition, which
+ * are simply put together. A downsampled query which aggregates over the tag is
+ * run grouped by the tag in each partition, and the partitions' series are then
+ * aggregated again into the query's groups. For avg the partitions are run with
+ * zimsum and with count, so the average is over all series with a point at each
+ * time.
+ *
+ * The values of the tag are those of the metric's series, as found by the TSD's
+ * lookup api in its meta table. They are looked up in the background, and the query is not partitioned
+ * until they are known. Nor is it if the tag has more than {@code partition.max.values}
+ * values, so the filters stay short. Partitions match the values with literal_or
+ * filters, and one more partition matches values not known yet with not_literal_or,
+ * so no series is left out.
+ */
+public class TagPartitioner {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TagPartitioner.class);
+
+	private static final String LITERAL_OR = "literal_or(";
+
+	private static final String NOT_LITERAL_OR = "not_literal_or(";
+
+	// aggregators which can be computed from their results over parts of the series
+	private static final Set<String> REAGGREGATABLE = ImmutableSet.of(
+			"sum", "zimsum", "min", "mimmin", "max", "mimmax", "count", "avg");
+
+	private static final Joiner PIPE = Joiner.on('|');
+
+	// max number of series asked from lookup. if there are more, we can't
+	// partition as we don't know all values of the tag
+	private static final int LOOKUP_LIMIT = Config.get().getInt("partition.lookup.limit", 5000);
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	// metric and tag pairs whose values are kept
+	private static final int MAX_LOOKUPS = 10000;
+
+	private static final TagPartitioner PARTITIONER = new TagPartitioner(
+			ImmutableSet.copyOf(Config.get().getStrings("partition.tags")),
+			Config.get().getInt("partition.count", 4),
+			Config.get().getInt("partition.min.ms", 30000),
+			Config.get().getInt("partition.max.values", 1000),
+			SlicePlanner.get(),
+			new CacheLoader<MetricTag, List<String>>() {
+				@Override
+				public List<String> load(MetricTag key) {
+					return lookupTagValues(key);
+				}
+			},
+			Config.get().getInt("partition.values.ttl.ms", 600000),
+			Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+					.setDaemon(true)
+					.setNameFormat("partition-lookup-thread-%d")
+					.build()));
+
+	private final Set<String> tags;
+
+	private final int count;
+
+	private final long minMs;
+
+	private final int maxValues;
+
+	private final SlicePlanner planner;
+
+	// values of each tag of each metric, sorted
+	private final LoadingCache<MetricTag, List<String>> values;
+
+	// lookups not done yet
+	private final Set<MetricTag> pending = Sets.newConcurrentHashSet();
+
+	private final Executor executor;
+
+	/**
+	 * @param lookup the values of a tag of a metric
+	 * @param executor runs lookups
+	 */
+	@VisibleForTesting
+	TagPartitioner(Set<String> tags, int count, long minMs, int maxValues, SlicePlanner planner,
+	               CacheLoader<MetricTag, List<String>> lookup, long ttlMs, Executor executor) {
+		this.tags = tags;
+		this.count = Math.max(1, count);
+		this.minMs = minMs;
+		this.maxValues = maxValues;
+		this.planner = planner;
+		this.executor = executor;
+		// queries keep using the old values while new ones are looked up
+		this.values = CacheBuilder.newBuilder()
+				.maximumSize(MAX_LOOKUPS)
+				.refreshAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+				.build(CacheLoader.asyncReloading(lookup, executor));
+	}
+
+	public static TagPartitioner get() {
+		return PARTITIONER;
+	}
+
+	/**
+	 * @return the partitions to run query in, or null if it should run as is: it
+	 *         has no tag which can be partitioned, or is not expected to take
+	 *         at least {@code partition.min.ms}
+	 */
+	@Nullable
+	public Partitions partition(TsQuery query) {
+		if (tags.isEmpty() || query.getQueries() == null || query.getQueries().size() != 1) {
+			return null;
+		}
+
+		TSSubQuery sub = query.getQueries().get(0);
+		String tag = null;
+		boolean groupBy = false;
+		for (String t: tags) {
+			String value = sub.getTags().get(t);
+			if ("*".equals(value)) {
+				tag = t;
+				groupBy = true;
+				break;
+			}
+			// can't be interpolated the same way, unless it is downsampled
+			if (value == null && sub.downsampleInterval() > 0
+					&& REAGGREGATABLE.contains(sub.getAggregator())) {
+				tag = t;
+			}
+		}
+		if (tag == null) {
+			return null;
+		}
+
+		long estimate = planner.estimatedMs(query);
+		if (estimate < minMs) {
+			return null;
+		}
+
+		MetricTag key = new MetricTag(sub.getMetric(), tag);
+		List<String> tagValues = values.getIfPresent(key);
+		if (tagValues == null) {
+			// the query isn't held up by the lookup, those after it are partitioned
+			lookUp(key);
+			return null;
+		}
+		if (tagValues.size() < count || tagValues.size() > maxValues) {
+			return null;
+		}
+
+		LOG.info("Expecting query to take {}ms, running it in {} partitions by tag={}",
+				estimate, count + 1, tag);
+		Partitions partitions = new Partitions(tag, groupBy);
+		String aggregator = sub.getAggregator();
+		if (!groupBy && aggregator.equals("avg")) {
+			// zimsum, so the sums are over the same points as the counts
+			partitions.add(query, tag, tagValues, count, "zimsum", partitions.queries);
+			partitions.add(query, tag, tagValues, count, "count", partitions.counts);
+		} else {
+			partitions.add(query, tag, tagValues, count, aggregator, partitions.queries);
+		}
+		return partitions;
+	}
+
+	/**
+	 * @return true if query is a partition of another query
+	 */
+	public static boolean isPartition(TsQuery query) {
+		if (query.getQueries() == null) {
+			return false;
+		}
+		for (TSSubQuery sub: query.getQueries()) {
+			for (String t: PARTITIONER.tags) {
+				String value = sub.getTags().get(t);
+				if (value != null && (value.startsWith(LITERAL_OR) || value.startsWith(NOT_LITERAL_OR))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Look up the values of tag of metric in the background, unless that is
+	 * underway already
+	 */
+	@VisibleForTesting
+	void lookUp(final MetricTag key) {
+		if (!pending.add(key)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					values.get(key);
+				} catch (ExecutionException | UncheckedExecutionException e) {
+					LOG.error("Could not look up values of " + key + ", not partitioning it", e.getCause());
+				} finally {
+					pending.remove(key);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Look up the series of the metric in the TSD's meta table (use_meta), rather
+	 * than scanning its data.
+	 *
+	 * @return the values of the tag in the series of the metric, or an empty list
+	 *         if there are more series than {@code partition.lookup.limit}
+	 */
+	private static List<String> lookupTagValues(final MetricTag key) {
+		try {
+			return new SuggestHttpWorker("/api/search/lookup", "m="
+					+ URLEncoder.encode(key.metric + "{" + key.tag + "=*}", "UTF-8")
+					+ "&use_meta=true&limit=" + LOOKUP_LIMIT).call(
+					new SuggestHttpWorker.ResponseReader<List<String>>() {
+						@Override
+						public List<String> read(InputStream content) throws IOException {
+							return readTagValues(content, key, LOOKUP_LIMIT);
+						}
+					});
+		} catch (Exception e) {
+			throw new RuntimeException("Could not look up values of " + key, e);
+		}
+	}
+
+	/**
+	 * Read the values of a tag out of a lookup response as it streams in, without
+	 * holding on to the series
+	 *
+	 * @return the values, sorted, or an empty list if there are limit or more series
+	 */
+	@VisibleForTesting
+	static List<String> readTagValues(InputStream content, MetricTag key, int limit) throws IOException {
+		Set<String> values = new TreeSet<>();
+		int series = 0;
+		try (JsonParser jp = JSON_FACTORY.createParser(content)) {
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Expected a lookup response, got " + jp.getCurrentToken());
+			}
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String field = jp.getCurrentName();
+				if (jp.nextToken() != JsonToken.START_ARRAY || !field.equals("results")) {
+					jp.skipChildren();
+					continue;
+				}
+				while (jp.nextToken() == JsonToken.START_OBJECT) {
+					series++;
+					while (jp.nextToken() == JsonToken.FIELD_NAME) {
+						field = jp.getCurrentName();
+						if (jp.nextToken() != JsonToken.START_OBJECT || !field.equals("tags")) {
+							jp.skipChildren();
+							continue;
+						}
+						while (jp.nextToken() == JsonToken.FIELD_NAME) {
+							String tag = jp.getCurrentName();
+							jp.nextToken();
+							if (tag.equals(key.tag)) {
+								values.add(jp.getText());
+							}
+						}
+					}
+				}
+			}
+		}
+
+		if (series >= limit) {
+			LOG.warn("More than partition.lookup.limit={} series of {}, not partitioning it", limit, key);
+			return Collections.emptyList();
+		}
+		LOG.info("Found {} values of {} in {} series to partition queries by", values.size(), key, series);
+		return new ArrayList<>(values);
+	}
+
+	public String config() {
+		return "tags=" + tags + ", count=" + count + ", minMs=" + minMs + ", maxValues=" + maxValues;
+	}
+
+	/**
+	 * A tag of a metric, whose values are looked up
+	 */
+	@VisibleForTesting
+	static final class MetricTag {
+
+		final String metric;
+
+		final String tag;
+
+		MetricTag(String metric, String tag) {
+			this.metric = metric;
+			this.tag = tag;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof MetricTag)) {
+				return false;
+			}
+			MetricTag other = (MetricTag) o;
+			return metric.equals(other.metric) && tag.equals(other.tag);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * metric.hashCode() + tag.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return metric + "{" + tag + "}";
+		}
+	}
+
+	/**
+	 * The partitions a query runs in, and how to combine their results
+	 */
+	public static class Partitions {
+
+		private final String tag;
+
+		private final boolean groupBy;
+
+		private final List<TsQuery> queries = new ArrayList<>();
+
+		// the partitions run with count, for avg
+		private final List<TsQuery> counts = new ArrayList<>();
+
+		Partitions(String tag, boolean groupBy) {
+			this.tag = tag;
+			this.groupBy = groupBy;
+		}
+
+		public String getTag() {
+			return tag;
+		}
+
+		public boolean isGroupBy() {
+			return groupBy;
+		}
+
+		/**
+		 * @return all queries to run, whose results are passed to {@link #combine}
+		 *         in the same order
+		 */
+		public List<TsQuery> queries() {
+			if (counts.isEmpty()) {
+				return Collections.unmodifiableList(queries);
+			}
+			List<TsQuery> all = new ArrayList<>(queries);
+			all.addAll(counts);
+			return all;
+		}
+
+		/**
+		 * @param results the results of {@link #queries()}
+		 * @return the results of the query
+		 */
+		public TsdbResult[] combine(QueryAwareResultsMerger merger, List<TsdbResult[]> results) {
+			if (groupBy) {
+				return merger.concat(results);
+			}
+			return merger.reaggregate(results.subList(0, queries.size()),
+					results.subList(queries.size(), results.size()), tag);
+		}
+
+		/**
+		 * Add count partitions of query by values of tag, and one for all other
+		 * values of tag
+		 */
+		private void add(TsQuery query, String tag, List<String> values, int count,
+		                 String aggregator, List<TsQuery> to) {
+			List<List<String>> parts = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				parts.add(new ArrayList<String>());
+			}
+			// similar values (e.g. hosts of the same cluster) go to different partitions
+			for (int i = 0; i < values.size(); i++) {
+				parts.get(i % count).add(values.get(i));
+			}
+
+			for (List<String> part: parts) {
+				to.add(partition(query, tag, LITERAL_OR + PIPE.join(part) + ")", aggregator));
+			}
+			to.add(partition(query, tag, NOT_LITERAL_OR + PIPE.join(values) + ")", aggregator));
+		}
+
+		private static TsQuery partition(TsQuery query, String tag, String filter, String aggregator) {
+			// with absolute times, so all partitions cover the same time range
+			TsQuery partition = TsQuery.sliceOf(query, query.startTime(), query.endTime());
+			TSSubQuery sub = partition.getQueries().get(0);
+			HashMap<String, String> tags = new HashMap<>(sub.getTags());
+			tags.put(tag, filter);
+			sub.setTags(tags);
+			sub.setAggregator(aggregator);
+			partition.validateAndSetQuery();
+			return partition;
+		}
+	}
+}
@@ -19,6 +19,8 @@ package com.turn.splicer.cache;
 import com.turn.splicer.Config;
 
 import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
@@ -80,6 +82,44 @@ public class JedisClient {
 		}
 	}
 
+	/**
+	 * Set key to value unless it is set already. The key expires after ttlMs.
+	 *
+	 * @return true if key was set, or caching is not enabled
+	 */
+	public boolean putIfAbsent(String key, String value, long ttlMs) {
+		if (CACHE_ENABLED && jedisPool != null) {
+			try (Jedis jedis = jedisPool.getResource()) {
+				return "OK".equals(jedis.set(key, value, "NX", "PX", ttlMs));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Set fields of the hash at key
+	 */
+	public void putAll(String key, Map<String, String> fields) {
+		if (CACHE_ENABLED && jedisPool != null && !fields.isEmpty()) {
+			try (Jedis jedis = jedisPool.getResource()) {
+				jedis.hmset(key, fields);
+			}
+		}
+	}
+
+	/**
+	 * @return all fields of the hash at key, empty if there is none
+	 */
+	public Map<String, String> getAll(String key) {
+		if (CACHE_ENABLED && jedisPool != null) {
+			try (Jedis jedis = jedisPool.getResource()) {
+				return jedis.hgetAll(key);
+			}
+		} else {
+			return Collections.emptyMap();
+		}
+	}
+
 	public String config() {
 		if (CACHE_ENABLED && jedisPool != null) {
 			return "running at=" + Config.get().getString("caching.hosts")
@@ -18,9 +18,15 @@ package com.turn.splicer.hbase;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -46,7 +52,8 @@ public class RegionChecker implements Closeable {
 	}
 
 	/**
-	 * Find the best region server for a given row key range
+	 * Find the best region server for a given row key range. If the rows are
+	 * split across regions, that is the server holding the most hours of them.
 	 *
 	 * @param metric name of the metric
 	 * @param startTime in seconds
@@ -54,18 +61,101 @@ public class RegionChecker implements Closeable {
 	 * @return the best region server to query for this metric, start, stop row key
 	 */
 	public String getBestRegionHost(String metric, long startTime, long endTime) {
-		final byte[] startRowKey = new byte[METRIC_WIDTH + TS_HOUR_WIDTH];
-		final byte[] endRowKey = new byte[METRIC_WIDTH + TS_HOUR_WIDTH];
+		byte[] metricKey = MetricsCache.get().getMetricKey(metric);
+		List<HRegionLocation> regions = getRegions(metricKey, startTime, endTime);
+		if (regions.size() == 1) {
+			LOG.debug("Found region hostname: " + regions.get(0).getHostname());
+			return regions.get(0).getHostname();
+		}
+		return bestHost(regions, metricKey, startTime, endTime);
+	}
 
+	/**
+	 * Find where regions holding rows of the metric start in a time range
+	 *
+	 * @param metric name of the metric
+	 * @param startTime in seconds
+	 * @param endTime in seconds
+	 * @return base hours (in seconds) after startTime, up to endTime, at which the
+	 *         rows of the metric move to another region, in order
+	 */
+	public List<Long> getRegionStarts(String metric, long startTime, long endTime) {
 		byte[] metricKey = MetricsCache.get().getMetricKey(metric);
+		List<Long> starts = new ArrayList<>();
+		for (HRegionLocation region: getRegions(metricKey, startTime, endTime)) {
+			long start = toBaseHour(region.getRegionInfo().getStartKey(), metricKey);
+			if (start > startTime && start <= endTime) {
+				starts.add(start);
+			}
+		}
+		return starts;
+	}
+
+	private List<HRegionLocation> getRegions(byte[] metricKey, long startTime, long endTime) {
+		byte[] startRowKey = rowKey(metricKey, startTime);
+		byte[] endRowKey = rowKey(metricKey, endTime);
+		try {
+			List<HRegionLocation> regions = table.getRegionsInRange(startRowKey, endRowKey);
+			if (regions == null || regions.isEmpty()) {
+				LOG.info("Regions is null");
+				throw new RegionCheckException("Could not find a host");
+			}
+			return regions;
+		} catch (IOException e) {
+			throw new RegionCheckException("Could not handle region server lookup", e);
+		}
+	}
+
+	private static byte[] rowKey(byte[] metricKey, long baseHour) {
+		final byte[] rowKey = new byte[METRIC_WIDTH + TS_HOUR_WIDTH];
+		System.arraycopy(metricKey, 0, rowKey, 0, METRIC_WIDTH);
+		Bytes.putInt(rowKey, METRIC_WIDTH, (int) baseHour);
+		return rowKey;
+	}
 
-		System.arraycopy(metricKey, 0, startRowKey, 0, METRIC_WIDTH);
-		System.arraycopy(metricKey, 0, endRowKey, 0, METRIC_WIDTH);
+	/**
+	 * @return the host holding the most hours of the metric's rows between
+	 *         startTime and endTime (in seconds)
+	 */
+	@VisibleForTesting
+	static String bestHost(List<HRegionLocation> regions, byte[] metricKey, long startTime, long endTime) {
+		Map<String, Long> hoursByHost = new HashMap<>();
+		String best = null;
+		long bestHours = -1;
+		for (HRegionLocation region: regions) {
+			HRegionInfo info = region.getRegionInfo();
+			long from = Math.max(startTime, toBaseHour(info.getStartKey(), metricKey));
+			long to = info.getEndKey().length == 0 ? endTime
+					: Math.min(endTime, toBaseHour(info.getEndKey(), metricKey));
+			// a region holding part of a single hour still counts for something
+			long hours = Math.max(0, to - from) / 3600 + 1;
 
-		Bytes.putInt(startRowKey, METRIC_WIDTH, (int) startTime);
-		Bytes.putInt(endRowKey, METRIC_WIDTH, (int) endTime);
+			Long sum = hoursByHost.get(region.getHostname());
+			hours += sum == null ? 0 : sum;
+			hoursByHost.put(region.getHostname(), hours);
+			if (hours > bestHours) {
+				best = region.getHostname();
+				bestHours = hours;
+			}
+		}
+		LOG.debug("Found region hostname: " + best);
+		return best;
+	}
 
-		return getBestRegionHost(startRowKey, endRowKey);
+	/**
+	 * @return the base hour (in seconds) of the row key of a region boundary, as
+	 *         seen from the rows of the metric: Long.MIN_VALUE if the key is before
+	 *         all of them and Long.MAX_VALUE if it is after all of them
+	 */
+	@VisibleForTesting
+	static long toBaseHour(byte[] key, byte[] metricKey) {
+		// missing bytes sort before any value
+		byte[] padded = Arrays.copyOf(key, Math.max(key.length, METRIC_WIDTH + TS_HOUR_WIDTH));
+		int cmp = Bytes.compareTo(padded, 0, METRIC_WIDTH, metricKey, 0, METRIC_WIDTH);
+		if (cmp != 0) {
+			return cmp < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+		}
+		return Bytes.toInt(padded, METRIC_WIDTH) & 0xFFFFFFFFL;
 	}
 
 	public String getBestRegionHost(byte[] startRowKey, byte[] endRowKey) {
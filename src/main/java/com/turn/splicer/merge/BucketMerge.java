@@ -0,0 +1,130 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer.merge;
+
+import com.turn.splicer.tsdbutils.TSSubQuery;
+
+/**
+ * How two partial values of a downsample bucket, each from a slice holding part of
+ * the bucket, make up the value of the whole bucket. That only works when both the
+ * downsampler and the aggregator can be merged in the same way, e.g. for a
+ * sum:1m-sum query the sum of the partial sums is the sum of the bucket.
+ *
+ * An avg of sum or count downsamples is stitched as a sum over a count: the
+ * partitions of such a query (see {@link QueryAwareResultsMerger#reaggregate}) run
+ * with zimsum, whose partial buckets are added up, and with count, whose partial
+ * buckets are combined as their max, before the sums are divided by the counts.
+ * That counts every series with a point in either part of a bucket as long as
+ * those of one part include those of the other, as they do for series which
+ * report steadily.
+ *
+ * Other buckets, of avg downsamples or of avg queries which are not partitioned,
+ * can't be stitched, as the TSD does not return how many points or series each
+ * part holds; nor can the first rate of a slice be recomputed, as the TSD does not
+ * return the raw values the rates are taken of. Those rely on slices being cut on
+ * whole buckets, and on rate slices being run from a little earlier (see
+ * HttpWorker#rateLookbackMs).
+ */
+public enum BucketMerge {
+
+	SUM {
+		@Override
+		double combine(double a, double b) {
+			return a + b;
+		}
+
+		@Override
+		long combine(long a, long b) {
+			return a + b;
+		}
+	},
+
+	MIN {
+		@Override
+		double combine(double a, double b) {
+			return Math.min(a, b);
+		}
+
+		@Override
+		long combine(long a, long b) {
+			return Math.min(a, b);
+		}
+	},
+
+	MAX {
+		@Override
+		double combine(double a, double b) {
+			return Math.max(a, b);
+		}
+
+		@Override
+		long combine(long a, long b) {
+			return Math.max(a, b);
+		}
+	};
+
+	abstract double combine(double a, double b);
+
+	abstract long combine(long a, long b);
+
+	/**
+	 * Combine the value of the i-th point of source into the last point of merged
+	 */
+	void combineInto(TsdbResult.Points merged, TsdbResult.Points source, int i) {
+		int last = merged.size() - 1;
+		if (merged.isInteger(last) && source.isInteger(i)) {
+			merged.set(last, combine(merged.longValue(last), source.longValue(i)));
+		} else {
+			merged.set(last, combine(merged.doubleValue(last), source.doubleValue(i)));
+		}
+	}
+
+	/**
+	 * @return how partial buckets of sub are merged, or null if they can't be (as
+	 *         for avg, or rates) or the query is not downsampled. The partial
+	 *         counts of a count query are combined with MAX, see above.
+	 */
+	public static BucketMerge of(TSSubQuery sub) {
+		String downsampler = sub.downsampleFunction();
+		String aggregator = sub.getAggregator();
+		if (downsampler == null || aggregator == null || sub.getRate()) {
+			return null;
+		}
+
+		switch (aggregator) {
+			case "sum":
+			case "zimsum":
+				if (downsampler.equals("sum") || downsampler.equals("zimsum")
+						|| downsampler.equals("count")) {
+					return SUM;
+				}
+				return null;
+			case "min":
+			case "mimmin":
+				return downsampler.equals("min") || downsampler.equals("mimmin") ? MIN : null;
+			case "max":
+			case "mimmax":
+				return downsampler.equals("max") || downsampler.equals("mimmax") ? MAX : null;
+			case "count":
+				// the number of series with a point in the bucket, whatever its value
+				return MAX;
+			default:
+				return null;
+		}
+	}
+}
@@ -22,10 +22,10 @@ import com.turn.splicer.tsdbutils.TsQuery;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -41,6 +41,7 @@ public class QueryAwareResultsMerger {
 
 	private final TsQuery query;
 	private final TSSubQuery subQuery;
+	private final BucketMerge bucketMerge;
 
 	public QueryAwareResultsMerger(TsQuery query)
 	{
@@ -52,8 +53,28 @@ public class QueryAwareResultsMerger {
 
 		this.query = query;
 		this.subQuery = query.getQueries().get(0);
+		this.bucketMerge = BucketMerge.of(subQuery);
 	}
 
+	/**
+	 * @return how downsample buckets split between slices are put back together,
+	 *         null if they can't be
+	 */
+	public BucketMerge bucketMerge()
+	{
+		return bucketMerge;
+	}
+
+	/**
+	 * Merge the results of the slices of the query. The fragments of each series
+	 * are collected from all slices first, then their points are merged in one pass
+	 * (see {@link SliceAccumulator}). If slices have a point at the same timestamp,
+	 * the partial buckets are combined if the query allows, otherwise the one from
+	 * the earlier slice in the list is kept.
+	 *
+	 * @param slices results of each slice, in time order
+	 * @return a result per series
+	 */
 	public TsdbResult[] merge(List<TsdbResult[]> slices)
 	{
 		if (slices == null || slices.size() == 0) {
@@ -63,16 +84,11 @@ public class QueryAwareResultsMerger {
 		// if only slice, return it
 		if (slices.size() == 1) return slices.get(0);
 
-		// if two slices, merge them
-		TsdbResult[] partialMerge = merge(slices.get(0), slices.get(1));
-
-		// for any remaining slices merge with partial result
-		for (int i=2; i < slices.size(); i++) {
-			partialMerge = merge(partialMerge, slices.get(i));
+		SliceAccumulator accumulator = new SliceAccumulator(this);
+		for (int i = 0; i < slices.size(); i++) {
+			accumulator.add(i, slices.get(i));
 		}
-
-		// return result
-		return partialMerge;
+		return accumulator.finish();
 	}
 
 	/**
@@ -90,11 +106,11 @@ public class QueryAwareResultsMerger {
 		if (left == null) left = new TsdbResult[]{};
 		if (right == null) right = new TsdbResult[]{};
 
-		Map<String, TsdbResult> leftIndex = index(left);
+		Map<SeriesKey, TsdbResult> leftIndex = index(left);
 		List<TsdbResult> mergeResults = new ArrayList<>();
 
 		for (TsdbResult leftItem: right) {
-			String ts = createTagString(leftItem);
+			SeriesKey ts = seriesKeyOf(leftItem);
 			TsdbResult rightItem = leftIndex.remove(ts);
 			if (rightItem == null) {
 				LOG.info("Did not find counterpart for ts={}", ts);
@@ -132,83 +148,185 @@ public class QueryAwareResultsMerger {
 		if (left == null) return right;
 		if (right == null) return left;
 
-		// initialize with same metadata, and empty point map
+		// initialize with same metadata, and the points of both
 		TsdbResult m = TsdbResult.copyMeta(left);
-		m.setDps(new TsdbResult.Points(new TreeMap<String, Object>()));
+		TsdbResult.Points leftPoints = left.getDps() != null ? left.getDps() : new TsdbResult.Points();
+		TsdbResult.Points rightPoints = right.getDps() != null ? right.getDps() : new TsdbResult.Points();
+		m.setDps(TsdbResult.Points.union(leftPoints, rightPoints));
 
-		// load left points
-		if (left.getDps() != null && left.getDps().getMap() != null) {
-			for (Map.Entry<String, Object> e : left.getDps().getMap().entrySet()) {
-				m.getDps().getMap().put(e.getKey(), e.getValue());
+		// return
+		return m;
+	}
+
+	/**
+	 * Put together the results of partitions of the query, each over different
+	 * values of a tag the query groups by. Their series are disjoint.
+	 *
+	 * @param partitions results of each partition
+	 * @return all of their series
+	 */
+	public TsdbResult[] concat(List<TsdbResult[]> partitions)
+	{
+		List<TsdbResult> all = new ArrayList<>();
+		for (TsdbResult[] partition: partitions) {
+			all.addAll(Arrays.asList(partition));
+		}
+		return all.toArray(new TsdbResult[all.size()]);
+	}
+
+	/**
+	 * Combine the results of partitions of the query, each over different values of
+	 * a tag the query aggregates over. The partitions group by the tag, so each of
+	 * their series is aggregated again with the series of the same group of the query.
+	 *
+	 * For avg, the partitions are run with zimsum and count, which both skip the
+	 * series without a point at a timestamp rather than interpolate them. The
+	 * average at a timestamp is then over the series with a point there. OpenTSDB's
+	 * avg interpolates the missing points, so the two differ where series have gaps.
+	 *
+	 * @param partials results of each partition, run with the query's aggregator, or
+	 *                 with zimsum if it is avg
+	 * @param counts if the query's aggregator is avg, results of each partition run
+	 *               with count. Otherwise empty.
+	 * @param tag the tag the partitions are split by
+	 * @return the results of the query
+	 */
+	public TsdbResult[] reaggregate(List<TsdbResult[]> partials, List<TsdbResult[]> counts, String tag)
+	{
+		String aggregator = subQuery.getAggregator();
+		boolean avg = aggregator.equals("avg");
+
+		// number of series behind each point, by series and timestamp
+		Map<SeriesKey, TsdbResult.Points> countIndex = new HashMap<>();
+		for (TsdbResult[] partition: counts) {
+			for (TsdbResult result: partition) {
+				countIndex.put(result.seriesKey(), result.getDps());
 			}
 		}
 
-		// load right points
-		if (right.getDps() != null && right.getDps().getMap() != null) {
-			for (Map.Entry<String, Object> e : right.getDps().getMap().entrySet()) {
-				m.getDps().getMap().put(e.getKey(), e.getValue());
+		Map<SeriesKey, TsdbResult> groups = new LinkedHashMap<>();
+		// for every group and timestamp: the aggregated value and the number of series
+		Map<SeriesKey, Map<Long, double[]>> points = new HashMap<>();
+
+		for (TsdbResult[] partition: partials) {
+			for (TsdbResult result: partition) {
+				SeriesKey key = seriesKeyOf(result);
+				TsdbResult group = groups.get(key);
+				if (group == null) {
+					group = TsdbResult.copyMeta(result);
+					group.getTags().getTags().remove(tag);
+					if (group.getAggregateTags() == null) {
+						group.setAggregateTags(new ArrayList<String>());
+					}
+					groups.put(key, group);
+					points.put(key, new TreeMap<Long, double[]>());
+				} else {
+					// tags which differ between the series are aggregated over too
+					Iterator<Map.Entry<String, String>> it = group.getTags().getTags().entrySet().iterator();
+					while (it.hasNext()) {
+						Map.Entry<String, String> e = it.next();
+						if (!e.getValue().equals(result.getTags().getTags().get(e.getKey()))) {
+							group.getAggregateTags().add(e.getKey());
+							it.remove();
+						}
+					}
+				}
+				if (!group.getAggregateTags().contains(tag)) {
+					group.getAggregateTags().add(tag);
+				}
+
+				TsdbResult.Points seriesCounts = avg ? countIndex.get(result.seriesKey()) : null;
+				Map<Long, double[]> groupPoints = points.get(key);
+				TsdbResult.Points dps = result.getDps();
+				for (int i = 0; i < dps.size(); i++) {
+					long timestamp = dps.timestamp(i);
+					double value = dps.doubleValue(i);
+					double n = 1;
+					if (avg) {
+						int count = seriesCounts != null ? seriesCounts.indexOf(timestamp) : -1;
+						if (count < 0) {
+							// we don't know how many series the sum is over
+							continue;
+						}
+						n = seriesCounts.doubleValue(count);
+					}
+
+					double[] point = groupPoints.get(timestamp);
+					if (point == null) {
+						groupPoints.put(timestamp, new double[]{value, n});
+					} else {
+						point[0] = aggregate(aggregator, point[0], value);
+						point[1] += n;
+					}
+				}
 			}
 		}
 
-		// return
-		return m;
+		List<TsdbResult> merged = new ArrayList<>();
+		for (Map.Entry<SeriesKey, TsdbResult> e: groups.entrySet()) {
+			Map<Long, double[]> groupPoints = points.get(e.getKey());
+			TsdbResult.Points dps = new TsdbResult.Points(groupPoints.size());
+			for (Map.Entry<Long, double[]> point: groupPoints.entrySet()) {
+				double[] p = point.getValue();
+				dps.add(point.getKey(), avg ? p[0] / p[1] : p[0]);
+			}
+			TsdbResult result = e.getValue();
+			result.setDps(dps);
+			merged.add(result);
+		}
+		return merged.toArray(new TsdbResult[merged.size()]);
+	}
+
+	private static double aggregate(String aggregator, double a, double b)
+	{
+		switch (aggregator) {
+			case "min":
+			case "mimmin":
+				return Math.min(a, b);
+			case "max":
+			case "mimmax":
+				return Math.max(a, b);
+			default:
+				// sum, zimsum, count, and the sums of avg
+				return a + b;
+		}
 	}
 
 	/**
-	 * Make an index (string -> tsdbresult) given a TsdbResults[] array, such that each
-	 * string key is unique string (created by {@link #createTagString(TsdbResult)} for each
-	 * item in the input array.
+	 * Make an index (key -> tsdbresult) given a TsdbResults[] array, such that each
+	 * key (made by {@link #seriesKeyOf(TsdbResult)}) is unique for each item in
+	 * the input array.
 	 *
 	 * @param results input array
-	 * @return map of tag string with its respective tsdb result object
+	 * @return map of series key with its respective tsdb result object
 	 */
-	protected Map<String, TsdbResult> index(TsdbResult[] results)
+	protected Map<SeriesKey, TsdbResult> index(TsdbResult[] results)
 	{
-		Map<String, TsdbResult> index = new HashMap<>();
+		Map<SeriesKey, TsdbResult> index = new HashMap<>();
 		for (TsdbResult result: results) {
-			index.put(createTagString(result), result);
+			index.put(seriesKeyOf(result), result);
 		}
 		return index;
 	}
 
-	@VisibleForTesting
-	protected String createTagString(TsdbResult result)
+	/**
+	 * @return the key of the series of result over the tags of the query only, which
+	 *         matches the same series in the results of all slices
+	 */
+	protected SeriesKey seriesKeyOf(TsdbResult result)
 	{
-		if (result.getTags() == null
-				|| result.getTags().getTags() == null
-				|| result.getTags().getTags().size() == 0) {
-			return NO_TAGS;
-		}
-
-		final Set<String> queryTags;
-		if (subQuery.getTags() == null || subQuery.getTags().size() == 0) {
-			queryTags = new HashSet<>();
-		} else {
-			queryTags = subQuery.getTags().keySet();
-		}
-
-		/**
-		 * we don't expect any tags in the query result. return {@link #NO_TAGS}
-		 */
-		if (queryTags.size() == 0) {
-			return NO_TAGS;
-		}
-
-		/**
-		 * if we are expecting tags in our result, then creates string based on them only
-		 */
-		Map<String, String> tagMap = result.getTags().getTags();
-		String[] tagKeys = tagMap.keySet().toArray(new String[tagMap.size()]);
-		Arrays.sort(tagKeys);
-
-		String tagString = "";
-		for (String tk: tagKeys) {
-			if (queryTags.contains(tk)) {
-				if (tagString.length() > 0) tagString += ",";
-				tagString += tk + "=" + tagMap.get(tk);
-			}
+		Map<String, String> queryTags = subQuery.getTags();
+		if (queryTags == null || queryTags.isEmpty()) {
+			// we don't expect any tags in the query result
+			return SeriesKey.NONE;
 		}
+		return result.seriesKey().only(queryTags.keySet());
+	}
 
-		return tagString;
+	@VisibleForTesting
+	protected String createTagString(TsdbResult result)
+	{
+		SeriesKey key = seriesKeyOf(result);
+		return key.size() == 0 ? NO_TAGS : key.toString();
 	}
 }
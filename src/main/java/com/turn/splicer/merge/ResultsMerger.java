@@ -16,19 +16,13 @@
 
 package com.turn.splicer.merge;
 
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -116,11 +110,7 @@ public class ResultsMerger {
 		result.setAggregateTags(first.getAggregateTags());
 		result.setTsuids(first.getTsuids());
 
-		Map<String, Object> points = new TreeMap<>();
-		points.putAll(first.getDps().getMap());
-		points.putAll(second.getDps().getMap());
-
-		result.setDps(new TsdbResult.Points(points));
+		result.setDps(TsdbResult.Points.union(first.getDps(), second.getDps()));
 		return result;
 	}
 
@@ -163,39 +153,26 @@ public class ResultsMerger {
 		return true;
 	}
 
+	/**
+	 * @return hash of the tags, aggregate tags and tsuids of result, regardless of
+	 *         their order. The hash of the tags is the one made when they were parsed.
+	 */
 	public long signatureOf(TsdbResult result) {
-		HashFunction hf = Hashing.goodFastHash(64);
-		Hasher hasher = hf.newHasher();
-
-		List<String> aggTags = result.getAggregateTags();
-		if (aggTags != null) {
-			List<String> sortedAggTags = Lists.newArrayList(aggTags);
-			Collections.sort(sortedAggTags);
-			for (String aggTag: sortedAggTags) {
-				hasher.putString(aggTag, Charset.forName("ISO-8859-1"));
-			}
-		}
+		long signature = result.seriesKey().hash64();
+		signature = 31 * signature + unorderedHash(result.getAggregateTags());
+		signature = 31 * signature + unorderedHash(result.getTsuids());
+		return signature;
+	}
 
-		Map<String, String> tags;
-		if (result.getTags() != null && (tags = result.getTags().getTags()) != null) {
-			List<String> tagTokens = Lists.newArrayList(tags.keySet());
-			Collections.sort(tagTokens);
-			for (String s: tagTokens) {
-				hasher.putString(s, Charset.forName("ISO-8859-1"));
-				hasher.putString(tags.get(s), Charset.forName("ISO-8859-1"));
-			}
+	private static long unorderedHash(List<String> strings) {
+		if (strings == null) {
+			return 0;
 		}
-
-		List<String> tsuids = result.getTsuids();
-		if (tsuids != null) {
-			List<String> sortedTsUIDs = Lists.newArrayList(tsuids);
-			Collections.sort(sortedTsUIDs);
-			for (String tsuid: sortedTsUIDs) {
-				hasher.putString(tsuid, Charset.forName("ISO-8859-1"));
-			}
+		long h = 1;
+		for (String s: strings) {
+			h += SeriesKey.mix(SeriesKey.hash(s));
 		}
-
-		return hasher.hash().asLong();
+		return h;
 	}
 
 }
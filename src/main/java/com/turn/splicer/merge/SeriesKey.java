@@ -0,0 +1,180 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer.merge;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Identifies a series by its tags. The key is made once per series, when its tags
+ * are parsed, along with a 64 bit hash of every tag. A key over some of the tags
+ * only, e.g. those a query groups by, is made from those hashes without hashing
+ * or sorting again.
+ *
+ * Tag names and values are interned, so the many copies of a tag in the results
+ * of all slices share one String.
+ */
+public final class SeriesKey {
+
+	public static final SeriesKey NONE = new SeriesKey(new String[0], new long[0]);
+
+	private static final Interner<String> DICTIONARY = Interners.newWeakInterner();
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// name, value, name, value, ... by name
+	private final String[] tags;
+
+	// hash of each name and value
+	private final long[] tagHashes;
+
+	private final long hash;
+
+	private SeriesKey(String[] tags, long[] tagHashes) {
+		this.tags = tags;
+		this.tagHashes = tagHashes;
+		long h = 0;
+		for (long tagHash: tagHashes) {
+			h += tagHash;
+		}
+		this.hash = h;
+	}
+
+	/**
+	 * @return the one copy of s, null if s is null
+	 */
+	public static String intern(String s) {
+		return s == null ? null : DICTIONARY.intern(s);
+	}
+
+	public static SeriesKey of(Map<String, String> tags) {
+		if (tags == null || tags.isEmpty()) {
+			return NONE;
+		}
+
+		String[] names = tags.keySet().toArray(new String[tags.size()]);
+		Arrays.sort(names);
+		String[] pairs = new String[names.length * 2];
+		long[] hashes = new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			pairs[2 * i] = intern(names[i]);
+			pairs[2 * i + 1] = intern(tags.get(names[i]));
+			hashes[i] = mix(hash(pairs[2 * i]) * 31 + hash(pairs[2 * i + 1]));
+		}
+		return new SeriesKey(pairs, hashes);
+	}
+
+	/**
+	 * @return the key over the tags with the given names only
+	 */
+	public SeriesKey only(Set<String> names) {
+		int n = 0;
+		for (int i = 0; i < tagHashes.length; i++) {
+			if (names.contains(tags[2 * i])) n++;
+		}
+		if (n == tagHashes.length) {
+			return this;
+		}
+		if (n == 0) {
+			return NONE;
+		}
+
+		String[] pairs = new String[n * 2];
+		long[] hashes = new long[n];
+		int j = 0;
+		for (int i = 0; i < tagHashes.length; i++) {
+			if (names.contains(tags[2 * i])) {
+				pairs[2 * j] = tags[2 * i];
+				pairs[2 * j + 1] = tags[2 * i + 1];
+				hashes[j++] = tagHashes[i];
+			}
+		}
+		return new SeriesKey(pairs, hashes);
+	}
+
+	/**
+	 * @return number of tags
+	 */
+	public int size() {
+		return tagHashes.length;
+	}
+
+	public long hash64() {
+		return hash;
+	}
+
+	/**
+	 * @return 64 bit FNV-1a hash of the chars of s
+	 */
+	static long hash(String s) {
+		if (s == null) {
+			return 0;
+		}
+		long h = FNV_OFFSET;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	// murmur3's finalizer, so that sums of hashes don't collide easily
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SeriesKey)) {
+			return false;
+		}
+		SeriesKey other = (SeriesKey) obj;
+		return hash == other.hash && Arrays.equals(tags, other.tags);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	/**
+	 * @return the tags as name=value, separated by commas
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < tags.length; i += 2) {
+			if (i > 0) sb.append(',');
+			sb.append(tags[i]).append('=').append(tags[i + 1]);
+		}
+		return sb.toString();
+	}
+}
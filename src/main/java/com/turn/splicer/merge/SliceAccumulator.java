@@ -0,0 +1,151 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer.merge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the results of the slices of a query as each slice comes in, in any
+ * order, sorting their series into fragments by series. Once all slices are in,
+ * {@link #finish()} merges the fragments of each series in slice order.
+ *
+ * Safe to add slices from many threads at once.
+ */
+public class SliceAccumulator {
+
+	private final QueryAwareResultsMerger merger;
+
+	// fragments of each series, by the key of the series. guarded by this
+	private final Map<SeriesKey, Series> series = new HashMap<>();
+
+	private int slices = 0;
+
+	private static class Fragment {
+		final int slice;
+		final TsdbResult result;
+
+		Fragment(int slice, TsdbResult result) {
+			this.slice = slice;
+			this.result = result;
+		}
+	}
+
+	private static class Series {
+		// where the series was first seen, to keep the order of the slices' results
+		int firstSlice;
+		int firstIndex;
+		final List<Fragment> fragments = new ArrayList<>(1);
+	}
+
+	private static final Comparator<Fragment> BY_SLICE = new Comparator<Fragment>() {
+		@Override
+		public int compare(Fragment a, Fragment b) {
+			return Integer.compare(a.slice, b.slice);
+		}
+	};
+
+	private static final Comparator<Series> BY_FIRST_SEEN = new Comparator<Series>() {
+		@Override
+		public int compare(Series a, Series b) {
+			int cmp = Integer.compare(a.firstSlice, b.firstSlice);
+			return cmp != 0 ? cmp : Integer.compare(a.firstIndex, b.firstIndex);
+		}
+	};
+
+	public SliceAccumulator(QueryAwareResultsMerger merger) {
+		this.merger = merger;
+	}
+
+	/**
+	 * @param slice index of the slice in time order
+	 * @param results the results of the slice, may be null
+	 */
+	public void add(int slice, TsdbResult[] results) {
+		if (results == null) {
+			results = new TsdbResult[]{};
+		}
+
+		SeriesKey[] keys = new SeriesKey[results.length];
+		for (int i = 0; i < results.length; i++) {
+			keys[i] = merger.seriesKeyOf(results[i]);
+		}
+
+		synchronized (this) {
+			for (int i = 0; i < results.length; i++) {
+				Series s = series.get(keys[i]);
+				if (s == null) {
+					s = new Series();
+					s.firstSlice = slice;
+					s.firstIndex = i;
+					series.put(keys[i], s);
+				} else if (slice < s.firstSlice) {
+					s.firstSlice = slice;
+					s.firstIndex = i;
+				}
+				s.fragments.add(new Fragment(slice, results[i]));
+			}
+			slices++;
+		}
+	}
+
+	/**
+	 * @return number of slices added so far
+	 */
+	public synchronized int size() {
+		return slices;
+	}
+
+	/**
+	 * Merge the fragments of each series. If slices have a point at the same
+	 * timestamp, a downsample bucket split between them, the partial values are
+	 * combined if the query allows (see {@link BucketMerge}), otherwise the one
+	 * from the earlier slice is kept.
+	 *
+	 * @return a result per series, in the order they first appear in the slices
+	 */
+	public synchronized TsdbResult[] finish() {
+		List<Series> all = new ArrayList<>(series.values());
+		Collections.sort(all, BY_FIRST_SEEN);
+
+		TsdbResult[] merged = new TsdbResult[all.size()];
+		for (int i = 0; i < merged.length; i++) {
+			List<Fragment> fragments = all.get(i).fragments;
+			if (fragments.size() == 1) {
+				merged[i] = fragments.get(0).result;
+				continue;
+			}
+
+			Collections.sort(fragments, BY_SLICE);
+			List<TsdbResult.Points> points = new ArrayList<>(fragments.size());
+			for (Fragment fragment: fragments) {
+				if (fragment.result.getDps() != null) {
+					points.add(fragment.result.getDps());
+				}
+			}
+			TsdbResult m = TsdbResult.copyMeta(fragments.get(0).result);
+			m.setDps(TsdbResult.Points.merge(points, merger.bucketMerge()));
+			merged[i] = m;
+		}
+		return merged;
+	}
+}
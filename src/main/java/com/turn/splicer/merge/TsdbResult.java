@@ -22,30 +22,28 @@ import com.turn.splicer.tsdbutils.expression.BadNumberException;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.module.SimpleModule;
-import com.fasterxml.jackson.databind.node.DoubleNode;
-import com.fasterxml.jackson.databind.node.FloatNode;
-import com.fasterxml.jackson.databind.node.IntNode;
-import com.fasterxml.jackson.databind.node.LongNode;
-import com.fasterxml.jackson.databind.node.NumericNode;
-import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.base.Preconditions;
 import com.google.common.math.DoubleMath;
 import org.slf4j.Logger;
@@ -86,7 +84,7 @@ public class TsdbResult {
 		copy.aggregateTags = source.getAggregateTags() != null ?
 				new ArrayList<String>(source.getAggregateTags()) : null;
 		copy.tsuids = source.getTsuids() != null ? new ArrayList<String>(source.getTsuids()) : null;
-		copy.dps = new Points(new HashMap<String, Object>());
+		copy.dps = new Points();
 		return copy;
 	}
 
@@ -101,6 +99,26 @@ public class TsdbResult {
 		}
 	}
 
+	/**
+	 * Parse a JSON array of results as it is read from the stream, without first
+	 * buffering the whole response. The stream is not closed.
+	 *
+	 * @param jsonArrayStream stream of a JSON array, as returned by the TSD
+	 * @return parsed results, empty if the stream held a null
+	 */
+	@Nonnull
+	public static TsdbResult[] fromStream(InputStream jsonArrayStream) {
+		try {
+			JsonParser jp = JSON_MAPPER.getFactory().createParser(jsonArrayStream);
+			jp.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+			TsdbResult[] tmp = JSON_MAPPER.readValue(jp, TsdbResult[].class);
+			if (tmp == null) tmp = new TsdbResult[]{};
+			return tmp;
+		} catch (IOException e) {
+			throw new MergeException("Could not deserialize json stream", e);
+		}
+	}
+
 	public static String toJson(TsdbResult[] result) throws IOException {
 		Preconditions.checkNotNull(result);
 		Preconditions.checkArgument(result.length > 0);
@@ -126,6 +144,13 @@ public class TsdbResult {
 		return getMetric();
 	}
 
+	/**
+	 * @return the key of the series over all of its tags
+	 */
+	public SeriesKey seriesKey() {
+		return tags != null && tags.getTags() != null ? tags.seriesKey() : SeriesKey.NONE;
+	}
+
 	public void setTags(Tags tags) {
 		this.tags = tags;
 	}
@@ -154,30 +179,263 @@ public class TsdbResult {
 		this.dps = dps;
 	}
 
+	/**
+	 * The points of a series, in columns: a sorted array of timestamps and an array
+	 * of values. TSDs return integer and floating point values, sometimes both in one
+	 * series, so each value is a long or the bits of a double, as told by a type bit.
+	 * A point takes 16 bytes, instead of a String key and a boxed value in a map.
+	 *
+	 * Timestamps are unique; adding a point at a timestamp which is already there
+	 * replaces it, as a put into a map would.
+	 */
 	public static class Points {
-		Map<String, Object> map;
 
+		private static final long[] EMPTY = new long[0];
+
+		// timestamps in ascending order, in the first size slots
+		private long[] timestamps;
+
+		// longs, or the raw bits of doubles
+		private long[] values;
+
+		// set for the points whose value is a double. null until there is one
+		private BitSet doubles;
+
+		private int size;
+
+		public Points() {
+			this(0);
+		}
+
+		public Points(int capacity) {
+			this.timestamps = capacity > 0 ? new long[capacity] : EMPTY;
+			this.values = capacity > 0 ? new long[capacity] : EMPTY;
+		}
+
+		/**
+		 * @param m points keyed by timestamp, as numbers or strings of numbers
+		 */
 		public Points(Map<String, Object> m) {
-			this.map = m;
+			this(m.size());
+			Map<Long, Object> sorted = new TreeMap<>();
+			for (Map.Entry<String, Object> e: m.entrySet()) {
+				sorted.put(Long.parseLong(e.getKey()), e.getValue());
+			}
+			for (Map.Entry<Long, Object> e: sorted.entrySet()) {
+				Object val = e.getValue();
+				if (val instanceof Double || val instanceof Float) {
+					add(e.getKey(), ((Number) val).doubleValue());
+				} else if (val instanceof Number) {
+					add(e.getKey(), ((Number) val).longValue());
+				} else {
+					throw new IllegalArgumentException("Unexpected type in map: "
+							+ (val == null ? null : val.getClass()));
+				}
+			}
 		}
 
+		/**
+		 * A copy of the points, keyed by timestamp in ascending order. Changes to
+		 * the map are not reflected in the points.
+		 */
 		public Map<String, Object> getMap() {
+			Map<String, Object> map = new LinkedHashMap<>();
+			for (int i = 0; i < size; i++) {
+				map.put(String.valueOf(timestamps[i]), value(i));
+			}
 			return map;
 		}
 
+		public int size() {
+			return size;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		public long timestamp(int i) {
+			return timestamps[i];
+		}
+
+		public boolean isInteger(int i) {
+			return doubles == null || !doubles.get(i);
+		}
+
+		/**
+		 * @return the value of the i-th point, which must be an integer
+		 */
+		public long longValue(int i) {
+			Preconditions.checkState(isInteger(i), "not an integer");
+			return values[i];
+		}
+
+		/**
+		 * @return the value of the i-th point, as a double even if it is an integer
+		 */
+		public double doubleValue(int i) {
+			return isInteger(i) ? values[i] : Double.longBitsToDouble(values[i]);
+		}
+
+		/**
+		 * @return the value of the i-th point, boxed as a Long or a Double
+		 */
+		public Number value(int i) {
+			return isInteger(i) ? (Number) values[i] : (Number) Double.longBitsToDouble(values[i]);
+		}
+
+		/**
+		 * @return the index of the point at timestamp, or a negative number if there is none
+		 */
+		public int indexOf(long timestamp) {
+			int ix = Arrays.binarySearch(timestamps, 0, size, timestamp);
+			return ix >= 0 ? ix : -1;
+		}
+
+		public void add(long timestamp, long value) {
+			put(timestamp, value, false);
+		}
+
+		public void add(long timestamp, double value) {
+			put(timestamp, Double.doubleToRawLongBits(value), true);
+		}
+
+		public void set(int i, long value) {
+			values[i] = value;
+			setDouble(i, false);
+		}
+
+		public void set(int i, double value) {
+			values[i] = Double.doubleToRawLongBits(value);
+			setDouble(i, true);
+		}
+
 		public void addPoint(DataPoint dp) {
 			try {
-				String timestamp = String.valueOf(dp.timestamp());
 				if (dp.isInteger()) {
-					map.put(timestamp, dp.longValue());
+					add(dp.timestamp(), dp.longValue());
 				} else {
-					map.put(timestamp, dp.doubleValue());
+					add(dp.timestamp(), dp.doubleValue());
 				}
 			} catch (BadNumberException be) {
 				logger.error("Caught BNE. Skipping data point.");
 			}
 		}
 
+		/**
+		 * @return a copy of the points with timestamps between from and to, both inclusive
+		 */
+		public Points range(long from, long to) {
+			int start = Arrays.binarySearch(timestamps, 0, size, from);
+			if (start < 0) start = -start - 1;
+			int end = Arrays.binarySearch(timestamps, 0, size, to);
+			end = end < 0 ? -end - 1 : end + 1;
+			return copy(start, Math.max(start, end), 0);
+		}
+
+		/**
+		 * @return a copy of the points, each moved by delta
+		 */
+		public Points shift(long delta) {
+			return copy(0, size, delta);
+		}
+
+		/**
+		 * Merge two series. Where both have a point at the same timestamp, the
+		 * one from second is kept.
+		 *
+		 * @return a new series with the points of both
+		 */
+		public static Points union(Points first, Points second) {
+			Points merged = new Points(first.size + second.size);
+			int i = 0, j = 0;
+			while (i < first.size || j < second.size) {
+				if (j == second.size || (i < first.size && first.timestamps[i] < second.timestamps[j])) {
+					merged.append(first, i++);
+				} else {
+					if (i < first.size && first.timestamps[i] == second.timestamps[j]) {
+						i++;
+					}
+					merged.append(second, j++);
+				}
+			}
+			return merged;
+		}
+
+		/**
+		 * Merge the fragments of a series, each already sorted, in a single pass. If
+		 * every fragment starts after the one before it ends, as the slices of a query
+		 * do, they are just concatenated. Where fragments have a point at the same
+		 * timestamp, the one from the fragment which comes first in the list is kept.
+		 *
+		 * @return a new series with the points of all fragments
+		 */
+		public static Points merge(List<Points> fragments) {
+			return merge(fragments, null);
+		}
+
+		/**
+		 * Merge the fragments of a series like {@link #merge(List)}, but where fragments
+		 * have a point at the same timestamp, i.e. each holds part of a downsample bucket
+		 * cut by a slice edge, their values are combined with bucketMerge.
+		 *
+		 * @param bucketMerge how to combine partial buckets, null to keep the first
+		 */
+		public static Points merge(List<Points> fragments, BucketMerge bucketMerge) {
+			int total = 0;
+			boolean disjoint = true;
+			long last = Long.MIN_VALUE;
+			for (Points fragment: fragments) {
+				if (fragment.isEmpty()) {
+					continue;
+				}
+				if (total > 0 && fragment.timestamps[0] <= last) {
+					disjoint = false;
+				}
+				last = fragment.timestamps[fragment.size - 1];
+				total += fragment.size;
+			}
+
+			Points merged = new Points(total);
+			if (disjoint) {
+				for (Points fragment: fragments) {
+					merged.appendAll(fragment);
+				}
+				return merged;
+			}
+
+			// k-way merge, taking the earliest point of any fragment, and on a tie the
+			// point of the first of them, combined with the others if bucketMerge is set
+			final Points[] sources = fragments.toArray(new Points[fragments.size()]);
+			final int[] next = new int[sources.length];
+			PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, sources.length),
+					new Comparator<Integer>() {
+						@Override
+						public int compare(Integer a, Integer b) {
+							int cmp = Long.compare(sources[a].timestamps[next[a]], sources[b].timestamps[next[b]]);
+							return cmp != 0 ? cmp : Integer.compare(a, b);
+						}
+					});
+			for (int k = 0; k < sources.length; k++) {
+				if (!sources[k].isEmpty()) {
+					heads.add(k);
+				}
+			}
+			while (!heads.isEmpty()) {
+				int k = heads.poll();
+				Points source = sources[k];
+				if (merged.isEmpty() || source.timestamps[next[k]] > merged.timestamps[merged.size - 1]) {
+					merged.append(source, next[k]);
+				} else if (bucketMerge != null) {
+					bucketMerge.combineInto(merged, source, next[k]);
+				}
+				if (++next[k] < source.size) {
+					heads.add(k);
+				}
+			}
+			return merged;
+		}
+
 		/**
 		 * Returns a DataPoint[] sorted by timestamp with no scaling of the values
 		 * @return
@@ -188,74 +446,144 @@ public class TsdbResult {
 		}
 
 		/**
-		 * Returns a DataPoint[] - sorted by timestamp - of the Points in the
-		 * map, will multiply the value of each point by the scaleFactor param
+		 * Returns a DataPoint[] - sorted by timestamp - of the Points, will
+		 * multiply the value of each point by the scaleFactor param
 		 *
-		 * uses a Treemap to get the sorting by timestamp
 		 * @param scaleFactor
 		 * @return
 		 * @throws Exception
 		 */
 		public DataPoint[] getDataPointsFromTreeMap(int scaleFactor) throws Exception {
-			TreeMap<String, Object> treeMap = new TreeMap(map);
-			DataPoint[] dps = new DataPoint[treeMap.size()];
-			int index = 0;
-			for(Map.Entry<String, Object> entry: treeMap.entrySet()) {
+			DataPoint[] dps = new DataPoint[size];
+			for (int i = 0; i < size; i++) {
 				MutableDataPoint dp = new MutableDataPoint();
-				Object val = entry.getValue();
-				long timestamp = Long.valueOf(entry.getKey());
-				if(val instanceof Double) {
-					dp.reset(timestamp, ((Double) val).doubleValue() * scaleFactor);
-				} else if(val instanceof Long) {
-					dp.reset(timestamp, ((Long) val).longValue() * scaleFactor);
+				if (isInteger(i)) {
+					dp.reset(timestamps[i], values[i] * scaleFactor);
 				} else {
-					throw new Exception("Unexpected type in map: " + val.getClass());
+					dp.reset(timestamps[i], Double.longBitsToDouble(values[i]) * scaleFactor);
 				}
-				dps[index] = dp;
-				index++;
+				dps[i] = dp;
 			}
 
 			return dps;
 		}
 
 		/**
-		 * Returns a DataPoint[] -sorted by timestamp - of the reciprocal of points
-		 * in the Points map eg 1 / value (needed for division)
+		 * Returns a DataPoint[] -sorted by timestamp - of the reciprocal of the
+		 * Points eg 1 / value (needed for division)
 		 * @return
 		 * @throws Exception
 		 */
 		public DataPoint[] getDataPointsFromTreeMapReciprocal() throws Exception {
-			TreeMap<String, Object> treeMap = new TreeMap(map);
-			DataPoint[] dps = new DataPoint[treeMap.size()];
-			int index = 0;
-			for(Map.Entry<String, Object> entry: treeMap.entrySet()) {
+			DataPoint[] dps = new DataPoint[size];
+			for (int i = 0; i < size; i++) {
 				MutableDataPoint dp = new MutableDataPoint();
-				Object val = entry.getValue();
-				long timestamp = Long.valueOf(entry.getKey());
-				if(val instanceof Double) {
-					double doubleVal = ((Double) val).doubleValue();
-					if (DoubleMath.fuzzyCompare(doubleVal, 0, 1E-7) != 0) {
-						dp.reset(timestamp, 1 / doubleVal);
+				if (isInteger(i)) {
+					long longVal = values[i];
+					if (longVal != 0) {
+						dp.reset(timestamps[i], 1 / longVal);
 					} else {
-						dp.reset(timestamp, Double.POSITIVE_INFINITY);
+						dp.reset(timestamps[i], Double.POSITIVE_INFINITY);
 					}
-				} else if(val instanceof Long) {
-					long longVal = ((Long) val).longValue();
-					if(longVal != 0) {
-						dp.reset(timestamp, 1 / longVal);
+				} else {
+					double doubleVal = Double.longBitsToDouble(values[i]);
+					if (DoubleMath.fuzzyCompare(doubleVal, 0, 1E-7) != 0) {
+						dp.reset(timestamps[i], 1 / doubleVal);
 					} else {
-						dp.reset(timestamp, Double.POSITIVE_INFINITY);
+						dp.reset(timestamps[i], Double.POSITIVE_INFINITY);
 					}
-				} else {
-					throw new Exception("Unexpected type in map: " + val.getClass());
 				}
-				dps[index] = dp;
-				index++;
+				dps[i] = dp;
 			}
 
 			return dps;
 		}
 
+		private void put(long timestamp, long value, boolean isDouble) {
+			int ix = size;
+			if (size > 0 && timestamp <= timestamps[size - 1]) {
+				ix = Arrays.binarySearch(timestamps, 0, size, timestamp);
+				if (ix >= 0) {
+					values[ix] = value;
+					setDouble(ix, isDouble);
+					return;
+				}
+				ix = -ix - 1;
+			}
+
+			// out of order points are rare, TSDs return them sorted
+			grow(size + 1);
+			System.arraycopy(timestamps, ix, timestamps, ix + 1, size - ix);
+			System.arraycopy(values, ix, values, ix + 1, size - ix);
+			if (doubles != null) {
+				for (int i = size; i > ix; i--) {
+					doubles.set(i, doubles.get(i - 1));
+				}
+			}
+			timestamps[ix] = timestamp;
+			values[ix] = value;
+			setDouble(ix, isDouble);
+			size++;
+		}
+
+		// add the i-th point of from, which must be after our last point
+		private void append(Points from, int i) {
+			grow(size + 1);
+			timestamps[size] = from.timestamps[i];
+			values[size] = from.values[i];
+			setDouble(size, !from.isInteger(i));
+			size++;
+		}
+
+		// add all points of from, which must all be after our last point
+		private void appendAll(Points from) {
+			grow(size + from.size);
+			System.arraycopy(from.timestamps, 0, timestamps, size, from.size);
+			System.arraycopy(from.values, 0, values, size, from.size);
+			if (from.doubles != null) {
+				for (int i = from.doubles.nextSetBit(0); i >= 0 && i < from.size; i = from.doubles.nextSetBit(i + 1)) {
+					setDouble(size + i, true);
+				}
+			}
+			size += from.size;
+		}
+
+		private Points copy(int start, int end, long delta) {
+			Points copy = new Points(end - start);
+			for (int i = start; i < end; i++) {
+				copy.append(this, i);
+				copy.timestamps[copy.size - 1] += delta;
+			}
+			return copy;
+		}
+
+		private void setDouble(int i, boolean isDouble) {
+			if (isDouble) {
+				if (doubles == null) {
+					doubles = new BitSet();
+				}
+				doubles.set(i);
+			} else if (doubles != null) {
+				doubles.clear(i);
+			}
+		}
+
+		private void grow(int capacity) {
+			if (capacity > timestamps.length) {
+				int length = Math.max(capacity, timestamps.length + (timestamps.length >> 1) + 1);
+				timestamps = Arrays.copyOf(timestamps, length);
+				values = Arrays.copyOf(values, length);
+			}
+		}
+
+		// give back the room left over from growing
+		private void trimToSize() {
+			if (size < timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, size);
+				values = Arrays.copyOf(values, size);
+			}
+		}
+
 		@Override
 		public boolean equals(Object obj) {
 			if(this == obj) {
@@ -268,26 +596,41 @@ public class TsdbResult {
 				return false;
 			}
 			Points toCompare = (Points) obj;
-			if(this.map != null) {
-				return this.map.equals(toCompare.map);
-			} else {
-				return toCompare.map == null;
+			if (size != toCompare.size) {
+				return false;
+			}
+			for (int i = 0; i < size; i++) {
+				if (timestamps[i] != toCompare.timestamps[i] || values[i] != toCompare.values[i]
+						|| isInteger(i) != toCompare.isInteger(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = size;
+			for (int i = 0; i < size; i++) {
+				hash = 31 * hash + (int) (timestamps[i] ^ values[i]);
 			}
+			return hash;
 		}
 
 		@Override
 		public String toString() {
 			return "Points{" +
-					"map=" + map +
+					"map=" + getMap() +
 					'}';
 		}
-
-
 	}
 
 	public static class Tags {
 		private Map<String, String> tags;
 
+		// made on first use, the tags must not change after that
+		private volatile SeriesKey key;
+
 		public Tags(Map<String, String> tags) {
 			this.tags = tags;
 		}
@@ -296,6 +639,17 @@ public class TsdbResult {
 			return tags;
 		}
 
+		/**
+		 * @return the key of the series with these tags
+		 */
+		public SeriesKey seriesKey() {
+			SeriesKey k = key;
+			if (k == null) {
+				key = k = SeriesKey.of(tags);
+			}
+			return k;
+		}
+
 		@Override
 		public boolean equals(Object obj) {
 			if(this == obj) {
@@ -347,17 +701,23 @@ public class TsdbResult {
 	public static class TagsDeserializer extends JsonDeserializer<Tags> {
 		@Override
 		public Tags deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException {
-			TreeNode n = jp.getCodec().readTree(jp);
+			if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+				throw new MergeException("Expected tags object, found " + jp.getCurrentToken());
+			}
+
 			Map<String, String> tags = new HashMap<>();
-			Iterator<String> namesIter = n.fieldNames();
-			while(namesIter.hasNext()) {
-				String field = namesIter.next();
-				TreeNode child = n.get(field);
-				if (child instanceof TextNode) {
-					tags.put(field, ((TextNode) child).asText());
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String field = jp.getCurrentName();
+				if (jp.nextToken() == JsonToken.VALUE_STRING) {
+					tags.put(SeriesKey.intern(field), SeriesKey.intern(jp.getText()));
+				} else {
+					jp.skipChildren();
 				}
 			}
-			return new Tags(tags);
+			Tags parsed = new Tags(tags);
+			// key the series while its tags are at hand
+			parsed.seriesKey();
+			return parsed;
 		}
 	}
 
@@ -366,55 +726,50 @@ public class TsdbResult {
 		@Override
 		public void serialize(Points value, JsonGenerator jgen, SerializerProvider provider)
 				throws IOException {
-			if (value.getMap() == null) {
-				return;
-			}
-
 			jgen.writeStartObject();
-			List<String> keys = new ArrayList<>(value.getMap().keySet());
-			if (!(value.getMap() instanceof TreeMap)) {
-				Collections.sort(keys);
-			}
-
-			for (String key: keys) {
-				Object o = value.getMap().get(key);
-				if (o instanceof Integer) {
-					jgen.writeNumberField(key, (Integer) o);
-				} else if (o instanceof Long) {
-					jgen.writeNumberField(key, (Long) o);
-				} else if (o instanceof Float ) {
-					jgen.writeNumberField(key, (Float) o);
-				} else if (o instanceof Double) {
-					jgen.writeNumberField(key, (Double) o);
+			for (int i = 0; i < value.size(); i++) {
+				jgen.writeFieldName(String.valueOf(value.timestamp(i)));
+				if (value.isInteger(i)) {
+					jgen.writeNumber(value.longValue(i));
+				} else {
+					jgen.writeNumber(value.doubleValue(i));
 				}
 			}
-
 			jgen.writeEndObject();
 		}
 	}
 
+	/**
+	 * Reads the dps object one token at a time, straight into the point columns
+	 */
 	public static class PointsDeserializer extends JsonDeserializer<Points> {
 		@Override
 		public Points deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException {
-			TreeNode n = jp.getCodec().readTree(jp);
-			Map<String, Object> points = new HashMap<>();
-			Iterator<String> namesIter = n.fieldNames();
-			while(namesIter.hasNext()) {
-				String field = namesIter.next();
-				TreeNode child = n.get(field);
-
-				Object o;
-				if (child instanceof DoubleNode || child instanceof FloatNode) {
-					o = ((NumericNode) child).doubleValue();
-				} else if (child instanceof IntNode || child instanceof LongNode) {
-					o = ((NumericNode) child).longValue();
-				} else {
-					throw new MergeException("Unsupported Type, " + child.getClass());
+			if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+				throw new MergeException("Expected dps object, found " + jp.getCurrentToken());
+			}
+
+			Points points = new Points();
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				long timestamp;
+				try {
+					timestamp = Long.parseLong(jp.getCurrentName());
+				} catch (NumberFormatException e) {
+					throw new MergeException("Bad timestamp, " + jp.getCurrentName(), e);
 				}
+				JsonToken token = jp.nextToken();
 
-				points.put(field, o);
+				if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+					points.add(timestamp, jp.getDoubleValue());
+				} else if (token == JsonToken.VALUE_NUMBER_INT
+						&& jp.getNumberType() != JsonParser.NumberType.BIG_INTEGER) {
+					points.add(timestamp, jp.getLongValue());
+				} else {
+					throw new MergeException("Unsupported Type, " + token);
+				}
 			}
-			return new Points(points);
+			points.trimToSize();
+			return points;
 		}
 	}
 
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+/**
+ * When to take a failing TSD out of rotation, and for how long.
+ *
+ * A TSD is ejected after {@code failures} failed requests in a row. It stays out
+ * for {@code baseMs}, doubling every time it is ejected again without a success
+ * in between, up to {@code maxMs}. Once the time is up it is back in rotation on
+ * probation: a single failure ejects it again.
+ */
+public class EjectionPolicy {
+
+	private final int failures;
+
+	private final long baseMs;
+
+	private final long maxMs;
+
+	public EjectionPolicy(int failures, long baseMs, long maxMs) {
+		this.failures = Math.max(1, failures);
+		this.baseMs = baseMs;
+		this.maxMs = Math.max(baseMs, maxMs);
+	}
+
+	/**
+	 * @return number of failures in a row that eject a TSD
+	 */
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @param ejections how many times in a row the TSD has been ejected, including this time
+	 * @return how long the TSD stays out of rotation
+	 */
+	public long backoffMs(int ejections) {
+		long backoff = baseMs;
+		for (int i = 1; i < ejections && backoff < maxMs; i++) {
+			backoff *= 2;
+		}
+		return Math.min(backoff, maxMs);
+	}
+
+	@Override
+	public String toString() {
+		return "failures=" + failures + ", baseMs=" + baseMs + ", maxMs=" + maxMs;
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Chooses which TSD a slice runs on.
+ *
+ * {@link TsdScheduler} narrows the choice down by topology (TSDs on the region
+ * server's host, then TSDs in the same group, then all TSDs) and asks the selector
+ * to pick one endpoint out of each tier. Implementations are called while the
+ * scheduler holds its lock, so they must be quick and must not block.
+ */
+public interface EndpointSelector {
+
+	/**
+	 * @param candidates endpoints which have spare capacity, never empty
+	 * @return the endpoint to use, or null to use none of them
+	 */
+	@Nullable
+	TsdEndpoint select(List<TsdEndpoint> candidates);
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import com.turn.splicer.Config;
+
+import java.util.Arrays;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Decides when a slice that is taking too long should be sent to a second TSD.
+ *
+ * A slice is hedged once it has run longer than a percentile ({@code tsd.hedge.percentile})
+ * of recently observed slice latencies. Hedges are paid for from a budget which every
+ * slice request tops up by {@code tsd.hedge.budget.percent} / 100, so hedges never add
+ * more than that fraction of extra load on the TSDs.
+ */
+public class HedgePolicy {
+
+	// number of recent latencies the percentile is computed over
+	private static final int WINDOW = 1024;
+
+	// don't hedge until we have seen this many latencies
+	private static final int MIN_SAMPLES = 20;
+
+	// the percentile is computed again once this many more latencies are in
+	private static final int REFRESH_SAMPLES = 64;
+
+	// max number of hedges that can be saved up while things are quiet
+	private static final double MAX_TOKENS = 10;
+
+	private static final HedgePolicy POLICY = new HedgePolicy(
+			Config.get().getBoolean("tsd.hedge.enable"),
+			Config.get().getInt("tsd.hedge.percentile", 95),
+			Config.get().getInt("tsd.hedge.min.delay.ms", 100),
+			Config.get().getInt("tsd.hedge.budget.percent", 5));
+
+	private final boolean enabled;
+	private final int percentile;
+	private final long minDelayMs;
+	private final double tokensPerRequest;
+
+	private final long[] latencies = new long[WINDOW];
+	private int count = 0;
+	private int next = 0;
+
+	// the hedge delay, as of the last REFRESH_SAMPLES latencies ago. -1 until computed
+	private long delayMs = -1;
+	private int sinceRefresh = 0;
+
+	private double tokens = 0;
+
+	@VisibleForTesting
+	HedgePolicy(boolean enabled, int percentile, long minDelayMs, int budgetPercent) {
+		this.enabled = enabled;
+		this.percentile = Math.max(1, Math.min(100, percentile));
+		this.minDelayMs = minDelayMs;
+		this.tokensPerRequest = budgetPercent / 100.0;
+	}
+
+	public static HedgePolicy get() {
+		return POLICY;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return how long to wait for a slice before hedging it, or -1 if we
+	 *         have not seen enough slices to tell what slow means
+	 */
+	public synchronized long hedgeDelayMs() {
+		if (count < MIN_SAMPLES) {
+			return -1;
+		}
+
+		if (delayMs < 0 || sinceRefresh >= REFRESH_SAMPLES) {
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			int ix = (int) Math.ceil(percentile / 100.0 * count) - 1;
+			delayMs = Math.max(minDelayMs, sorted[Math.max(0, ix)]);
+			sinceRefresh = 0;
+		}
+		return delayMs;
+	}
+
+	/**
+	 * Record how long the first request of a slice took, whether it succeeded,
+	 * failed or was aborted for its hedge. Hedges are not recorded.
+	 */
+	public synchronized void recordLatency(long latencyMs) {
+		latencies[next] = latencyMs;
+		next = (next + 1) % WINDOW;
+		if (count < WINDOW) count++;
+		sinceRefresh++;
+	}
+
+	/**
+	 * Called once for every (non hedge) slice request, to grow the budget
+	 */
+	public synchronized void onRequest() {
+		tokens = Math.min(MAX_TOKENS, tokens + tokensPerRequest);
+	}
+
+	/**
+	 * @return true if the budget allows another hedge, which is then paid for
+	 */
+	public synchronized boolean tryHedge() {
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Give back the budget paid by {@link #tryHedge()} for a hedge which could
+	 * not be sent after all
+	 */
+	public synchronized void refund() {
+		tokens = Math.min(MAX_TOKENS, tokens + 1);
+	}
+
+	public synchronized String config() {
+		return "enabled=" + enabled + ", percentile=" + percentile + ", samples=" + count
+				+ ", tokens=" + tokens;
+	}
+}
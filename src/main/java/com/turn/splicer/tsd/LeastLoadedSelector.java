@@ -0,0 +1,52 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks the endpoint which is expected to finish a new request first: the one
+ * with the fewest requests in flight (relative to its capacity), weighted by its
+ * recent response time. Endpoints which have not answered any request yet are
+ * tried first. Ties are broken at random so that idle endpoints share the load.
+ */
+public class LeastLoadedSelector implements EndpointSelector {
+
+	@Override
+	public TsdEndpoint select(List<TsdEndpoint> candidates) {
+		TsdEndpoint best = null;
+		double bestCost = Double.MAX_VALUE;
+		int ties = 0;
+		for (TsdEndpoint e: candidates) {
+			double cost = cost(e);
+			if (best == null || cost < bestCost) {
+				best = e;
+				bestCost = cost;
+				ties = 1;
+			} else if (cost == bestCost && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+				best = e;
+			}
+		}
+		return best;
+	}
+
+	static double cost(TsdEndpoint e) {
+		double load = (e.getInFlight() + 1.0) / e.getCapacity();
+		return load * Math.max(1.0, e.getLatencyMs());
+	}
+}
@@ -14,26 +14,18 @@
  * limitations under the License.
  */
 
-package com.turn.splicer.tsdbutils.expression;
+package com.turn.splicer.tsd;
 
-import com.turn.splicer.merge.TsdbResult;
-
-import java.util.concurrent.Callable;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * Callable class that evaluates an expressionTree
- * Created by bpeltz on 10/21/15.
+ * Picks any endpoint with spare capacity, ignoring load and latency.
  */
-public class ExpressionTreeWorker implements Callable<TsdbResult[]> {
-
-	private final ExpressionTree expressionTree;
-
-	public ExpressionTreeWorker(ExpressionTree et) {
-		this.expressionTree = et;
-	}
+public class RandomSelector implements EndpointSelector {
 
 	@Override
-	public TsdbResult[] call() throws Exception {
-		return expressionTree.evaluateAll();
+	public TsdEndpoint select(List<TsdEndpoint> candidates) {
+		return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
 	}
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Counts what the slice responses of the TSDs cost on the wire, and how well
+ * they compress.
+ */
+public class TransferStats {
+
+	private static final TransferStats STATS = new TransferStats();
+
+	private final AtomicLong slices = new AtomicLong();
+
+	private final AtomicLong compressedSlices = new AtomicLong();
+
+	private final AtomicLong wireBytes = new AtomicLong();
+
+	private final AtomicLong decodedBytes = new AtomicLong();
+
+	private final AtomicLong maxWireBytes = new AtomicLong();
+
+	private final AtomicLong maxDecodedBytes = new AtomicLong();
+
+	TransferStats() {}
+
+	public static TransferStats get() {
+		return STATS;
+	}
+
+	/**
+	 * Record a fully read slice response
+	 */
+	public void record(TsdResponseStream response) {
+		record(response.getWireBytes(), response.getDecodedBytes(), response.isCompressed());
+	}
+
+	void record(long wire, long decoded, boolean compressed) {
+		slices.incrementAndGet();
+		if (compressed) {
+			compressedSlices.incrementAndGet();
+		}
+		wireBytes.addAndGet(wire);
+		decodedBytes.addAndGet(decoded);
+		setMax(maxWireBytes, wire);
+		setMax(maxDecodedBytes, decoded);
+	}
+
+	/**
+	 * @return bytes of JSON per byte on the wire, 1 if nothing was compressed
+	 */
+	public double compressionRatio() {
+		long wire = wireBytes.get();
+		return wire == 0 ? 1 : (double) decodedBytes.get() / wire;
+	}
+
+	public void writeAsJson(JsonGenerator jgen) throws IOException {
+		long n = slices.get();
+		jgen.writeStartObject();
+		jgen.writeNumberField("slices", n);
+		jgen.writeNumberField("compressedSlices", compressedSlices.get());
+		jgen.writeNumberField("wireBytes", wireBytes.get());
+		jgen.writeNumberField("decodedBytes", decodedBytes.get());
+		jgen.writeNumberField("avgWireBytesPerSlice", n == 0 ? 0 : wireBytes.get() / n);
+		jgen.writeNumberField("avgDecodedBytesPerSlice", n == 0 ? 0 : decodedBytes.get() / n);
+		jgen.writeNumberField("maxWireBytesPerSlice", maxWireBytes.get());
+		jgen.writeNumberField("maxDecodedBytesPerSlice", maxDecodedBytes.get());
+		jgen.writeNumberField("compressionRatio", compressionRatio());
+		jgen.writeEndObject();
+	}
+
+	private static void setMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+
+	@Override
+	public String toString() {
+		return "slices=" + slices.get() + ", wireBytes=" + wireBytes.get()
+				+ ", decodedBytes=" + decodedBytes.get() + ", compressionRatio=" + compressionRatio();
+	}
+}
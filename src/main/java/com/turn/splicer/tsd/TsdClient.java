@@ -0,0 +1,160 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import com.turn.splicer.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Iterables;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide HTTP client used to talk to the TSDs. Connections are pooled
+ * and kept alive between slices, so a long query does not pay for a new TCP
+ * handshake (and a TIME_WAIT socket) per slice.
+ *
+ * The pool is sized from the same configuration {@link com.turn.splicer.SplicerMain}
+ * uses to register the TSDs: one route per host:port, each allowed as many
+ * connections as there are query permits for that port.
+ */
+public class TsdClient {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TsdClient.class);
+
+	// keep alive to use when the TSD does not send a Keep-Alive header
+	private static final int KEEPALIVE_MS = Config.get().getInt("tsd.http.keepalive.ms", 30000);
+
+	// connections idle for longer than this are closed by a background evictor
+	private static final int IDLE_EVICT_MS = Config.get().getInt("tsd.http.idle.evict.ms", 60000);
+
+	// pooled connections idle for longer than this are checked before being reused
+	private static final int VALIDATE_AFTER_MS = Config.get().getInt("tsd.http.validate.after.ms", 2000);
+
+	// give up on a TSD which does not accept a connection, or stops sending data, for this long
+	private static final int CONNECT_TIMEOUT_MS = Config.get().getInt("tsd.http.connect.timeout.ms", 5000);
+	private static final int SOCKET_TIMEOUT_MS = Config.get().getInt("tsd.http.socket.timeout.ms", 120000);
+
+	// ask the TSDs to compress slice responses
+	private static final boolean COMPRESSION = Config.get().getBoolean("tsd.http.compression");
+
+	private static final TsdClient CLIENT = new TsdClient();
+
+	protected final PoolingHttpClientConnectionManager connectionManager;
+
+	protected final CloseableHttpClient httpClient;
+
+	private TsdClient() {
+		int perRoute = Math.max(1, Config.get().getInt("tsd.queries.per.port", 1));
+		int routes = Math.max(1, numHosts() * numPorts());
+
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setDefaultMaxPerRoute(perRoute);
+		connectionManager.setMaxTotal(routes * perRoute);
+		connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_MS);
+
+		httpClient = HttpClientBuilder.create()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(new TsdKeepAliveStrategy())
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(CONNECT_TIMEOUT_MS)
+						.setSocketTimeout(SOCKET_TIMEOUT_MS)
+						.build())
+				// responses are decompressed by TsdResponseStream, which counts the bytes
+				.disableContentCompression()
+				.evictExpiredConnections()
+				.evictIdleConnections(IDLE_EVICT_MS, TimeUnit.MILLISECONDS)
+				.build();
+
+		LOG.info("Created TSD connection pool with routes={}, maxPerRoute={}", routes, perRoute);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				IOUtils.closeQuietly(httpClient);
+			}
+		}));
+	}
+
+	public static TsdClient get() {
+		return CLIENT;
+	}
+
+	/**
+	 * @return the shared client. Callers must close the responses they get from it
+	 *         (and not the client) so that connections go back to the pool.
+	 */
+	public CloseableHttpClient http() {
+		return httpClient;
+	}
+
+	/**
+	 * Ask the TSD to compress the response to request, if compression is enabled.
+	 * Read the response with {@link TsdResponseStream}.
+	 */
+	public void acceptCompressed(HttpRequest request) {
+		if (COMPRESSION) {
+			request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+		}
+	}
+
+	public String config() {
+		return "compression=" + COMPRESSION
+				+ ", routes=" + connectionManager.getRoutes().size()
+				+ ", maxTotal=" + connectionManager.getMaxTotal()
+				+ ", maxPerRoute=" + connectionManager.getDefaultMaxPerRoute()
+				+ ", stats=" + connectionManager.getTotalStats();
+	}
+
+	private static int numHosts() {
+		String hosts = Config.get().getString("tsd.hosts");
+		if (hosts == null) {
+			return 1;
+		}
+		return Iterables.size(Config.get().getStrings("tsd.hosts"));
+	}
+
+	private static int numPorts() {
+		return Config.get().getInt("tsd.end.port", 1) - Config.get().getInt("tsd.start.port", 0);
+	}
+
+	/**
+	 * Honors the Keep-Alive header sent by the TSD, falling back to a
+	 * configured value (instead of keeping the connection forever)
+	 */
+	static class TsdKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+					.getKeepAliveDuration(response, context);
+			return duration > 0 ? duration : KEEPALIVE_MS;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+/**
+ * A single TSD (host:port) which can run a limited number of queries at a time.
+ *
+ * The in-flight count, response time and health are only modified by
+ * {@link TsdScheduler} while holding its lock.
+ */
+public class TsdEndpoint {
+
+	private final String host;
+
+	private final String address;
+
+	private final int capacity;
+
+	private final String group;
+
+	int inFlight = 0;
+
+	// moving average of the response time, 0 until the first response
+	double latencyMs = 0;
+
+	// failed requests since the last success
+	int failures = 0;
+
+	// times the TSD was ejected since the last success
+	int ejections = 0;
+
+	// the TSD is out of rotation until this time (ms since epoch)
+	long ejectedUntilMs = 0;
+
+	public TsdEndpoint(String host, String address, int capacity) {
+		this(host, address, capacity, null);
+	}
+
+	public TsdEndpoint(String host, String address, int capacity, String group) {
+		this.host = host;
+		this.address = address;
+		this.capacity = capacity;
+		this.group = group;
+	}
+
+	/**
+	 * @return the host the TSD runs on (as returned by the region checker)
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return host:port of the TSD
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return number of queries this TSD may run concurrently
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the rack or group of hosts the TSD belongs to, or null if none is configured
+	 */
+	public String getGroup() {
+		return group;
+	}
+
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return moving average of the time this TSD took to answer a slice, 0 if unknown
+	 */
+	public double getLatencyMs() {
+		return latencyMs;
+	}
+
+	/**
+	 * @return true if the TSD has been taken out of rotation for failing
+	 */
+	public boolean isEjected() {
+		return isEjected(System.currentTimeMillis());
+	}
+
+	boolean isEjected(long nowMs) {
+		return nowMs < ejectedUntilMs;
+	}
+
+	boolean hasCapacity() {
+		return inFlight < capacity;
+	}
+
+	@Override
+	public String toString() {
+		return address + "[" + inFlight + "/" + capacity + ", " + Math.round(latencyMs) + "ms"
+				+ (isEjected() ? ", ejected" : "") + "]";
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+/**
+ * A request failed because of the TSD it was sent to (the TSD could not be
+ * reached, timed out or answered with a server error), so it may succeed on
+ * another TSD.
+ */
+public class TsdEndpointException extends RuntimeException {
+
+	private final String address;
+
+	public TsdEndpointException(String address, String msg) {
+		super(msg);
+		this.address = address;
+	}
+
+	public TsdEndpointException(String address, String msg, Exception e) {
+		super(msg, e);
+		this.address = address;
+	}
+
+	/**
+	 * @return host:port of the TSD that failed
+	 */
+	public String getAddress() {
+		return address;
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import com.turn.splicer.Config;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Probes every registered TSD in the background by asking for its version, and
+ * reports the outcome to the {@link TsdScheduler}. This finds TSDs which are down
+ * or hung before slices are sent to them, and lets ejected TSDs back into
+ * rotation once they answer again.
+ */
+public class TsdHealthChecker {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TsdHealthChecker.class);
+
+	// time between probes of a TSD. 0 disables probing.
+	private static final int INTERVAL_MS = Config.get().getInt("tsd.health.interval.ms", 5000);
+
+	// a probe which takes longer than this fails
+	private static final int TIMEOUT_MS = Config.get().getInt("tsd.health.timeout.ms", 2000);
+
+	private static final TsdHealthChecker CHECKER = new TsdHealthChecker();
+
+	private final RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectTimeout(TIMEOUT_MS)
+			.setSocketTimeout(TIMEOUT_MS)
+			.setConnectionRequestTimeout(TIMEOUT_MS)
+			.build();
+
+	private ScheduledExecutorService executor;
+
+	private TsdHealthChecker() {}
+
+	public static TsdHealthChecker get() {
+		return CHECKER;
+	}
+
+	/**
+	 * Start probing the TSDs registered with the scheduler so far
+	 */
+	public synchronized void start() {
+		if (INTERVAL_MS <= 0 || executor != null) {
+			return;
+		}
+
+		executor = Executors.newScheduledThreadPool(2, new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("tsd-health-check-%d")
+				.build());
+
+		for (final TsdEndpoint endpoint: TsdScheduler.get().endpoints()) {
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					probe(endpoint);
+				}
+			}, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void probe(TsdEndpoint endpoint) {
+		HttpGet get = new HttpGet("http://" + endpoint.getAddress() + "/api/version");
+		get.setConfig(requestConfig);
+		try (CloseableHttpResponse response = TsdClient.get().http().execute(get)) {
+			EntityUtils.consumeQuietly(response.getEntity());
+			int status = response.getStatusLine().getStatusCode();
+			if (status == 200) {
+				TsdScheduler.get().recordSuccess(endpoint);
+			} else {
+				LOG.warn("Health check of {} failed with HTTP {}", endpoint.getAddress(), status);
+				TsdScheduler.get().recordFailure(endpoint);
+			}
+		} catch (ConnectionPoolTimeoutException e) {
+			// every connection to the TSD is busy running queries, which says nothing about its health
+			LOG.debug("No connection free to probe {}", endpoint.getAddress());
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Health check of {} failed: {}", endpoint.getAddress(), e.toString());
+			TsdScheduler.get().recordFailure(endpoint);
+		}
+	}
+
+	public synchronized String config() {
+		return "intervalMs=" + INTERVAL_MS + ", timeoutMs=" + TIMEOUT_MS + ", running=" + (executor != null);
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The right to run one query on a {@link TsdEndpoint}. Closing the permit
+ * returns it to the {@link TsdScheduler} it came from. Closing it more than
+ * once has no effect.
+ */
+public class TsdPermit implements Closeable {
+
+	private final TsdScheduler scheduler;
+
+	private final TsdEndpoint endpoint;
+
+	private final AtomicBoolean released = new AtomicBoolean(false);
+
+	TsdPermit(TsdScheduler scheduler, TsdEndpoint endpoint) {
+		this.scheduler = scheduler;
+		this.endpoint = endpoint;
+	}
+
+	public TsdEndpoint getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * @return host:port of the TSD this permit is for
+	 */
+	public String getAddress() {
+		return endpoint.getAddress();
+	}
+
+	/**
+	 * Report how long the TSD took to answer the request made with this permit
+	 */
+	public void recordLatency(long latencyMs) {
+		scheduler.recordLatency(endpoint, latencyMs);
+	}
+
+	/**
+	 * Report that the TSD answered the request made with this permit
+	 */
+	public void recordSuccess() {
+		scheduler.recordSuccess(endpoint);
+	}
+
+	/**
+	 * Report that the request made with this permit failed because of the TSD
+	 */
+	public void recordFailure() {
+		scheduler.recordFailure(endpoint);
+	}
+
+	@Override
+	public void close() {
+		if (released.compareAndSet(false, true)) {
+			scheduler.release(endpoint);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.io.CountingInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.DeflateInputStream;
+
+/**
+ * Body of a TSD response, decompressed as it is read according to its
+ * Content-Encoding. Counts the bytes received from the TSD and the bytes
+ * they decompressed to.
+ */
+public class TsdResponseStream extends FilterInputStream {
+
+	private final CountingInputStream wire;
+
+	private final CountingInputStream decoded;
+
+	private final String encoding;
+
+	private TsdResponseStream(CountingInputStream wire, CountingInputStream decoded, String encoding) {
+		super(decoded);
+		this.wire = wire;
+		this.decoded = decoded;
+		this.encoding = encoding;
+	}
+
+	public static TsdResponseStream open(HttpEntity entity) throws IOException {
+		Header header = entity.getContentEncoding();
+		String encoding = header == null ? "identity" : header.getValue().trim().toLowerCase(Locale.ROOT);
+
+		CountingInputStream wire = new CountingInputStream(entity.getContent());
+		InputStream in;
+		switch (encoding) {
+			case "gzip":
+			case "x-gzip":
+				in = new GZIPInputStream(wire, 8192);
+				break;
+			case "deflate":
+				in = new DeflateInputStream(wire);
+				break;
+			case "identity":
+				in = wire;
+				break;
+			default:
+				wire.close();
+				throw new IOException("Unsupported Content-Encoding: " + encoding);
+		}
+		return new TsdResponseStream(wire, new CountingInputStream(in), encoding);
+	}
+
+	/**
+	 * @return bytes read from the TSD so far
+	 */
+	public long getWireBytes() {
+		return wire.getCount();
+	}
+
+	/**
+	 * @return bytes of JSON read so far
+	 */
+	public long getDecodedBytes() {
+		return decoded.getCount();
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	public boolean isCompressed() {
+		return !encoding.equals("identity");
+	}
+}
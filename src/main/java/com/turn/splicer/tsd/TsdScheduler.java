@@ -0,0 +1,623 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import com.turn.splicer.Config;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out the right to run a query on a TSD.
+ *
+ * Every registered TSD (host:port) can run a fixed number of queries at a time.
+ * A caller asks for a permit on the host that holds its data. If all TSDs on that
+ * host are busy, it waits up to {@code tsd.permit.failover.ms} for one of them,
+ * and then takes a permit from another host in the same group ({@code tsd.host.groups}),
+ * or failing that from any host. If there is no capacity anywhere,
+ * it waits for up to {@code tsd.permit.timeout.ms} before giving up with a
+ * {@link TsdUnavailableException}.
+ *
+ * Released permits are handed directly to waiting callers. Waiters are grouped by
+ * query and the queries take turns, so a query with hundreds of slices queued up
+ * cannot starve a query that arrives after it.
+ *
+ * Which of the TSDs in a tier gets the slice is up to the {@link EndpointSelector}
+ * configured with {@code tsd.selector}.
+ *
+ * TSDs which keep failing are ejected from rotation for a while, as decided by the
+ * {@link EjectionPolicy} ({@code tsd.eject.*}). Failures are reported by the callers
+ * holding permits, and by the {@link TsdHealthChecker}.
+ */
+public class TsdScheduler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TsdScheduler.class);
+
+	// weight of the latest response time in an endpoint's moving average
+	private static final double LATENCY_ALPHA = 0.3;
+
+	private static final TsdScheduler SCHEDULER = new TsdScheduler(
+			Config.get().getInt("tsd.permit.timeout.ms", 60000),
+			Config.get().getInt("tsd.permit.failover.ms", 1000),
+			selector(Config.get().getString("tsd.selector")),
+			groups(Config.get().getString("tsd.host.groups")),
+			new EjectionPolicy(
+					Config.get().getInt("tsd.eject.failures", 3),
+					Config.get().getInt("tsd.eject.base.ms", 5000),
+					Config.get().getInt("tsd.eject.max.ms", 300000)));
+
+	private final long timeoutMs;
+
+	// time to wait for the preferred host before failing over. negative disables failover.
+	private final long failoverMs;
+
+	private final EndpointSelector selector;
+
+	// host -> name of the rack or group it belongs to
+	private final Map<String, String> groupByHost;
+
+	private final EjectionPolicy ejectionPolicy;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Map<String, List<TsdEndpoint>> endpointsByHost = new LinkedHashMap<>();
+
+	// query id -> waiters of that query, in order of the query's turn
+	private final LinkedHashMap<String, Deque<Waiter>> waiters = new LinkedHashMap<>();
+
+	@VisibleForTesting
+	TsdScheduler(long timeoutMs, long failoverMs) {
+		this(timeoutMs, failoverMs, new LeastLoadedSelector(), Collections.<String, String>emptyMap());
+	}
+
+	@VisibleForTesting
+	TsdScheduler(long timeoutMs, long failoverMs, EndpointSelector selector,
+	             Map<String, String> groupByHost) {
+		this(timeoutMs, failoverMs, selector, groupByHost, new EjectionPolicy(3, 5000, 300000));
+	}
+
+	@VisibleForTesting
+	TsdScheduler(long timeoutMs, long failoverMs, EndpointSelector selector,
+	             Map<String, String> groupByHost, EjectionPolicy ejectionPolicy) {
+		this.timeoutMs = timeoutMs;
+		this.failoverMs = failoverMs;
+		this.selector = selector;
+		this.groupByHost = groupByHost;
+		this.ejectionPolicy = ejectionPolicy;
+	}
+
+	public static TsdScheduler get() {
+		return SCHEDULER;
+	}
+
+	/**
+	 * Register a TSD
+	 * @param host host the TSD runs on
+	 * @param address host:port of the TSD
+	 * @param capacity number of queries the TSD can run at the same time
+	 */
+	public void register(String host, String address, int capacity) {
+		lock.lock();
+		try {
+			List<TsdEndpoint> endpoints = endpointsByHost.get(host);
+			if (endpoints == null) {
+				endpoints = new ArrayList<>();
+				endpointsByHost.put(host, endpoints);
+			}
+			endpoints.add(new TsdEndpoint(host, address, capacity, groupByHost.get(host)));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return hosts which have at least one TSD registered
+	 */
+	public Set<String> hosts() {
+		lock.lock();
+		try {
+			return Collections.unmodifiableSet(new TreeSet<>(endpointsByHost.keySet()));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return max time to wait for a permit, unless the caller gives another timeout
+	 */
+	public long getTimeoutMs() {
+		return timeoutMs;
+	}
+
+	/**
+	 * @return all registered TSDs
+	 */
+	public List<TsdEndpoint> endpoints() {
+		lock.lock();
+		try {
+			List<TsdEndpoint> all = new ArrayList<>();
+			for (List<TsdEndpoint> endpoints: endpointsByHost.values()) {
+				all.addAll(endpoints);
+			}
+			return all;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Same as {@link #acquire(String, String, long)} with the default timeout.
+	 */
+	public TsdPermit acquire(String queryId, @Nullable String host) throws InterruptedException {
+		return acquire(queryId, host, timeoutMs);
+	}
+
+	/**
+	 * Same as {@link #acquire(String, String, Set, long)} with no endpoints excluded.
+	 */
+	public TsdPermit acquire(String queryId, @Nullable String host, long timeoutMs)
+			throws InterruptedException
+	{
+		return acquire(queryId, host, Collections.<String>emptySet(), timeoutMs);
+	}
+
+	/**
+	 * Same as {@link #acquire(String, String, Set, long)} with the default timeout.
+	 */
+	public TsdPermit acquire(String queryId, @Nullable String host, Set<String> excludeAddresses)
+			throws InterruptedException
+	{
+		return acquire(queryId, host, excludeAddresses, timeoutMs);
+	}
+
+	/**
+	 * Acquire a permit to run a query
+	 *
+	 * @param queryId identifies the query the request belongs to. Used to take turns
+	 *                between queries when waiting.
+	 * @param host preferred host. if null, or no usable TSD is registered on it, any host is used.
+	 * @param excludeAddresses host:port of TSDs that must not be used, e.g. because
+	 *                         the request already failed on them
+	 * @param timeoutMs max time to wait for a permit
+	 * @return a permit, which must be closed once the request is done
+	 * @throws TsdUnavailableException if no permit could be acquired in time, or all
+	 *                                 TSDs are excluded
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public TsdPermit acquire(String queryId, @Nullable String host, Set<String> excludeAddresses,
+	                         long timeoutMs) throws InterruptedException
+	{
+		long now = System.nanoTime();
+		final long deadline = now + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+		lock.lock();
+		try {
+			if (endpointsByHost.isEmpty()) {
+				throw new TsdUnavailableException("No TSDs registered");
+			}
+			if (!anyUsable(endpoints(), excludeAddresses, false)) {
+				throw new TsdUnavailableException("All TSDs are excluded: " + excludeAddresses);
+			}
+
+			// don't wait for a host whose TSDs are all ejected or excluded
+			boolean anyHost = host == null || !endpointsByHost.containsKey(host)
+					|| !anyUsable(endpointsByHost.get(host), excludeAddresses, true);
+			TsdEndpoint endpoint = pick(host, anyHost, excludeAddresses);
+			if (endpoint == null && !anyHost && failoverMs == 0) {
+				anyHost = true;
+				endpoint = pick(host, true, excludeAddresses);
+			}
+
+			if (endpoint != null) {
+				endpoint.inFlight++;
+				return new TsdPermit(this, endpoint);
+			}
+
+			long failoverAt = failoverMs > 0 ? now + TimeUnit.MILLISECONDS.toNanos(failoverMs) : deadline;
+			Waiter waiter = new Waiter(host, anyHost, excludeAddresses, lock.newCondition());
+			enqueue(queryId, waiter);
+			try {
+				while (waiter.granted == null) {
+					now = System.nanoTime();
+					if (!waiter.anyHost && failoverMs >= 0 && now >= failoverAt) {
+						// waited long enough for the preferred host, try the others
+						waiter.anyHost = true;
+						endpoint = pick(host, true, excludeAddresses);
+						if (endpoint != null) {
+							LOG.debug("Failing over from host={} to {}", host, endpoint);
+							dequeue(queryId, waiter);
+							endpoint.inFlight++;
+							waiter.granted = endpoint;
+							break;
+						}
+					}
+					if (now >= deadline) {
+						break;
+					}
+					long waitUntil = waiter.anyHost ? deadline : Math.min(deadline, failoverAt);
+					waiter.condition.awaitNanos(waitUntil - now);
+				}
+			} catch (InterruptedException e) {
+				// the permit may have been handed to us just before the interrupt
+				if (waiter.granted != null) {
+					release(waiter.granted);
+				} else {
+					dequeue(queryId, waiter);
+				}
+				throw e;
+			}
+
+			if (waiter.granted == null) {
+				dequeue(queryId, waiter);
+				throw new TsdUnavailableException("No TSD available for host=" + host
+						+ " within " + timeoutMs + "ms. endpoints=" + endpointsByHost.values());
+			}
+
+			return new TsdPermit(this, waiter.granted);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Acquire a permit without waiting. Prefers a TSD on host, then any other host.
+	 *
+	 * @param host preferred host, can be null
+	 * @param excludeAddress host:port of a TSD that must not be used, can be null
+	 * @return a permit, or null if no TSD has spare capacity right now
+	 */
+	@Nullable
+	public TsdPermit tryAcquire(@Nullable String host, @Nullable String excludeAddress) {
+		lock.lock();
+		try {
+			Set<String> exclude = excludeAddress == null
+					? Collections.<String>emptySet() : Collections.singleton(excludeAddress);
+			TsdEndpoint endpoint = pick(host, true, exclude);
+			if (endpoint == null) {
+				return null;
+			}
+			endpoint.inFlight++;
+			return new TsdPermit(this, endpoint);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return a permit for endpoint. If someone is waiting for it, the permit is
+	 * handed to the waiter of the next query in turn.
+	 */
+	void release(TsdEndpoint endpoint) {
+		lock.lock();
+		try {
+			endpoint.inFlight--;
+			handOff(endpoint);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Give spare capacity of endpoint to the waiters of the queries in turn. Must hold lock.
+	 */
+	private void handOff(TsdEndpoint endpoint) {
+		if (endpoint.isEjected(System.currentTimeMillis())) {
+			return;
+		}
+
+		while (endpoint.hasCapacity()) {
+			Waiter w = nextWaiter(endpoint);
+			if (w == null) {
+				return;
+			}
+			endpoint.inFlight++;
+			w.granted = endpoint;
+			w.condition.signal();
+		}
+	}
+
+	/**
+	 * Remove and return the first waiter of the first query (in turn) which can use endpoint.
+	 * That query goes to the back of the line. Must hold lock.
+	 */
+	@Nullable
+	private Waiter nextWaiter(TsdEndpoint endpoint) {
+		Iterator<Map.Entry<String, Deque<Waiter>>> queries = waiters.entrySet().iterator();
+		while (queries.hasNext()) {
+			Map.Entry<String, Deque<Waiter>> e = queries.next();
+			Iterator<Waiter> it = e.getValue().iterator();
+			while (it.hasNext()) {
+				Waiter w = it.next();
+				if (w.accepts(endpoint)) {
+					it.remove();
+					queries.remove();
+					// the query goes to the back of the line for its next waiter
+					if (!e.getValue().isEmpty()) {
+						waiters.put(e.getKey(), e.getValue());
+					}
+					return w;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A request to endpoint succeeded. Clears its failures, unless it is ejected
+	 * (a health probe must not cut an ejection short).
+	 */
+	void recordSuccess(TsdEndpoint endpoint) {
+		lock.lock();
+		try {
+			if (endpoint.isEjected(System.currentTimeMillis())) {
+				return;
+			}
+			boolean readmitted = endpoint.ejections > 0;
+			endpoint.failures = 0;
+			endpoint.ejections = 0;
+			if (readmitted) {
+				LOG.info("TSD {} is healthy again", endpoint.getAddress());
+				handOff(endpoint);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A request to endpoint failed. Ejects it if it failed too often, or if it
+	 * fails while on probation after an ejection.
+	 */
+	void recordFailure(TsdEndpoint endpoint) {
+		lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			if (endpoint.isEjected(now)) {
+				return;
+			}
+			endpoint.failures++;
+			if (endpoint.failures >= ejectionPolicy.getFailures() || endpoint.ejections > 0) {
+				endpoint.ejections++;
+				endpoint.failures = 0;
+				long backoff = ejectionPolicy.backoffMs(endpoint.ejections);
+				endpoint.ejectedUntilMs = now + backoff;
+				LOG.warn("Ejecting TSD {} for {}ms after {} ejections in a row",
+						endpoint.getAddress(), backoff, endpoint.ejections);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Fold the response time of a request into the endpoint's moving average
+	 */
+	void recordLatency(TsdEndpoint endpoint, long latencyMs) {
+		lock.lock();
+		try {
+			if (endpoint.latencyMs == 0) {
+				endpoint.latencyMs = latencyMs;
+			} else {
+				endpoint.latencyMs += LATENCY_ALPHA * (latencyMs - endpoint.latencyMs);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Pick an endpoint with spare capacity. Must hold lock.
+	 *
+	 * Let the selector choose from the TSDs on host first. If anyHost is set,
+	 * fall back to the TSDs in the same group as host, and then to all TSDs.
+	 */
+	@Nullable
+	private TsdEndpoint pick(String host, boolean anyHost, Set<String> excludeAddresses) {
+		List<TsdEndpoint> candidates = new ArrayList<>();
+		if (host != null && endpointsByHost.containsKey(host)) {
+			TsdEndpoint best = select(endpointsByHost.get(host), excludeAddresses, candidates);
+			if (best != null || !anyHost) {
+				return best;
+			}
+		}
+
+		if (!anyHost) {
+			return null;
+		}
+
+		String group = host == null ? null : groupByHost.get(host);
+		if (group != null) {
+			List<TsdEndpoint> sameGroup = new ArrayList<>();
+			for (List<TsdEndpoint> endpoints: endpointsByHost.values()) {
+				if (group.equals(endpoints.get(0).getGroup())) {
+					sameGroup.addAll(endpoints);
+				}
+			}
+			TsdEndpoint best = select(sameGroup, excludeAddresses, candidates);
+			if (best != null) {
+				return best;
+			}
+		}
+
+		List<TsdEndpoint> all = new ArrayList<>();
+		for (List<TsdEndpoint> endpoints: endpointsByHost.values()) {
+			all.addAll(endpoints);
+		}
+		return select(all, excludeAddresses, candidates);
+	}
+
+	@Nullable
+	private TsdEndpoint select(List<TsdEndpoint> endpoints, Set<String> excludeAddresses,
+	                           List<TsdEndpoint> candidates) {
+		long now = System.currentTimeMillis();
+		candidates.clear();
+		for (TsdEndpoint e: endpoints) {
+			if (!e.hasCapacity()) continue;
+			if (e.isEjected(now)) continue;
+			if (excludeAddresses.contains(e.getAddress())) continue;
+			candidates.add(e);
+		}
+		return candidates.isEmpty() ? null : selector.select(candidates);
+	}
+
+	/**
+	 * @return true if one of endpoints is not excluded (and, if checkEjected is set, not ejected)
+	 */
+	private static boolean anyUsable(List<TsdEndpoint> endpoints, Set<String> excludeAddresses,
+	                                 boolean checkEjected) {
+		long now = System.currentTimeMillis();
+		for (TsdEndpoint e: endpoints) {
+			if (excludeAddresses.contains(e.getAddress())) continue;
+			if (checkEjected && e.isEjected(now)) continue;
+			return true;
+		}
+		return false;
+	}
+
+	private void enqueue(String queryId, Waiter waiter) {
+		Deque<Waiter> queue = waiters.get(queryId);
+		if (queue == null) {
+			queue = new ArrayDeque<>();
+			waiters.put(queryId, queue);
+		}
+		queue.add(waiter);
+	}
+
+	private void dequeue(String queryId, Waiter waiter) {
+		Deque<Waiter> queue = waiters.get(queryId);
+		if (queue != null) {
+			queue.remove(waiter);
+			if (queue.isEmpty()) {
+				waiters.remove(queryId);
+			}
+		}
+	}
+
+	public String config() {
+		lock.lock();
+		try {
+			int waiting = 0;
+			for (Deque<Waiter> q: waiters.values()) {
+				waiting += q.size();
+			}
+			return "hosts=" + endpointsByHost.keySet() + ", groups=" + groupByHost
+					+ ", selector=" + selector.getClass().getSimpleName()
+					+ ", eject=[" + ejectionPolicy + "]"
+					+ ", waitingQueries=" + waiters.size() + ", waiting=" + waiting
+					+ ", timeoutMs=" + timeoutMs + ", failoverMs=" + failoverMs;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@VisibleForTesting
+	Map<String, Integer> inFlightByAddress() {
+		lock.lock();
+		try {
+			Map<String, Integer> m = new HashMap<>();
+			for (List<TsdEndpoint> endpoints: endpointsByHost.values()) {
+				for (TsdEndpoint e: endpoints) {
+					m.put(e.getAddress(), e.inFlight);
+				}
+			}
+			return m;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param name "least-loaded" (the default), "random" or the class name of an
+	 *             {@link EndpointSelector} with a no-arg constructor
+	 */
+	@VisibleForTesting
+	static EndpointSelector selector(@Nullable String name) {
+		if (name == null || name.isEmpty() || name.equals("least-loaded")) {
+			return new LeastLoadedSelector();
+		} else if (name.equals("random")) {
+			return new RandomSelector();
+		}
+
+		try {
+			return Class.forName(name).asSubclass(EndpointSelector.class).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new IllegalArgumentException("Bad tsd.selector: " + name, e);
+		}
+	}
+
+	/**
+	 * @param spec comma separated host=group pairs, can be null
+	 * @return host -> group
+	 */
+	@VisibleForTesting
+	static Map<String, String> groups(@Nullable String spec) {
+		Map<String, String> groups = new HashMap<>();
+		if (spec == null) {
+			return groups;
+		}
+
+		for (String pair: spec.split(",")) {
+			pair = pair.trim();
+			if (pair.isEmpty()) continue;
+			int ix = pair.indexOf('=');
+			if (ix <= 0 || ix == pair.length() - 1) {
+				throw new IllegalArgumentException("Bad tsd.host.groups entry: " + pair);
+			}
+			groups.put(pair.substring(0, ix).trim(), pair.substring(ix + 1).trim());
+		}
+		return groups;
+	}
+
+	private static class Waiter {
+		final String host;
+		final Set<String> excludeAddresses;
+		final Condition condition;
+		boolean anyHost;
+		TsdEndpoint granted;
+
+		Waiter(String host, boolean anyHost, Set<String> excludeAddresses, Condition condition) {
+			this.host = host;
+			this.anyHost = anyHost;
+			this.excludeAddresses = excludeAddresses;
+			this.condition = condition;
+		}
+
+		boolean accepts(TsdEndpoint endpoint) {
+			if (excludeAddresses.contains(endpoint.getAddress())) {
+				return false;
+			}
+			return anyHost || endpoint.getHost().equals(host);
+		}
+	}
+}
@@ -24,9 +24,7 @@ import com.turn.splicer.tsdbutils.expression.SeekableViewDataPointImpl;
 
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -82,15 +80,7 @@ public class Functions {
 			TsdbResult[] inputPoints = queryResults.get(0);
 
 			for(TsdbResult input: inputPoints) {
-				Map<String, Object> inputMap = input.getDps().getMap();
-				Map<String, Object> outputMap = new HashMap<String, Object>();
-				for (String oldKey : inputMap.keySet()) {
-					Long newtime = Long.parseLong(oldKey) + (Long) timeshift;
-					String newKey = Long.toString(newtime);
-					Object val = inputMap.get(oldKey);
-					outputMap.put(newKey, val);
-				}
-				input.setDps(new TsdbResult.Points(outputMap));
+				input.setDps(input.getDps().shift(timeshift));
 			}
 
 			return inputPoints;
@@ -441,18 +431,12 @@ public class Functions {
 		}
 
 		private TsdbResult absoluteValue(TsdbResult input) {
-			Map<String, Object> inputMap = input.getDps().getMap();
-			for(String key : inputMap.keySet()) {
-				Object val = inputMap.get(key);
-				if(val instanceof Double) {
-					double value = Math.abs((double) val);
-					inputMap.put(key, value);
-				} else if (val instanceof Long) {
-					long value = Math.abs((long) val);
-					inputMap.put(key, value);
+			TsdbResult.Points points = input.getDps();
+			for (int i = 0; i < points.size(); i++) {
+				if (points.isInteger(i)) {
+					points.set(i, Math.abs(points.longValue(i)));
 				} else {
-					throw new RuntimeException("Expected type Long or Double instead found: "
-							+ val.getClass());
+					points.set(i, Math.abs(points.doubleValue(i)));
 				}
 			}
 
@@ -494,17 +478,12 @@ public class Functions {
 		private TsdbResult scale(TsdbResult input, double scaleFactor) {
 			//now iterate over all points in the input map and add them to output
 
-			Map<String, Object> inputMap = input.getDps().getMap();
-			for (String key : inputMap.keySet()) {
-				Object val = inputMap.get(key);
-				if (val instanceof Double) {
-					inputMap.put(key, new Double(((Double) val).doubleValue() * scaleFactor));
-				} else if (val instanceof Long) {
-					inputMap.put(key, new Long(((Long) val).longValue() * (long) scaleFactor));
+			TsdbResult.Points points = input.getDps();
+			for (int i = 0; i < points.size(); i++) {
+				if (points.isInteger(i)) {
+					points.set(i, points.longValue(i) * (long) scaleFactor);
 				} else {
-					//throw an exception
-					throw new RuntimeException("Expected type Long or Double instead found: "
-							+ val.getClass());
+					points.set(i, points.doubleValue(i) * scaleFactor);
 				}
 			}
 
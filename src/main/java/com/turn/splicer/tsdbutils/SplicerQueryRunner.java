@@ -16,23 +16,40 @@
 
 package com.turn.splicer.tsdbutils;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
 import com.turn.splicer.Const;
+import com.turn.splicer.BatchHttpWorker;
+import com.turn.splicer.Config;
 import com.turn.splicer.HttpWorker;
+import com.turn.splicer.QueryCancelledException;
+import com.turn.splicer.QueryContext;
+import com.turn.splicer.SingleFlight;
+import com.turn.splicer.SliceExecutor;
+import com.turn.splicer.SlicePlanner;
 import com.turn.splicer.Splicer;
+import com.turn.splicer.TagPartitioner;
+import com.turn.splicer.hbase.MetricLookupException;
+import com.turn.splicer.hbase.RegionCheckException;
 import com.turn.splicer.hbase.RegionChecker;
 import com.turn.splicer.merge.QueryAwareResultsMerger;
-import com.turn.splicer.merge.ResultsMerger;
+import com.turn.splicer.merge.SliceAccumulator;
 import com.turn.splicer.merge.TsdbResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * "Slices" a single TsQuery into multiple TsQuery objects that span the TsQuery
@@ -43,78 +60,316 @@ public class SplicerQueryRunner {
 
 	private static final Logger LOG = LoggerFactory.getLogger(SplicerQueryRunner.class);
 
-	private static AtomicInteger POOL_NUMBER = new AtomicInteger(0);
+	private static final Function<List<TsdbResult[]>, TsdbResult[]> FIRST =
+			new Function<List<TsdbResult[]>, TsdbResult[]>() {
+				@Override
+				public TsdbResult[] apply(List<TsdbResult[]> results) {
+					return results.get(0);
+				}
+			};
 
-	private static final int NUM_THREADS_PER_POOL = 10;
+	// max number of consecutive slices fetched from a TSD with one request
+	private static final int BATCH_SIZE = Math.max(1, Config.get().getInt("slice.batch.size", 1));
 
-	private static ThreadFactoryBuilder THREAD_FACTORY_BUILDER = new ThreadFactoryBuilder()
-			.setDaemon(false)
-			.setPriority(Thread.NORM_PRIORITY);
-
-	public TsdbResult[] sliceAndRunQuery(TsQuery tsQuery, RegionChecker checker)
+	/**
+	 * @param context the query's deadline and cancellation. Slices still running when
+	 *                it is cancelled are aborted, and a {@link QueryCancelledException}
+	 *                is thrown.
+	 */
+	public TsdbResult[] sliceAndRunQuery(TsQuery tsQuery, RegionChecker checker, QueryContext context)
 			throws IOException
 	{
-		long duration = tsQuery.endTime() - tsQuery.startTime();
-		if (duration > TimeUnit.MILLISECONDS.convert(2, TimeUnit.HOURS)) {
-			Splicer splicer = new Splicer(tsQuery);
-			List<TsQuery> slices = splicer.sliceQuery();
-			return runQuerySlices(tsQuery, slices, checker);
+		return context.await(sliceAndRunQueryAsync(tsQuery, checker, context));
+	}
+
+	/**
+	 * Dispatch the slices of a query without waiting for them. The slices are
+	 * spliced together on the {@link SliceExecutor#computeExecutor()} once they
+	 * are all in.
+	 *
+	 * @return the results of the query, which fails with a {@link QueryCancelledException}
+	 *         if the query is cancelled
+	 */
+	public ListenableFuture<TsdbResult[]> sliceAndRunQueryAsync(TsQuery tsQuery, RegionChecker checker,
+	                                                            QueryContext context)
+	{
+		TagPartitioner.Partitions partitions = TagPartitioner.get().partition(tsQuery);
+		if (partitions != null) {
+			return runPartitions(tsQuery, partitions, checker, context);
+		}
+
+		long width = SlicePlanner.get().sliceWidth(tsQuery);
+		List<TsQuery> slices;
+		if (SlicePlanner.get().shouldSlice(tsQuery, width)) {
+			Splicer splicer = new Splicer(tsQuery, width);
+			slices = splicer.sliceQuery(regionStarts(tsQuery, checker));
 		} else {
-			// only one query. run it in the servlet thread
-			HttpWorker worker = new HttpWorker(tsQuery, checker);
-			try {
-				String json = worker.call();
-				return TsdbResult.fromArray(json);
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
+			// only one query, run it as a single slice
+			slices = Collections.singletonList(tsQuery);
 		}
+		return Futures.transform(runQuerySlices(Collections.singletonList(tsQuery),
+				Collections.singletonList(slices), checker, context), FIRST);
 	}
 
-	private TsdbResult[] runQuerySlices(TsQuery query, List<TsQuery> slices, RegionChecker checker)
+	/**
+	 * Run the partitions of a query, each of them sliced in time as the query would
+	 * be, and combine their results
+	 */
+	private ListenableFuture<TsdbResult[]> runPartitions(final TsQuery query,
+	                                                     final TagPartitioner.Partitions partitions,
+	                                                     RegionChecker checker, QueryContext context)
 	{
-		String poolName = String.format("splice-pool-%d", POOL_NUMBER.incrementAndGet());
+		long width = SlicePlanner.get().sliceWidth(query);
+		boolean slice = SlicePlanner.get().shouldSlice(query, width);
+		List<Long> cuts = slice ? regionStarts(query, checker) : Collections.<Long>emptyList();
+
+		List<List<TsQuery>> slices = new ArrayList<>();
+		for (TsQuery partition: partitions.queries()) {
+			slices.add(slice ? new Splicer(partition, width).sliceQuery(cuts)
+					: Collections.singletonList(partition));
+		}
+		LOG.info("Running query in {} partitions of {} {} slices each", partitions.queries().size(),
+				partitions.getTag(), slices.get(0).size());
 
-		ThreadFactory factory = THREAD_FACTORY_BUILDER
-				.setNameFormat(poolName + "-thread-%d")
-				.build();
+		return Futures.transform(runQuerySlices(partitions.queries(), slices, checker, context),
+				new Function<List<TsdbResult[]>, TsdbResult[]>() {
+					@Override
+					public TsdbResult[] apply(List<TsdbResult[]> results) {
+						return partitions.combine(new QueryAwareResultsMerger(query), results);
+					}
+				}, SliceExecutor.get().computeExecutor());
+	}
 
-		ExecutorService svc = Executors.newFixedThreadPool(NUM_THREADS_PER_POOL, factory);
-		ResultsMerger merger = new ResultsMerger();
-		QueryAwareResultsMerger qamerger = new QueryAwareResultsMerger(query);
+	/**
+	 * @return times (in ms) at which the rows of the query's metric move to another
+	 *         region, so that slices can be cut there and each run on a TSD next to
+	 *         all of its rows. Slices are routed by the first metric of the query.
+	 */
+	private List<Long> regionStarts(TsQuery query, RegionChecker checker)
+	{
+		String metric = query.getQueries().get(0).getMetric();
+		List<Long> starts = new ArrayList<>();
+		if (metric == null) {
+			return starts;
+		}
 		try {
-			List<Future<String>> results = new ArrayList<>();
-			for (TsQuery q : slices) {
-				results.add(svc.submit(new HttpWorker(q, checker)));
+			for (long start: checker.getRegionStarts(metric,
+					query.startTime() / 1000, query.endTime() / 1000)) {
+				starts.add(start * 1000);
+			}
+		} catch (RegionCheckException | MetricLookupException e) {
+			// slices still work, just not all of their rows are local
+			LOG.warn("Could not find region boundaries for metric=" + metric, e);
+		}
+		LOG.debug("Rows of metric={} are split across regions at {}", metric, starts);
+		return starts;
+	}
+
+	/**
+	 * Run the slices of one or more queries in parallel on the {@link SliceExecutor}.
+	 * Each slice is sorted into the series of its query as soon as it comes in, in
+	 * whatever order the slices complete, and the series are spliced together once
+	 * all slices are in. Slices which are already being fetched for another query
+	 * are not fetched again; they wait for the results of the other query instead,
+	 * moving the fetch up if it is still queued at a less urgent priority (see
+	 * {@link SingleFlight}).
+	 *
+	 * @param slices the slices of each of the queries
+	 * @return the results of each of the queries
+	 */
+	private ListenableFuture<List<TsdbResult[]>> runQuerySlices(final List<TsQuery> queries,
+	                                                            List<List<TsQuery>> slices,
+	                                                            RegionChecker checker,
+	                                                            final QueryContext context)
+	{
+		List<ListenableFuture<?>> batches = new ArrayList<>();
+		List<ListenableFuture<?>> folds = new ArrayList<>();
+		final List<SliceAccumulator> accumulators = new ArrayList<>();
+		for (int q = 0; q < queries.size(); q++) {
+			List<ListenableFuture<TsdbResult[]>> results = new ArrayList<>();
+			List<TsQuery> batch = new ArrayList<>();
+			List<String> keys = new ArrayList<>();
+			List<SettableFuture<TsdbResult[]>> leaders = new ArrayList<>();
+			for (TsQuery slice: slices.get(q)) {
+				String key = slice.cacheKey();
+				SettableFuture<TsdbResult[]> leader = SettableFuture.create();
+				ListenableFuture<TsdbResult[]> inFlight = SingleFlight.get().lead(key, leader,
+						context.getPriority());
+				if (inFlight != null) {
+					// batches are runs of consecutive slices we fetch ourselves
+					submitBatch(queries.get(q), batch, keys, leaders, checker, context, batches, results);
+					results.add(follow(inFlight, slice, checker, context));
+					continue;
+				}
+
+				batch.add(slice);
+				keys.add(key);
+				leaders.add(leader);
+				if (batch.size() == BATCH_SIZE) {
+					submitBatch(queries.get(q), batch, keys, leaders, checker, context, batches, results);
+				}
+			}
+			submitBatch(queries.get(q), batch, keys, leaders, checker, context, batches, results);
+
+			SliceAccumulator accumulator = new SliceAccumulator(new QueryAwareResultsMerger(queries.get(q)));
+			accumulators.add(accumulator);
+			for (int i = 0; i < results.size(); i++) {
+				folds.add(Futures.transform(results.get(i), fold(accumulator, i),
+						SliceExecutor.get().computeExecutor()));
+			}
+		}
+
+		ListenableFuture<List<TsdbResult[]>> spliced = Futures.transform(Futures.allAsList(folds),
+				new Function<List<Object>, List<TsdbResult[]>>() {
+					@Override
+					public List<TsdbResult[]> apply(List<Object> folded) {
+						// don't bother merging if nobody is waiting for the result
+						context.checkAlive();
+						LOG.info("Splicing slices of query=" + stringify(queries.get(0)));
+						return splice(queries, accumulators);
+					}
+				}, SliceExecutor.get().computeExecutor());
+
+		List<Future<?>> parts = new ArrayList<Future<?>>(batches);
+		parts.addAll(folds);
+		return cancelWith(spliced, parts, context);
+	}
+
+	/**
+	 * Fetch the slices of batch with one task, and pass their results on to the
+	 * queries waiting for them. Clears batch, keys and leaders.
+	 *
+	 * @param batches the task is added here
+	 * @param results the futures of the results of each slice are added here
+	 */
+	private static void submitBatch(TsQuery query, List<TsQuery> batch, List<String> keys,
+	                                final List<SettableFuture<TsdbResult[]>> leaders, RegionChecker checker,
+	                                QueryContext context, List<ListenableFuture<?>> batches,
+	                                List<ListenableFuture<TsdbResult[]>> results)
+	{
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		final ListenableFuture<List<TsdbResult[]>> task = SliceExecutor.get().submit(context,
+				new BatchHttpWorker(query, new ArrayList<>(batch), checker, context));
+		batches.add(task);
+		for (int k = 0; k < batch.size(); k++) {
+			results.add(Futures.transform(task, nth(k)));
+			SingleFlight.get().fetching(keys.get(k), leaders.get(k), task);
+		}
+
+		final List<SettableFuture<TsdbResult[]>> followed = new ArrayList<>(leaders);
+		Futures.addCallback(task, new FutureCallback<List<TsdbResult[]>>() {
+			@Override
+			public void onSuccess(List<TsdbResult[]> sliceResults) {
+				for (int k = 0; k < followed.size(); k++) {
+					followed.get(k).set(sliceResults.get(k));
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				for (SettableFuture<TsdbResult[]> leader: followed) {
+					leader.setException(t);
+				}
 			}
+		});
 
-			List<TsdbResult[]> tmpResults = new ArrayList<>();
-			for (Future<String> s: results) {
-				String json = s.get();
-				LOG.debug("Got result={}", json);
+		batch.clear();
+		keys.clear();
+		leaders.clear();
+	}
 
-				TsdbResult[] r = TsdbResult.fromArray(json);
-				tmpResults.add(r);
+	/**
+	 * @return the results of a slice fetched for another query. If the other query is
+	 *         cancelled before they are in, the slice is fetched for this query after all.
+	 */
+	private static ListenableFuture<TsdbResult[]> follow(ListenableFuture<TsdbResult[]> inFlight,
+	                                                     final TsQuery slice, final RegionChecker checker,
+	                                                     final QueryContext context)
+	{
+		// cancelling this query must not cancel the fetch for the other one
+		return Futures.withFallback(Futures.nonCancellationPropagating(inFlight),
+				new FutureFallback<TsdbResult[]>() {
+					@Override
+					public ListenableFuture<TsdbResult[]> create(Throwable t) throws Exception {
+						if (context.isCancelled() || !(t instanceof CancellationException
+								|| t instanceof QueryCancelledException)) {
+							return Futures.immediateFailedFuture(t);
+						}
+						LOG.debug("Query fetching slice {} was cancelled, fetching it again", slice.cacheKey());
+						return SliceExecutor.get().submit(context, new HttpWorker(slice, checker, context));
+					}
+				});
+	}
+
+	private static Function<List<TsdbResult[]>, TsdbResult[]> nth(final int n) {
+		return new Function<List<TsdbResult[]>, TsdbResult[]>() {
+			@Override
+			public TsdbResult[] apply(List<TsdbResult[]> results) {
+				return results.get(n);
+			}
+		};
+	}
+
+	/**
+	 * @return function adding the results of the i-th slice of a query to its accumulator.
+	 *         The results are not passed on, so they are not held on to any longer.
+	 */
+	private static Function<TsdbResult[], Object> fold(final SliceAccumulator accumulator, final int i) {
+		return new Function<TsdbResult[], Object>() {
+			@Override
+			public Object apply(TsdbResult[] results) {
+				LOG.debug("Got {} results", results == null ? 0 : results.length);
+				accumulator.add(i, results);
+				return null;
 			}
+		};
+	}
+
+	private static List<TsdbResult[]> splice(List<TsQuery> queries, List<SliceAccumulator> accumulators)
+	{
+		List<TsdbResult[]> spliced = new ArrayList<>();
+		for (int q = 0; q < queries.size(); q++) {
+			spliced.add(Splicer.trim(accumulators.get(q).finish(), queries.get(q)));
+		}
+		return spliced;
+	}
 
-			TsdbResult[] qaResult = qamerger.merge(tmpResults);
-			// respond with qaResult
-			if (qaResult != null) {
-				return qaResult;
-			} else {
-				return new TsdbResult[]{};
+	/**
+	 * Cancel result and the work it is made of when the query is cancelled, and the
+	 * rest of the work once result is done (e.g. when one of the slices failed)
+	 */
+	private static <T> ListenableFuture<T> cancelWith(final ListenableFuture<T> result,
+	                                                  final List<? extends Future<?>> parts,
+	                                                  final QueryContext context)
+	{
+		final Runnable cancel = new Runnable() {
+			@Override
+			public void run() {
+				result.cancel(true);
+				cancelAll(parts);
+			}
+		};
+		context.addCancelListener(cancel);
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				context.removeCancelListener(cancel);
+				cancelAll(parts);
 			}
+		}, MoreExecutors.directExecutor());
+		return result;
+	}
 
-		} catch (Exception e) {
-			LOG.error("Could not execute HTTP Queries", e);
-			throw new RuntimeException(e);
-		} finally {
-			svc.shutdown();
-			LOG.info("Shutdown thread pool for query=" + stringify(query));
+	private static void cancelAll(List<? extends Future<?>> futures) {
+		for (Future<?> f: futures) {
+			f.cancel(true);
 		}
 	}
 
-	private String stringify(TsQuery query)
+	private static String stringify(TsQuery query)
 	{
 		String subs = "";
 		for (TSSubQuery sub: query.getQueries()) {
@@ -20,6 +20,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class TSSubQuery {
 	/**
@@ -59,7 +61,7 @@ public class TSSubQuery {
 	private RateOptions rate_options;
 
 	/**
-	 * Parsed downsample interval
+	 * Parsed downsample interval in ms, 0 if not downsampled
 	 */
 	private long downsample_interval;
 
@@ -112,6 +114,20 @@ public class TSSubQuery {
 		return buf.toString();
 	}
 
+	/**
+	 * @return the parts of the sub query which decide what data the TSD returns,
+	 *         with tags and TSUIDs sorted so equal sub queries have equal keys
+	 */
+	public String cacheKey() {
+		return "m=" + (metric == null ? "" : metric)
+				+ ",tags=" + new TreeMap<>(getTags())
+				+ ",tsuids=" + (tsuids == null ? "[]" : new TreeSet<>(tsuids))
+				+ ",agg=" + aggregator
+				+ ",ds=" + downsample
+				+ ",rate=" + rate
+				+ (rate_options == null ? "" : ",rate_options=" + rate_options);
+	}
+
 	/**
 	 * Runs through query parameters to make sure it's a valid request.
 	 * This includes parsing the aggregator, downsampling info, metrics, tags or
@@ -133,6 +149,23 @@ public class TSSubQuery {
 			throw new IllegalArgumentException(
 					"Missing the metric or tsuids, provide at least one");
 		}
+
+		// parse the downsampler, e.g. "1m-avg" or "1m-avg-zero"
+		downsample_interval = 0;
+		if (downsample != null && !downsample.isEmpty()) {
+			final int dash = downsample.indexOf('-', 1);
+			if (dash < 0) {
+				throw new IllegalArgumentException("Invalid downsampling specifier '"
+						+ downsample + "'");
+			}
+			final String interval = downsample.substring(0, dash);
+			if (interval.endsWith("all")) {
+				// one bucket for the whole query, which can't be split up
+				downsample_interval = Long.MAX_VALUE;
+			} else {
+				downsample_interval = DateTime.parseDuration(interval);
+			}
+		}
 	}
 
 	/**
@@ -150,12 +183,24 @@ public class TSSubQuery {
 	}
 
 	/**
-	 * @return the parsed downsample interval in seconds
+	 * @return the parsed downsample interval in ms, 0 if not downsampled
 	 */
 	public long downsampleInterval() {
 		return this.downsample_interval;
 	}
 
+	/**
+	 * @return the function of the downsampler, e.g. avg for "1m-avg-zero", null if
+	 *         not downsampled
+	 */
+	public String downsampleFunction() {
+		if (downsample == null || downsample.isEmpty()) {
+			return null;
+		}
+		String[] parts = downsample.split("-");
+		return parts.length > 1 ? parts[1] : null;
+	}
+
 	/**
 	 * @return the user supplied aggregator
 	 */
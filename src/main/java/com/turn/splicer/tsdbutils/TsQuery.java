@@ -332,6 +332,27 @@ public class TsQuery {
 	}
 
 
+	/**
+	 * Key of the query's results in the cache. Unlike {@link #toString()} it only
+	 * depends on the resolved time range and on what data is asked for, so slices
+	 * of queries given with relative times (e.g. 24h-ago) or in another timezone
+	 * still share the cached results of their slices.
+	 */
+	public String cacheKey() {
+		StringBuilder key = new StringBuilder("splice:")
+				.append(start_time).append('-').append(end_time)
+				.append(",ms=").append(ms_resolution)
+				.append(",padding=").append(padding)
+				.append(",tsuids=").append(show_tsuids)
+				.append(",annotations=").append(!no_annotations).append('/').append(with_global_annotations);
+		if (queries != null) {
+			for (TSSubQuery sub: queries) {
+				key.append(",{").append(sub.cacheKey()).append('}');
+			}
+		}
+		return key.toString();
+	}
+
 	@Override
 	public String toString() {
 		return "TsQuery{" +
@@ -16,6 +16,8 @@
 
 package com.turn.splicer.tsdbutils.expression;
 
+import com.turn.splicer.QueryContext;
+import com.turn.splicer.SliceExecutor;
 import com.turn.splicer.SplicerServlet;
 import com.turn.splicer.hbase.RegionChecker;
 import com.turn.splicer.merge.TsdbResult;
@@ -25,14 +27,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.turn.splicer.tsdbutils.Functions;
 import com.turn.splicer.tsdbutils.SplicerQueryRunner;
 import com.turn.splicer.tsdbutils.SplicerUtils;
@@ -52,9 +53,6 @@ public class ExpressionTree {
 
 	private SplicerQueryRunner queryRunner;
 
-	private static ExecutorService pool = Executors.newCachedThreadPool();
-
-
 	enum Parameter {
 		SUB_EXPRESSION,
 		METRIC_QUERY
@@ -95,7 +93,22 @@ public class ExpressionTree {
 		funcParams.add(param);
 	}
 
-	public TsdbResult[] evaluateAll() throws ExecutionException, InterruptedException {
+	/**
+	 * Evaluate the tree, running the metric queries and sub expressions in parallel.
+	 *
+	 * @param context deadline and cancellation of the query. Once it is cancelled,
+	 *                the metric queries still running are cancelled too.
+	 */
+	public TsdbResult[] evaluateAll(QueryContext context) {
+		return context.await(evaluate(context));
+	}
+
+	/**
+	 * Start evaluating the tree without waiting for it. The metric queries at the
+	 * leaves dispatch their slices right away, and the function of each node runs on
+	 * the {@link SliceExecutor#computeExecutor()} once all of its parameters are in.
+	 */
+	public ListenableFuture<TsdbResult[]> evaluate(final QueryContext context) {
 
 		List<Integer> metricQueryKeys = null;
 
@@ -131,7 +144,7 @@ public class ExpressionTree {
 			dataQuery.validateTimes();
 		}
 
-		List<Future<TsdbResult[]>> tsdbResultFutures = new ArrayList(parameterSourceIndex.size());
+		final List<ListenableFuture<TsdbResult[]>> parameters = new ArrayList<>(parameterSourceIndex.size());
 
 		for (int i = 0; i < parameterSourceIndex.size(); i++) {
 			Parameter p = parameterSourceIndex.get(i);
@@ -152,23 +165,24 @@ public class ExpressionTree {
 				realQuery.validateAndSetQuery();
 				RegionChecker checker = SplicerServlet.REGION_UTIL.getRegionChecker();
 
-				tsdbResultFutures.add(pool.submit(new QueryRunnerWorker(queryRunner, realQuery, checker)));
+				parameters.add(queryRunner.sliceAndRunQueryAsync(realQuery, checker, context));
 
 			} else if (p == Parameter.SUB_EXPRESSION) {
 				ExpressionTree nextExpression = subExpressions.get(subExprPointer++);
-				tsdbResultFutures.add(pool.submit(new ExpressionTreeWorker(nextExpression)));
+				parameters.add(nextExpression.evaluate(context));
 			} else {
 				throw new RuntimeException("Unknown value: " + p);
 			}
 		}
 
-		List<TsdbResult[]> orderedSubResults = Lists.newArrayList();
-
-		for (Future<TsdbResult[]> tsdbResultFuture : tsdbResultFutures) {
-			orderedSubResults.add(tsdbResultFuture.get());
-		}
-
-		return expr.evaluate(dataQuery, orderedSubResults, funcParams);
+		return Futures.transform(Futures.allAsList(parameters),
+				new Function<List<TsdbResult[]>, TsdbResult[]>() {
+					@Override
+					public TsdbResult[] apply(List<TsdbResult[]> orderedSubResults) {
+						context.checkAlive();
+						return expr.evaluate(dataQuery, orderedSubResults, funcParams);
+					}
+				}, SliceExecutor.get().computeExecutor());
 	}
 
 	public String toString() {
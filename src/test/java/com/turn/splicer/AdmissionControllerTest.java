@@ -0,0 +1,106 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AdmissionControllerTest {
+
+	@Test
+	public void testWaitForRoom() throws Exception
+	{
+		AdmissionController controller = new AdmissionController(true, 100, 5000, 10);
+		AdmissionController.Ticket first = controller.admit(80).get();
+		Assert.assertEquals(controller.outstandingCost(), 80);
+
+		Future<AdmissionController.Ticket> second = controller.admit(50);
+		Thread.sleep(50);
+		Assert.assertFalse(second.isDone());
+
+		// the second query gets in once the first is done
+		first.close();
+		first.close();
+		Assert.assertEquals(second.get(5, TimeUnit.SECONDS).getCost(), 50);
+		Assert.assertEquals(controller.outstandingCost(), 50);
+	}
+
+	@Test
+	public void testLeaveLine() throws Exception
+	{
+		AdmissionController controller = new AdmissionController(true, 100, 5000, 10);
+		AdmissionController.Ticket first = controller.admit(80).get();
+		Future<AdmissionController.Ticket> second = controller.admit(50);
+		Future<AdmissionController.Ticket> third = controller.admit(20);
+
+		// the third query is next in line once the second gives up
+		second.cancel(false);
+		Assert.assertEquals(third.get(5, TimeUnit.SECONDS).getCost(), 20);
+		Assert.assertEquals(controller.outstandingCost(), 100);
+		first.close();
+		Assert.assertEquals(controller.outstandingCost(), 20);
+	}
+
+	@Test
+	public void testRejectAfterWait() throws Exception
+	{
+		AdmissionController controller = new AdmissionController(true, 100, 20, 10);
+		controller.admit(100);
+		try {
+			controller.admit(1).get(5, TimeUnit.SECONDS);
+			Assert.fail("admitted over capacity");
+		} catch (ExecutionException e) {
+			AdmissionException rejected = (AdmissionException) e.getCause();
+			Assert.assertEquals(rejected.getStatus(), 503);
+			Assert.assertTrue(rejected.getRetryAfterSeconds() >= 1);
+		}
+	}
+
+	@Test
+	public void testRejectWhenQueueFull() throws Exception
+	{
+		AdmissionController controller = new AdmissionController(true, 100, 1000, 0);
+		controller.admit(100);
+		try {
+			controller.admit(1).get();
+			Assert.fail("admitted over capacity");
+		} catch (ExecutionException e) {
+			Assert.assertEquals(((AdmissionException) e.getCause()).getStatus(), 429);
+		}
+	}
+
+	@Test
+	public void testExpensiveQueryRunsAlone() throws Exception
+	{
+		AdmissionController controller = new AdmissionController(true, 100, 20, 10);
+		AdmissionController.Ticket big = controller.admit(1000000).get();
+		Assert.assertEquals(big.getCost(), 100);
+		big.close();
+		Assert.assertEquals(controller.outstandingCost(), 0);
+
+		// disabled, every query gets in
+		AdmissionController disabled = new AdmissionController(false, 100, 20, 0);
+		disabled.admit(1000);
+		disabled.admit(1000);
+		Assert.assertEquals(disabled.outstandingCost(), 0);
+	}
+}
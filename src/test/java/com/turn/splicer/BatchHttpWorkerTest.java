@@ -0,0 +1,86 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer;
+
+import com.turn.splicer.merge.TsdbResult;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BatchHttpWorkerTest {
+
+	@Test
+	public void testSplit()
+	{
+		TsdbResult a = series("a", 3600, 5400, 7200, 9000);
+		TsdbResult b = series("b", 9000);
+		TsdbResult[] all = {a, b};
+
+		TsdbResult[] first = Splicer.trim(all, 3600000, 7200000, false);
+		Assert.assertEquals(first.length, 1);
+		Assert.assertEquals(first[0].getTags().getTags().get("host"), "a");
+		// both ends are inclusive, like a TSD query
+		Assert.assertEquals(first[0].getDps().getMap().keySet(),
+				series("a", 3600, 5400, 7200).getDps().getMap().keySet());
+
+		TsdbResult[] second = Splicer.trim(all, 7200000, 10800000, false);
+		Assert.assertEquals(second.length, 2);
+		Assert.assertEquals(second[0].getDps().getMap().size(), 2);
+		Assert.assertEquals(second[1].getDps().getMap().size(), 1);
+
+		// the originals are untouched
+		Assert.assertEquals(a.getDps().getMap().size(), 4);
+	}
+
+	@Test
+	public void testSplitMs()
+	{
+		TsdbResult[] all = {series("a", 3600000, 3600500, 7200001)};
+		TsdbResult[] sliced = Splicer.trim(all, 3600000, 7200000, true);
+		Assert.assertEquals(sliced[0].getDps().getMap().size(), 2);
+	}
+
+	@Test
+	public void testSplitWithoutPoints()
+	{
+		TsdbResult empty = series("b");
+		empty.setDps(null);
+		TsdbResult[] sliced = Splicer.trim(new TsdbResult[]{empty, series("a", 3600)}, 3600000, 7200000, false);
+		Assert.assertEquals(sliced.length, 1);
+		Assert.assertEquals(sliced[0].getTags().getTags().get("host"), "a");
+	}
+
+	private static TsdbResult series(String host, long... timestamps) {
+		Map<String, Object> dps = new HashMap<>();
+		for (long ts: timestamps) {
+			dps.put(String.valueOf(ts), (double) ts);
+		}
+
+		TsdbResult result = new TsdbResult();
+		result.setMetric("sys.cpu");
+		Map<String, String> tags = new HashMap<>();
+		tags.put("host", host);
+		result.setTags(new TsdbResult.Tags(tags));
+		result.setAggregateTags(Arrays.<String>asList());
+		result.setDps(new TsdbResult.Points(dps));
+		return result;
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PriorityClassifierTest {
+
+	@Test
+	public void testClassify()
+	{
+		PriorityClassifier classifier = new PriorityClassifier(
+				"10.2.3.4=interactive, 10.1.0.0/16=batch, 10.0.0.0/8=interactive, 192.168.1.128/25=batch",
+				QueryPriority.DASHBOARD);
+
+		// asked for by the client
+		Assert.assertEquals(classifier.classify("batch", "10.2.3.4"), QueryPriority.BATCH);
+		Assert.assertEquals(classifier.classify(" Interactive ", null), QueryPriority.INTERACTIVE);
+
+		// first matching rule
+		Assert.assertEquals(classifier.classify(null, "10.2.3.4"), QueryPriority.INTERACTIVE);
+		Assert.assertEquals(classifier.classify(null, "10.1.200.7"), QueryPriority.BATCH);
+		Assert.assertEquals(classifier.classify(null, "10.9.0.1"), QueryPriority.INTERACTIVE);
+		Assert.assertEquals(classifier.classify(null, "192.168.1.200"), QueryPriority.BATCH);
+		Assert.assertEquals(classifier.classify(null, "192.168.1.100"), QueryPriority.DASHBOARD);
+
+		// bad class asked for, unknown or ipv6 address
+		Assert.assertEquals(classifier.classify("urgent", "172.16.0.1"), QueryPriority.DASHBOARD);
+		Assert.assertEquals(classifier.classify(null, "::1"), QueryPriority.DASHBOARD);
+		Assert.assertEquals(classifier.classify(null, "not-an-ip"), QueryPriority.DASHBOARD);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testBadRule()
+	{
+		new PriorityClassifier("10.0.0.0/8=urgent", null);
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Supplier;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class QueryContextTest {
+
+	@Test
+	public void testCancel()
+	{
+		final AtomicInteger cancelled = new AtomicInteger();
+		Runnable listener = new Runnable() {
+			@Override
+			public void run() {
+				cancelled.incrementAndGet();
+			}
+		};
+
+		try (QueryContext context = new QueryContext(60000)) {
+			context.addCancelListener(listener);
+			context.checkAlive();
+
+			context.cancel("test");
+			context.cancel("again");
+			Assert.assertTrue(context.isCancelled());
+			Assert.assertEquals(context.getCancelReason(), "test");
+			Assert.assertEquals(cancelled.get(), 1);
+
+			// listeners added after the fact run right away
+			context.addCancelListener(listener);
+			Assert.assertEquals(cancelled.get(), 2);
+		}
+	}
+
+	@Test(expectedExceptions = QueryCancelledException.class)
+	public void testDeadline() throws Exception
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+		try (QueryContext context = new QueryContext(20)) {
+			context.addCancelListener(new Runnable() {
+				@Override
+				public void run() {
+					latch.countDown();
+				}
+			});
+			Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals(context.remainingMs(), 0);
+			context.checkAlive();
+		}
+	}
+
+	@Test
+	public void testClientGone() throws Exception
+	{
+		try (QueryContext context = new QueryContext(60000)) {
+			context.watch(new Supplier<Boolean>() {
+				@Override
+				public Boolean get() {
+					return false;
+				}
+			});
+			long until = System.currentTimeMillis() + 5000;
+			while (!context.isCancelled() && System.currentTimeMillis() < until) {
+				Thread.sleep(50);
+			}
+			Assert.assertEquals(context.getCancelReason(), "client disconnected");
+		}
+	}
+}
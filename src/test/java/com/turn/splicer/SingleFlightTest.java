@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import com.turn.splicer.merge.TsdbResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SingleFlightTest {
+
+	@Test
+	public void testCoalesce() throws Exception
+	{
+		SingleFlight flights = new SingleFlight(new SliceExecutor(1));
+		SettableFuture<TsdbResult[]> first = SettableFuture.create();
+		SettableFuture<TsdbResult[]> second = SettableFuture.create();
+
+		Assert.assertNull(flights.lead("k", first, QueryPriority.DASHBOARD));
+		ListenableFuture<TsdbResult[]> joined = flights.lead("k", second, QueryPriority.DASHBOARD);
+		Assert.assertSame(joined, first);
+		Assert.assertEquals(flights.inFlight(), 1);
+
+		TsdbResult[] results = new TsdbResult[0];
+		first.set(results);
+		Assert.assertSame(joined.get(), results);
+
+		// done, so the next request fetches again
+		Assert.assertEquals(flights.inFlight(), 0);
+		Assert.assertNull(flights.lead("k", second, QueryPriority.DASHBOARD));
+	}
+
+	@Test(expectedExceptions = CancellationException.class)
+	public void testCancelledLeader() throws Exception
+	{
+		SingleFlight flights = new SingleFlight(new SliceExecutor(1));
+		SettableFuture<TsdbResult[]> leader = SettableFuture.create();
+		Assert.assertNull(flights.lead("k", leader, QueryPriority.DASHBOARD));
+		ListenableFuture<TsdbResult[]> joined = flights.lead("k", SettableFuture.<TsdbResult[]>create(),
+				QueryPriority.DASHBOARD);
+
+		leader.cancel(false);
+		Assert.assertEquals(flights.inFlight(), 0);
+		joined.get();
+	}
+
+	@Test
+	public void testPromote() throws Exception
+	{
+		SliceExecutor executor = new SliceExecutor(1, 1, true, 0);
+		SingleFlight flights = new SingleFlight(executor);
+		final List<String> order = new ArrayList<>();
+
+		try (QueryContext hold = new QueryContext(60000);
+		     QueryContext batch = new QueryContext(60000);
+		     QueryContext dashboard = new QueryContext(60000)) {
+			batch.setPriority(QueryPriority.BATCH);
+			dashboard.setPriority(QueryPriority.DASHBOARD);
+
+			final CountDownLatch latch = new CountDownLatch(1);
+			executor.submit(hold, new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					return latch.await(5, TimeUnit.SECONDS);
+				}
+			});
+			Thread.sleep(50);
+
+			// a batch query leads the fetch of a slice, behind a dashboard slice
+			SettableFuture<TsdbResult[]> leader = SettableFuture.create();
+			Assert.assertNull(flights.lead("k", leader, QueryPriority.BATCH));
+			Future<?> other = executor.submit(dashboard, record("dashboard", order));
+			ListenableFuture<?> task = executor.submit(batch, record("shared", order));
+			flights.fetching("k", leader, task);
+
+			// an interactive query joining moves the slice ahead of the other one
+			flights.lead("k", SettableFuture.<TsdbResult[]>create(), QueryPriority.INTERACTIVE);
+
+			latch.countDown();
+			task.get(5, TimeUnit.SECONDS);
+			other.get(5, TimeUnit.SECONDS);
+		}
+
+		Assert.assertEquals(order, Arrays.asList("shared", "dashboard"));
+	}
+
+	private static Callable<Object> record(final String name, final List<String> order) {
+		return new Callable<Object>() {
+			@Override
+			public Object call() {
+				synchronized (order) {
+					order.add(name);
+				}
+				return null;
+			}
+		};
+	}
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SliceExecutorTest {
+
+	@Test
+	public void testQueriesTakeTurns() throws Exception
+	{
+		SliceExecutor executor = new SliceExecutor(1);
+		List<String> order = new ArrayList<>();
+
+		try (QueryContext hold = new QueryContext(60000);
+		     QueryContext big = new QueryContext(60000);
+		     QueryContext small = new QueryContext(60000)) {
+			CountDownLatch latch = new CountDownLatch(1);
+			Future<?> held = executor.submit(hold, await(latch));
+			Thread.sleep(50);
+
+			// three slices of the big query queue up before the small query
+			List<Future<?>> futures = new ArrayList<>();
+			for (QueryContext q: new QueryContext[]{big, big, big, small}) {
+				futures.add(executor.submit(q, record(q == big ? "big" : "small", order)));
+			}
+			Assert.assertEquals(executor.queueDepth(), 4);
+			Assert.assertEquals(executor.queuedQueries(), 2);
+
+			latch.countDown();
+			held.get(5, TimeUnit.SECONDS);
+			for (Future<?> f: futures) {
+				f.get(5, TimeUnit.SECONDS);
+			}
+		}
+
+		// the small query gets its turn right after the first big slice
+		Assert.assertEquals(order.get(0), "big");
+		Assert.assertEquals(order.get(1), "small");
+		Assert.assertEquals(executor.queueDepth(), 0);
+		Assert.assertEquals(executor.queuedQueries(), 0);
+		Assert.assertTrue(executor.avgWaitMs() > 0);
+	}
+
+	@Test
+	public void testWeights() throws Exception
+	{
+		SliceExecutor executor = new SliceExecutor(1);
+		List<String> order = new ArrayList<>();
+
+		try (QueryContext hold = new QueryContext(60000);
+		     QueryContext heavy = new QueryContext(60000);
+		     QueryContext light = new QueryContext(60000)) {
+			heavy.setWeight(2);
+			CountDownLatch latch = new CountDownLatch(1);
+			executor.submit(hold, await(latch));
+			Thread.sleep(50);
+
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				futures.add(executor.submit(light, record("light", order)));
+			}
+			for (int i = 0; i < 4; i++) {
+				futures.add(executor.submit(heavy, record("heavy", order)));
+			}
+
+			latch.countDown();
+			for (Future<?> f: futures) {
+				f.get(5, TimeUnit.SECONDS);
+			}
+		}
+
+		// twice as many slices of the heavy query run while both have slices waiting
+		Assert.assertEquals(order.subList(0, 6),
+				Arrays.asList("light", "heavy", "heavy", "light", "heavy", "heavy"));
+	}
+
+	@Test
+	public void testStrictPriority() throws Exception
+	{
+		SliceExecutor executor = new SliceExecutor(1, 1, true, 0);
+		List<String> order = new ArrayList<>();
+
+		try (QueryContext hold = new QueryContext(60000);
+		     QueryContext batch = new QueryContext(60000);
+		     QueryContext dashboard = new QueryContext(60000);
+		     QueryContext interactive = new QueryContext(60000)) {
+			batch.setPriority(QueryPriority.BATCH);
+			dashboard.setPriority(QueryPriority.DASHBOARD);
+			interactive.setPriority(QueryPriority.INTERACTIVE);
+
+			CountDownLatch latch = new CountDownLatch(1);
+			executor.submit(hold, await(latch));
+			Thread.sleep(50);
+
+			List<Future<?>> futures = new ArrayList<>();
+			futures.add(executor.submit(batch, record("batch", order)));
+			futures.add(executor.submit(batch, record("batch", order)));
+			futures.add(executor.submit(dashboard, record("dashboard", order)));
+			futures.add(executor.submit(interactive, record("interactive", order)));
+
+			latch.countDown();
+			for (Future<?> f: futures) {
+				f.get(5, TimeUnit.SECONDS);
+			}
+		}
+
+		Assert.assertEquals(order, Arrays.asList("interactive", "dashboard", "batch", "batch"));
+	}
+
+	@Test
+	public void testReservedThreads() throws Exception
+	{
+		SliceExecutor executor = new SliceExecutor(2, 1, false, 1);
+		List<String> order = new ArrayList<>();
+
+		try (QueryContext batch = new QueryContext(60000);
+		     QueryContext interactive = new QueryContext(60000)) {
+			batch.setPriority(QueryPriority.BATCH);
+			interactive.setPriority(QueryPriority.INTERACTIVE);
+
+			CountDownLatch latch = new CountDownLatch(1);
+			Future<?> held = executor.submit(batch, await(latch));
+
+			// one thread is free, but it is kept for interactive queries
+			Future<?> queued = executor.submit(batch, record("batch", order));
+			Assert.assertEquals(executor.queueDepth(), 1);
+
+			executor.submit(interactive, record("interactive", order)).get(5, TimeUnit.SECONDS);
+			Assert.assertFalse(queued.isDone());
+
+			latch.countDown();
+			held.get(5, TimeUnit.SECONDS);
+			queued.get(5, TimeUnit.SECONDS);
+		}
+
+		Assert.assertEquals(order, Arrays.asList("interactive", "batch"));
+	}
+
+	@Test
+	public void testCancelQueued() throws Exception
+	{
+		SliceExecutor executor = new SliceExecutor(1);
+		List<String> order = new ArrayList<>();
+
+		try (QueryContext hold = new QueryContext(60000);
+		     QueryContext query = new QueryContext(60000)) {
+			CountDownLatch latch = new CountDownLatch(1);
+			Future<?> held = executor.submit(hold, await(latch));
+			Thread.sleep(50);
+			Future<?> queued = executor.submit(query, record("cancelled", order));
+			Assert.assertEquals(executor.queueDepth(), 1);
+
+			Assert.assertTrue(queued.cancel(true));
+			Assert.assertEquals(executor.queueDepth(), 0);
+			Assert.assertEquals(executor.queuedQueries(), 0);
+
+			latch.countDown();
+			held.get(5, TimeUnit.SECONDS);
+		}
+		Assert.assertTrue(order.isEmpty());
+	}
+
+
+	@Test
+	public void testContinuations() throws Exception
+	{
+		SliceExecutor executor = new SliceExecutor(2);
+
+		try (QueryContext query = new QueryContext(60000)) {
+			ListenableFuture<Integer> a = executor.submit(query, value(1));
+			ListenableFuture<Integer> b = executor.submit(query, value(2));
+
+			// the sum runs once both slices are in, without a thread waiting for them
+			ListenableFuture<Integer> sum = Futures.transform(Futures.allAsList(a, b),
+					new Function<List<Integer>, Integer>() {
+						@Override
+						public Integer apply(List<Integer> values) {
+							Assert.assertTrue(Thread.currentThread().getName().startsWith("compute-thread"));
+							return values.get(0) + values.get(1);
+						}
+					}, executor.computeExecutor());
+			Assert.assertEquals(query.await(sum), Integer.valueOf(3));
+		}
+	}
+
+	private static Callable<Integer> value(final int value) {
+		return new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return value;
+			}
+		};
+	}
+
+	private static Callable<Void> await(final CountDownLatch latch) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				latch.await(5, TimeUnit.SECONDS);
+				return null;
+			}
+		};
+	}
+
+	private static Callable<Void> record(final String name, final List<String> order) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				synchronized (order) {
+					order.add(name);
+				}
+				Thread.sleep(10);
+				return null;
+			}
+		};
+	}
+}
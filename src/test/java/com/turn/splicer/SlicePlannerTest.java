@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import com.turn.splicer.merge.TsdbResult;
+import com.turn.splicer.tsdbutils.TSSubQuery;
+import com.turn.splicer.tsdbutils.TsQuery;
+
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SlicePlannerTest {
+
+	private static final long HOUR = 3600000;
+
+	private static final long BASE = 1512000000000L;
+
+	@Test
+	public void testUnknownMetric()
+	{
+		SlicePlanner planner = new SlicePlanner(1000000, 1000);
+		TsQuery query = query(BASE, BASE + 10 * HOUR, "sys.cpu");
+		Assert.assertEquals(planner.sliceWidth(query), HOUR);
+		Assert.assertTrue(planner.shouldSlice(query, HOUR));
+		Assert.assertFalse(planner.shouldSlice(query(BASE, BASE + 2 * HOUR, "sys.cpu"), HOUR));
+	}
+
+	@Test
+	public void testWidthByCost()
+	{
+		SlicePlanner planner = new SlicePlanner(1000000, 1000);
+
+		// 100k per hour, so 10h fit in a slice. 6h is the widest width that does
+		planner.record(query(BASE, BASE + HOUR - 1, "sparse"), results("sparse", 2), 100000, 10);
+		TsQuery sparse = query(BASE, BASE + 30 * 24 * HOUR, "sparse");
+		Assert.assertEquals(planner.sliceWidth(sparse), 6 * HOUR);
+		Assert.assertTrue(planner.shouldSlice(sparse, 6 * HOUR));
+		// the whole day costs less than a slice
+		Assert.assertFalse(planner.shouldSlice(query(BASE, BASE + 9 * HOUR, "sparse"), HOUR));
+
+		// slow rather than large
+		planner.record(query(BASE, BASE + HOUR - 1, "slow"), results("slow", 1), 1000, 4000);
+		Assert.assertEquals(planner.sliceWidth(query(BASE, BASE + 10 * HOUR, "slow")), 15 * 60000);
+
+		// never narrower than the narrowest width
+		planner.record(query(BASE, BASE + HOUR - 1, "dense"), results("dense", 50000), 500000000, 10);
+		Assert.assertEquals(planner.sliceWidth(query(BASE, BASE + 10 * HOUR, "dense")), 5 * 60000);
+
+		// the costs of the metrics of a query add up
+		Assert.assertEquals(planner.sliceWidth(query(BASE, BASE + 10 * HOUR, "sparse", "slow")),
+				10 * 60000);
+	}
+
+	@Test
+	public void testCostSplitBySeries()
+	{
+		SlicePlanner planner = new SlicePlanner(1000000, 1000);
+		planner.record(query(BASE, BASE + 2 * HOUR - 1, "a", "b"), results("a", 3), 600000, 100);
+
+		Assert.assertEquals(planner.getStats("a").getBytesPerHour(), 300000.0);
+		Assert.assertEquals(planner.getStats("a").getSeries(), 3.0);
+		Assert.assertEquals(planner.getStats("b").getBytesPerHour(), 0.0);
+
+		// too short to go by
+		planner.record(query(BASE, BASE + 60000, "c"), results("c", 1), 1000, 10);
+		Assert.assertNull(planner.getStats("c"));
+	}
+
+	@Test
+	public void testPersist()
+	{
+		SlicePlanner planner = new SlicePlanner(1000000, 1000);
+		planner.record(query(BASE, BASE + HOUR - 1, "a"), results("a", 2), 1000, 10);
+		Map<String, String> dump = planner.dump();
+		dump.put("bad", "1,2");
+
+		SlicePlanner loaded = new SlicePlanner(1000000, 1000);
+		loaded.load(dump);
+		Assert.assertEquals(loaded.getStats("a").getBytesPerHour(), 1000.0);
+		Assert.assertEquals(loaded.getStats("a").getSamples(), 1);
+		Assert.assertNull(loaded.getStats("bad"));
+	}
+
+	@Test
+	public void testFullSlices()
+	{
+		Assert.assertTrue(Splicer.isFullSlice(query(BASE, BASE + HOUR - 1, "a")));
+		Assert.assertTrue(Splicer.isFullSlice(query(BASE + 6 * HOUR, BASE + 12 * HOUR - 1, "a")));
+		Assert.assertFalse(Splicer.isFullSlice(query(BASE + HOUR, BASE + 3 * HOUR, "a")));
+		Assert.assertFalse(Splicer.isFullSlice(query(BASE + HOUR + 1000, BASE + 6 * HOUR - 1, "a")));
+		Assert.assertFalse(Splicer.isFullSlice(query(BASE + 23 * HOUR, BASE + 25 * HOUR - 1, "a")));
+	}
+
+	private static TsdbResult[] results(String metric, int n) {
+		TsdbResult[] results = new TsdbResult[n];
+		for (int i = 0; i < n; i++) {
+			results[i] = new TsdbResult();
+			results[i].setMetric(metric);
+		}
+		return results;
+	}
+
+	private static TsQuery query(long start, long end, String... metrics) {
+		TsQuery query = new TsQuery();
+		query.setStart(String.valueOf(start));
+		query.setEnd(String.valueOf(end));
+		for (String metric: metrics) {
+			TSSubQuery sub = new TSSubQuery();
+			sub.setAggregator("sum");
+			sub.setMetric(metric);
+			query.addSubQuery(sub);
+		}
+		query.validateAndSetQuery();
+		return query;
+	}
+}
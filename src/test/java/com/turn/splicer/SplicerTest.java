@@ -0,0 +1,173 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer;
+
+import com.turn.splicer.merge.TsdbResult;
+import com.turn.splicer.tsdbutils.TSSubQuery;
+import com.turn.splicer.tsdbutils.TsQuery;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SplicerTest {
+
+	private static final long HOUR = 3600000;
+
+	// a multiple of both 1h and 63m, in ms so the query parser doesn't read it as seconds
+	private static final long BASE = 1512000000000L;
+
+	@Test
+	public void testHourlySlices()
+	{
+		TsQuery query = query(null, BASE + HOUR + 1000, BASE + 4 * HOUR + 1000);
+		List<TsQuery> slices = new Splicer(query, Splicer.alignedWidth(query, HOUR)).sliceQuery();
+
+		Assert.assertEquals(slices.size(), 4);
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(slices.get(i).startTime(), BASE + (i + 1) * HOUR);
+			Assert.assertEquals(slices.get(i).endTime(), BASE + (i + 2) * HOUR - 1);
+			Assert.assertTrue(Splicer.isFullSlice(slices.get(i)));
+		}
+		Assert.assertEquals(slices.get(3).startTime(), BASE + 4 * HOUR);
+		Assert.assertEquals(slices.get(3).endTime(), BASE + 4 * HOUR + 1000);
+		Assert.assertFalse(Splicer.isFullSlice(slices.get(3)));
+	}
+
+	@Test
+	public void testDownsampleAligned()
+	{
+		// 7 minutes don't divide an hour, so slices are 63 minutes wide
+		TsQuery query = query("7m-avg", BASE, BASE + 10 * HOUR);
+		long width = 63 * 60000;
+		Assert.assertEquals(Splicer.alignedWidth(query, HOUR), width);
+
+		for (TsQuery slice: new Splicer(query, Splicer.alignedWidth(query, HOUR)).sliceQuery()) {
+			Assert.assertEquals(slice.startTime() % width, 0);
+			Assert.assertEquals(slice.startTime() % (7 * 60000), 0);
+		}
+
+		Assert.assertEquals(Splicer.alignedWidth(query("30m-sum", BASE, BASE + 10 * HOUR), HOUR), HOUR);
+		Assert.assertEquals(Splicer.alignedWidth(query("1d-max-zero", BASE, BASE + 10 * HOUR), HOUR), 24 * HOUR);
+		Assert.assertEquals(Splicer.alignedWidth(query("0all-sum", BASE, BASE + 10 * HOUR), HOUR), Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testRegionCuts()
+	{
+		TsQuery query = query(null, BASE, BASE + 3 * HOUR + 1000);
+		// the region starts in the middle of the second slice. the cut outside
+		// the query is ignored
+		List<TsQuery> slices = new Splicer(query, 2 * HOUR)
+				.sliceQuery(Arrays.asList(BASE + HOUR + 1000, BASE + 5 * HOUR));
+
+		Assert.assertEquals(slices.size(), 3);
+		Assert.assertEquals(slices.get(0).endTime(), BASE + HOUR - 1);
+		Assert.assertEquals(slices.get(1).startTime(), BASE + HOUR);
+		Assert.assertEquals(slices.get(1).endTime(), BASE + 2 * HOUR - 1);
+		Assert.assertEquals(slices.get(2).startTime(), BASE + 2 * HOUR);
+
+		// both parts of the cut slice are cached, the partial last slice is not
+		Assert.assertTrue(Splicer.isFullSlice(slices.get(0)));
+		Assert.assertTrue(Splicer.isFullSlice(slices.get(1)));
+		Assert.assertFalse(Splicer.isFullSlice(slices.get(2)));
+
+		// cuts stay on downsample buckets
+		query = query("2h-avg", BASE, BASE + 12 * HOUR);
+		slices = new Splicer(query, 4 * HOUR).sliceQuery(Arrays.asList(BASE + 5 * HOUR));
+		Assert.assertEquals(slices.get(1).startTime(), BASE + 4 * HOUR);
+		Assert.assertEquals(slices.get(2).startTime(), BASE + 8 * HOUR);
+	}
+
+	@Test
+	public void testTrimToQuery()
+	{
+		Map<String, Object> dps = new HashMap<>();
+		for (long ts = BASE; ts <= BASE + 2 * HOUR; ts += 15 * 60000) {
+			dps.put(String.valueOf(ts / 1000), 1.0);
+		}
+		TsdbResult result = new TsdbResult();
+		result.setMetric("sys.cpu");
+		result.setTags(new TsdbResult.Tags(new HashMap<String, String>()));
+		result.setDps(new TsdbResult.Points(dps));
+		TsdbResult[] results = {result};
+
+		// the first slice started at BASE, but the query at 20 minutes past
+		TsQuery query = query(null, BASE + 20 * 60000, BASE + HOUR);
+		Assert.assertEquals(Splicer.trim(results, query)[0].getDps().getMap().size(), 3);
+
+		// the 15 minute bucket holding the start of the query is kept
+		query = query("15m-avg", BASE + 20 * 60000, BASE + HOUR);
+		Assert.assertEquals(Splicer.trim(results, query)[0].getDps().getMap().size(), 4);
+	}
+
+	@Test
+	public void testCacheKey()
+	{
+		TsQuery query = query(null, BASE, BASE + 10 * HOUR);
+		TsQuery other = query(null, BASE, BASE + 10 * HOUR);
+		other.setStart("2017/11/30-00:00:00");
+		other.setTimezone("UTC");
+		other.validateAndSetQuery();
+
+		TsQuery slice = TsQuery.sliceOf(query, BASE + HOUR, BASE + 2 * HOUR - 1);
+		TsQuery otherSlice = TsQuery.sliceOf(other, BASE + HOUR, BASE + 2 * HOUR - 1);
+		Assert.assertNotEquals(slice.toString(), otherSlice.toString());
+		Assert.assertEquals(slice.cacheKey(), otherSlice.cacheKey());
+
+		Assert.assertNotEquals(query("1h-avg", BASE, BASE + HOUR).cacheKey(),
+				query("1h-sum", BASE, BASE + HOUR).cacheKey());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testBadDownsample()
+	{
+		query("avg", BASE, BASE + HOUR);
+	}
+
+	@Test
+	public void testRateLookback()
+	{
+		TsQuery query = query("15m-avg", BASE, BASE + HOUR);
+		Assert.assertEquals(HttpWorker.rateLookbackMs(query), 0);
+
+		query.getQueries().get(0).setRate(true);
+		Assert.assertEquals(HttpWorker.rateLookbackMs(query), 15 * 60000);
+
+		query = query(null, BASE, BASE + HOUR);
+		query.getQueries().get(0).setRate(true);
+		Assert.assertEquals(HttpWorker.rateLookbackMs(query), 60000);
+	}
+
+	private static TsQuery query(String downsample, long start, long end) {
+		TSSubQuery sub = new TSSubQuery();
+		sub.setAggregator("sum");
+		sub.setMetric("sys.cpu");
+		sub.setDownsample(downsample);
+
+		TsQuery query = new TsQuery();
+		query.setStart(String.valueOf(start));
+		query.setEnd(String.valueOf(end));
+		query.addSubQuery(sub);
+		query.validateAndSetQuery();
+		return query;
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer;
+
+import com.turn.splicer.merge.TsdbResult;
+import com.turn.splicer.tsdbutils.TSSubQuery;
+import com.turn.splicer.tsdbutils.TsQuery;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TagPartitionerTest {
+
+	private static final long HOUR = 3600000;
+
+	private static final long BASE = 1512000000000L;
+
+	private static final List<String> VALUES = Arrays.asList("h1", "h2", "h3", "h4", "h5");
+
+	@Test
+	public void testGroupBy()
+	{
+		TagPartitioner partitioner = partitioner(5000);
+		TagPartitioner.Partitions partitions = partitioner.partition(query("sum", null, "host", "*"));
+
+		Assert.assertNotNull(partitions);
+		Assert.assertTrue(partitions.isGroupBy());
+		Assert.assertEquals(partitions.getTag(), "host");
+
+		// two partitions, and one for hosts we don't know yet
+		List<TsQuery> queries = partitions.queries();
+		Assert.assertEquals(queries.size(), 3);
+		Assert.assertEquals(tag(queries.get(0)), "literal_or(h1|h3|h5)");
+		Assert.assertEquals(tag(queries.get(1)), "literal_or(h2|h4)");
+		Assert.assertEquals(tag(queries.get(2)), "not_literal_or(h1|h2|h3|h4|h5)");
+		for (TsQuery q: queries) {
+			Assert.assertEquals(q.startTime(), BASE);
+			Assert.assertEquals(q.endTime(), BASE + 10 * HOUR);
+			Assert.assertEquals(q.getQueries().get(0).getAggregator(), "sum");
+		}
+	}
+
+	@Test
+	public void testAggregated()
+	{
+		TagPartitioner partitioner = partitioner(5000);
+
+		// must be downsampled to be aggregated again
+		Assert.assertNull(partitioner.partition(query("sum", null, "dc", "*")));
+
+		TagPartitioner.Partitions partitions = partitioner.partition(query("avg", "1m-avg", "dc", "*"));
+		Assert.assertFalse(partitions.isGroupBy());
+		// sum and count for each partition
+		List<TsQuery> queries = partitions.queries();
+		Assert.assertEquals(queries.size(), 6);
+		Assert.assertEquals(queries.get(0).getQueries().get(0).getAggregator(), "zimsum");
+		Assert.assertEquals(queries.get(5).getQueries().get(0).getAggregator(), "count");
+		Assert.assertEquals(queries.get(0).getQueries().get(0).getTags().get("dc"), "*");
+
+		Assert.assertNull(partitioner.partition(query("dev", "1m-avg", "dc", "*")));
+	}
+
+	@Test
+	public void testCheapQuery()
+	{
+		// the query is expected to take 10 * 1000ms
+		Assert.assertNull(partitioner(20000).partition(query("sum", null, "host", "*")));
+		// we know nothing about it
+		TagPartitioner partitioner = partitioner(new SlicePlanner(1000000, 1000), 0, 10);
+		partitioner.lookUp(new TagPartitioner.MetricTag("sys.cpu", "host"));
+		Assert.assertNull(partitioner.partition(query("sum", null, "host", "*")));
+	}
+
+	@Test
+	public void testLookUpInBackground()
+	{
+		final List<Runnable> lookups = new ArrayList<>();
+		TagPartitioner partitioner = new TagPartitioner(Collections.singleton("host"), 2, 5000, 10,
+				planner(), lookup(), 600000, new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						lookups.add(command);
+					}
+				});
+
+		// values not known yet, so the query runs as is
+		Assert.assertNull(partitioner.partition(query("sum", null, "host", "*")));
+		Assert.assertNull(partitioner.partition(query("sum", null, "host", "*")));
+		Assert.assertEquals(lookups.size(), 1);
+
+		lookups.get(0).run();
+		Assert.assertNotNull(partitioner.partition(query("sum", null, "host", "*")));
+	}
+
+	@Test
+	public void testTooManyValues()
+	{
+		TagPartitioner partitioner = partitioner(planner(), 5000, 4);
+		partitioner.lookUp(new TagPartitioner.MetricTag("sys.cpu", "host"));
+		Assert.assertNull(partitioner.partition(query("sum", null, "host", "*")));
+	}
+
+	@Test
+	public void testReadTagValues() throws Exception
+	{
+		String json = "{\"type\":\"LOOKUP\",\"metric\":\"sys.cpu\",\"limit\":3,"
+				+ "\"results\":[{\"tags\":{\"host\":\"h2\",\"cpu\":\"0\"},\"metric\":\"sys.cpu\",\"tsuid\":\"01\"},"
+				+ "{\"tags\":{\"host\":\"h1\",\"cpu\":\"1\"},\"metric\":\"sys.cpu\",\"tsuid\":\"02\"}],"
+				+ "\"totalResults\":2}";
+		TagPartitioner.MetricTag key = new TagPartitioner.MetricTag("sys.cpu", "host");
+		Assert.assertEquals(TagPartitioner.readTagValues(stream(json), key, 3), Arrays.asList("h1", "h2"));
+
+		// there may be more series than we got
+		Assert.assertEquals(TagPartitioner.readTagValues(stream(json), key, 2), Collections.emptyList());
+	}
+
+	private static InputStream stream(String json) {
+		return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static TagPartitioner partitioner(long minMs) {
+		TagPartitioner partitioner = partitioner(planner(), minMs, 10);
+		partitioner.lookUp(new TagPartitioner.MetricTag("sys.cpu", "host"));
+		partitioner.lookUp(new TagPartitioner.MetricTag("sys.cpu", "dc"));
+		return partitioner;
+	}
+
+	private static TagPartitioner partitioner(SlicePlanner planner, long minMs, int maxValues) {
+		return new TagPartitioner(Collections.singleton("host"), 2, minMs, maxValues, planner,
+				lookup(), 600000, MoreExecutors.directExecutor());
+	}
+
+	private static SlicePlanner planner() {
+		SlicePlanner planner = new SlicePlanner(1000000, 1000);
+		TsdbResult result = new TsdbResult();
+		result.setMetric("sys.cpu");
+		planner.record(query("sum", null, "host", "*"), new TsdbResult[]{result}, 1000, 10000);
+		return planner;
+	}
+
+	private static CacheLoader<TagPartitioner.MetricTag, List<String>> lookup() {
+		return new CacheLoader<TagPartitioner.MetricTag, List<String>>() {
+			@Override
+			public List<String> load(TagPartitioner.MetricTag key) {
+				return VALUES;
+			}
+		};
+	}
+
+	private static String tag(TsQuery query) {
+		return query.getQueries().get(0).getTags().get("host");
+	}
+
+	private static TsQuery query(String aggregator, String downsample, String tag, String value) {
+		TSSubQuery sub = new TSSubQuery();
+		sub.setAggregator(aggregator);
+		sub.setMetric("sys.cpu");
+		sub.setDownsample(downsample);
+		HashMap<String, String> tags = new HashMap<>();
+		tags.put(tag, value);
+		sub.setTags(tags);
+
+		TsQuery query = new TsQuery();
+		query.setStart(String.valueOf(BASE));
+		query.setEnd(String.valueOf(BASE + 10 * HOUR));
+		query.addSubQuery(sub);
+		query.validateAndSetQuery();
+		return query;
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer.hbase;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RegionCheckerTest {
+
+	private static final byte[] METRIC = {0, 0, 0, 5};
+
+	@Test
+	public void testToBaseHour()
+	{
+		Assert.assertEquals(RegionChecker.toBaseHour(key(METRIC, 7200, 3), METRIC), 7200);
+		Assert.assertEquals(RegionChecker.toBaseHour(new byte[]{0, 0, 0, 5, 0}, METRIC), 0);
+		Assert.assertEquals(RegionChecker.toBaseHour(HConstants.EMPTY_START_ROW, METRIC), Long.MIN_VALUE);
+		Assert.assertEquals(RegionChecker.toBaseHour(key(new byte[]{0, 0, 0, 4}, 7200, 0), METRIC),
+				Long.MIN_VALUE);
+		Assert.assertEquals(RegionChecker.toBaseHour(key(new byte[]{0, 0, 0, 6}, 0, 0), METRIC),
+				Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testBestHost()
+	{
+		List<HRegionLocation> regions = Arrays.asList(
+				region("a", HConstants.EMPTY_START_ROW, key(METRIC, 2 * 3600, 0)),
+				region("b", key(METRIC, 2 * 3600, 0), key(METRIC, 10 * 3600, 0)),
+				region("a", key(METRIC, 10 * 3600, 0), HConstants.EMPTY_END_ROW));
+
+		// b holds 8 of the 10 hours
+		Assert.assertEquals(RegionChecker.bestHost(regions, METRIC, 0, 10 * 3600), "b");
+		// a holds 2 + 6 hours, and part of the 10th
+		Assert.assertEquals(RegionChecker.bestHost(regions, METRIC, 0, 16 * 3600), "a");
+	}
+
+	private static HRegionLocation region(String host, byte[] start, byte[] end) {
+		HRegionInfo info = new HRegionInfo(TableName.valueOf("tsdb"), start, end);
+		return new HRegionLocation(info, ServerName.valueOf(host, 60020, 1));
+	}
+
+	private static byte[] key(byte[] metric, int baseHour, int tagBytes) {
+		byte[] key = new byte[RegionChecker.METRIC_WIDTH + RegionChecker.TS_HOUR_WIDTH + tagBytes];
+		System.arraycopy(metric, 0, key, 0, RegionChecker.METRIC_WIDTH);
+		Bytes.putInt(key, RegionChecker.METRIC_WIDTH, baseHour);
+		return key;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer.merge;
+
+import com.turn.splicer.tsdbutils.TSSubQuery;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BucketMergeTest {
+
+	@Test
+	public void testOf()
+	{
+		Assert.assertEquals(BucketMerge.of(sub("sum", "1m-sum", false)), BucketMerge.SUM);
+		Assert.assertEquals(BucketMerge.of(sub("zimsum", "1h-count-zero", false)), BucketMerge.SUM);
+		Assert.assertEquals(BucketMerge.of(sub("max", "1m-max", false)), BucketMerge.MAX);
+		Assert.assertEquals(BucketMerge.of(sub("mimmin", "1m-min", false)), BucketMerge.MIN);
+		Assert.assertEquals(BucketMerge.of(sub("count", "1m-avg", false)), BucketMerge.MAX);
+
+		// the sum of partial maximums is not the sum of the maximums
+		Assert.assertNull(BucketMerge.of(sub("sum", "1m-max", false)));
+		Assert.assertNull(BucketMerge.of(sub("avg", "1m-avg", false)));
+		Assert.assertNull(BucketMerge.of(sub("sum", "1m-sum", true)));
+		Assert.assertNull(BucketMerge.of(sub("sum", null, false)));
+	}
+
+	@Test
+	public void testStitch()
+	{
+		// the bucket at 120 is split between the slices
+		TsdbResult.Points first = new TsdbResult.Points();
+		first.add(60, 1L);
+		first.add(120, 2L);
+		TsdbResult.Points second = new TsdbResult.Points();
+		second.add(120, 3L);
+		second.add(180, 4.5);
+
+		TsdbResult.Points sum = TsdbResult.Points.merge(Arrays.asList(first, second), BucketMerge.SUM);
+		Assert.assertEquals(sum.size(), 3);
+		Assert.assertTrue(sum.isInteger(1));
+		Assert.assertEquals(sum.longValue(1), 5);
+		Assert.assertEquals(sum.doubleValue(2), 4.5);
+
+		TsdbResult.Points max = TsdbResult.Points.merge(Arrays.asList(first, second), BucketMerge.MAX);
+		Assert.assertEquals(max.longValue(1), 3);
+
+		TsdbResult.Points kept = TsdbResult.Points.merge(Arrays.asList(first, second));
+		Assert.assertEquals(kept.longValue(1), 2);
+	}
+
+	private static TSSubQuery sub(String aggregator, String downsample, boolean rate) {
+		TSSubQuery sub = new TSSubQuery();
+		sub.setAggregator(aggregator);
+		sub.setMetric("sys.cpu");
+		sub.setDownsample(downsample);
+		sub.setRate(rate);
+		return sub;
+	}
+}
@@ -19,6 +19,9 @@ package com.turn.splicer.merge;
 import com.turn.splicer.tsdbutils.TSSubQuery;
 import com.turn.splicer.tsdbutils.TsQuery;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -81,4 +84,147 @@ public class QueryAwareResultsMergerTest {
 		Assert.assertEquals("x=b,z=b", merger.createTagString(result));
 	}
 
+	@Test
+	public void testReaggregate()
+	{
+		// sum:1m-avg:metric{dc=*}, partitioned by host
+		QueryAwareResultsMerger merger = new QueryAwareResultsMerger(query("sum", "dc", "*"));
+		TsdbResult[] first = {series("dc1", "h1", 1, 2), series("dc2", "h2", 10, 20)};
+		TsdbResult[] second = {series("dc1", "h3", 3, 4)};
+
+		TsdbResult[] merged = merger.reaggregate(Arrays.asList(first, second),
+				Collections.<TsdbResult[]>emptyList(), "host");
+		Assert.assertEquals(merged.length, 2);
+		Assert.assertEquals(merged[0].getTags().getTags().get("dc"), "dc1");
+		Assert.assertNull(merged[0].getTags().getTags().get("host"));
+		Assert.assertTrue(merged[0].getAggregateTags().contains("host"));
+		Assert.assertEquals(merged[0].getDps().getMap().get("60"), 4.0);
+		Assert.assertEquals(merged[0].getDps().getMap().get("120"), 6.0);
+		Assert.assertEquals(merged[1].getDps().getMap().get("60"), 10.0);
+
+		merger = new QueryAwareResultsMerger(query("max", "dc", "*"));
+		merged = merger.reaggregate(Arrays.asList(first, second),
+				Collections.<TsdbResult[]>emptyList(), "host");
+		Assert.assertEquals(merged[0].getDps().getMap().get("60"), 3.0);
+	}
+
+	@Test
+	public void testReaggregateAvg()
+	{
+		QueryAwareResultsMerger merger = new QueryAwareResultsMerger(query("avg", "dc", "*"));
+		// h1 has 3 series summing to 6, h3 one series of 2
+		TsdbResult[] sums = {series("dc1", "h1", 6, 6), series("dc1", "h3", 2, 2)};
+		TsdbResult[] counts = {series("dc1", "h1", 3, 3), series("dc1", "h3", 1, 1)};
+
+		TsdbResult[] merged = merger.reaggregate(Collections.singletonList(sums),
+				Collections.singletonList(counts), "host");
+		Assert.assertEquals(merged.length, 1);
+		Assert.assertEquals(merged[0].getDps().getMap().get("60"), 2.0);
+
+		// without the count of h3 at 120, its sum there is left out of the average
+		sums[1] = series("dc1", "h3", 2, 30);
+		counts[1].setDps(counts[1].getDps().range(60, 60));
+		merged = merger.reaggregate(Collections.singletonList(sums),
+				Collections.singletonList(counts), "host");
+		Assert.assertEquals(merged[0].getDps().getMap().get("120"), 2.0);
+	}
+
+	@Test
+	public void testStitchAvg()
+	{
+		// the bucket at 120 is split between two slices of each partition
+		TsQuery sumQuery = query("zimsum", "host", "*");
+		sumQuery.getQueries().get(0).setDownsample("1m-sum");
+		TsQuery countQuery = query("count", "host", "*");
+		countQuery.getQueries().get(0).setDownsample("1m-sum");
+
+		TsdbResult[] sumsBefore = {series("dc1", "h1", 6, 4)};
+		TsdbResult[] sumsAfter = {series("dc1", "h1", 2, 8)};
+		sumsAfter[0].setDps(sumsAfter[0].getDps().shift(60));
+		TsdbResult[] countsBefore = {series("dc1", "h1", 3, 2)};
+		TsdbResult[] countsAfter = {series("dc1", "h1", 3, 3)};
+		countsAfter[0].setDps(countsAfter[0].getDps().shift(60));
+
+		TsdbResult[] sums = new QueryAwareResultsMerger(sumQuery).merge(Arrays.asList(sumsBefore, sumsAfter));
+		TsdbResult[] counts = new QueryAwareResultsMerger(countQuery).merge(Arrays.asList(countsBefore, countsAfter));
+
+		QueryAwareResultsMerger merger = new QueryAwareResultsMerger(query("avg", "dc", "*"));
+		TsdbResult[] merged = merger.reaggregate(Collections.singletonList(sums),
+				Collections.singletonList(counts), "host");
+		Assert.assertEquals(merged[0].getDps().getMap().get("60"), 2.0);
+		// (4 + 2) / max(2, 3)
+		Assert.assertEquals(merged[0].getDps().getMap().get("120"), 2.0);
+		Assert.assertEquals(merged[0].getDps().getMap().get("180"), 8.0 / 3);
+	}
+
+	@Test
+	public void testMergeSlices()
+	{
+		QueryAwareResultsMerger merger = new QueryAwareResultsMerger(query("sum", "host", "*"));
+		TsdbResult[] first = {series("dc1", "h1", 1, 2)};
+		TsdbResult[] second = {series("dc1", "h2", 3, 4)};
+		TsdbResult[] third = {series("dc1", "h1", 5, 6)};
+		third[0].getDps().add(180, 7.0);
+		TsdbResult[] fourth = {series("dc1", "h1", 8, 9)};
+		fourth[0].setDps(fourth[0].getDps().shift(180));
+
+		TsdbResult[] merged = merger.merge(Arrays.asList(first, second, third, fourth));
+		Assert.assertEquals(merged.length, 2);
+		Assert.assertEquals(merged[0].getTags().getTags().get("host"), "h1");
+		// the points at 60 and 120 of the earlier slice are kept
+		Assert.assertEquals(merged[0].getDps().getMap().get("60"), 1.0);
+		Assert.assertEquals(merged[0].getDps().getMap().get("120"), 2.0);
+		Assert.assertEquals(merged[0].getDps().getMap().get("180"), 7.0);
+		Assert.assertEquals(merged[0].getDps().getMap().get("240"), 8.0);
+		Assert.assertEquals(merged[0].getDps().getMap().get("300"), 9.0);
+		Assert.assertEquals(merged[0].getDps().size(), 5);
+		Assert.assertSame(merged[1], second[0]);
+
+		// slices in order are just put together
+		TsdbResult.Points a = new TsdbResult.Points();
+		a.add(1, 1L);
+		TsdbResult.Points b = new TsdbResult.Points();
+		b.add(2, 2.0);
+		b.add(3, 3L);
+		TsdbResult.Points ab = TsdbResult.Points.merge(Arrays.asList(a, new TsdbResult.Points(), b));
+		Assert.assertEquals(ab.size(), 3);
+		Assert.assertFalse(ab.isInteger(1));
+		Assert.assertEquals(ab.longValue(2), 3);
+	}
+
+	@Test
+	public void testConcat()
+	{
+		QueryAwareResultsMerger merger = new QueryAwareResultsMerger(query("sum", "host", "*"));
+		TsdbResult[] first = {series("dc1", "h1", 1, 2)};
+		TsdbResult[] second = {series("dc1", "h2", 1, 2), series("dc1", "h3", 1, 2)};
+		Assert.assertEquals(merger.concat(Arrays.asList(first, second)).length, 3);
+	}
+
+	private static TsQuery query(String aggregator, String tag, String value) {
+		TSSubQuery sub = new TSSubQuery();
+		sub.setAggregator(aggregator);
+		HashMap<String, String> tags = new HashMap<>();
+		tags.put(tag, value);
+		sub.setTags(tags);
+		TsQuery query = new TsQuery();
+		query.addSubQuery(sub);
+		return query;
+	}
+
+	private static TsdbResult series(String dc, String host, double at60, double at120) {
+		Map<String, String> tags = new HashMap<>();
+		tags.put("dc", dc);
+		tags.put("host", host);
+		Map<String, Object> dps = new HashMap<>();
+		dps.put("60", at60);
+		dps.put("120", at120);
+
+		TsdbResult result = new TsdbResult();
+		result.setMetric("sys.cpu");
+		result.setTags(new TsdbResult.Tags(tags));
+		result.setAggregateTags(new ArrayList<String>());
+		result.setDps(new TsdbResult.Points(dps));
+		return result;
+	}
 }
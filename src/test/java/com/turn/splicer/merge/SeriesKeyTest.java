@@ -0,0 +1,71 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer.merge;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SeriesKeyTest {
+
+	@Test
+	public void testKey()
+	{
+		Map<String, String> tags = new HashMap<>();
+		tags.put("host", "h1");
+		tags.put("dc", "dc1");
+		tags.put("cpu", "0");
+
+		SeriesKey key = SeriesKey.of(tags);
+		Assert.assertEquals(key, SeriesKey.of(new TreeMap<>(tags)));
+		Assert.assertEquals(key.toString(), "cpu=0,dc=dc1,host=h1");
+		Assert.assertEquals(key.size(), 3);
+
+		// a key over some of the tags is the key of just those tags
+		SeriesKey some = key.only(new HashSet<>(Arrays.asList("dc", "host", "other")));
+		Map<String, String> fewer = new HashMap<>(tags);
+		fewer.remove("cpu");
+		Assert.assertEquals(some, SeriesKey.of(fewer));
+		Assert.assertEquals(some.hash64(), SeriesKey.of(fewer).hash64());
+		Assert.assertSame(key.only(tags.keySet()), key);
+		Assert.assertSame(key.only(new HashSet<String>()), SeriesKey.NONE);
+
+		// same names and values, paired up differently
+		Map<String, String> swapped = new HashMap<>();
+		swapped.put("host", "dc1");
+		swapped.put("dc", "h1");
+		swapped.put("cpu", "0");
+		Assert.assertNotEquals(SeriesKey.of(swapped), key);
+		Assert.assertNotEquals(SeriesKey.of(swapped).hash64(), key.hash64());
+	}
+
+	@Test
+	public void testParsedTagsAreInterned()
+	{
+		TsdbResult[] results = TsdbResult.fromArray("[{\"metric\":\"m\",\"tags\":{\"host\":\"h1\"},\"dps\":{}},"
+				+ "{\"metric\":\"m\",\"tags\":{\"host\":\"h1\"},\"dps\":{}}]");
+		Assert.assertSame(results[0].getTags().getTags().get("host"),
+				results[1].getTags().getTags().get("host"));
+		Assert.assertEquals(results[0].seriesKey(), results[1].seriesKey());
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.turn.splicer.merge;
+
+import com.turn.splicer.tsdbutils.TSSubQuery;
+import com.turn.splicer.tsdbutils.TsQuery;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SliceAccumulatorTest {
+
+	@Test
+	public void testOutOfOrder()
+	{
+		SliceAccumulator accumulator = new SliceAccumulator(new QueryAwareResultsMerger(query()));
+
+		// the last slice comes in first
+		accumulator.add(2, new TsdbResult[]{series("h2", 300), series("h1", 300)});
+		accumulator.add(0, new TsdbResult[]{series("h1", 60)});
+		accumulator.add(1, new TsdbResult[]{series("h3", 120), series("h1", 120)});
+		Assert.assertEquals(accumulator.size(), 3);
+
+		TsdbResult[] merged = accumulator.finish();
+		Assert.assertEquals(merged.length, 3);
+		// in the order the series first appear in time
+		Assert.assertEquals(merged[0].getTags().getTags().get("host"), "h1");
+		Assert.assertEquals(merged[1].getTags().getTags().get("host"), "h3");
+		Assert.assertEquals(merged[2].getTags().getTags().get("host"), "h2");
+
+		TsdbResult.Points h1 = merged[0].getDps();
+		Assert.assertEquals(h1.size(), 3);
+		Assert.assertEquals(h1.timestamp(0), 60);
+		Assert.assertEquals(h1.timestamp(2), 300);
+	}
+
+	private static TsQuery query() {
+		TSSubQuery sub = new TSSubQuery();
+		sub.setAggregator("sum");
+		HashMap<String, String> tags = new HashMap<>();
+		tags.put("host", "*");
+		sub.setTags(tags);
+		TsQuery query = new TsQuery();
+		query.addSubQuery(sub);
+		return query;
+	}
+
+	private static TsdbResult series(String host, long timestamp) {
+		Map<String, String> tags = new HashMap<>();
+		tags.put("host", host);
+		TsdbResult result = new TsdbResult();
+		result.setMetric("sys.cpu");
+		result.setTags(new TsdbResult.Tags(tags));
+		result.setDps(new TsdbResult.Points());
+		result.getDps().add(timestamp, 1L);
+		return result;
+	}
+}
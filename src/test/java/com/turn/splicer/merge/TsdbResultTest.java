@@ -16,7 +16,9 @@
 
 package com.turn.splicer.merge;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -117,6 +119,68 @@ public class TsdbResultTest {
 
 	}
 
+	@Test
+	public void deserializeStream() throws IOException
+	{
+		String j = "[{\"metric\":\"a.b.c\",\"tags\":{\"host\":\"h1\",\"ignored\":{\"x\":1}},"
+				+ "\"aggregateTags\":[\"cpu\"],\"dps\":{\"1438383600\":1.5,\"1438383660\":2}},"
+				+ "{\"metric\":\"a.b.c\",\"tags\":{\"host\":\"h2\"},\"aggregateTags\":[],\"dps\":{}}]";
+
+		TsdbResult[] results = TsdbResult.fromStream(
+				new ByteArrayInputStream(j.getBytes(StandardCharsets.UTF_8)));
+		Assert.assertEquals(results.length, 2);
+
+		Assert.assertEquals(results[0].getTags().getTags().size(), 1);
+		Assert.assertEquals(results[0].getTags().getTags().get("host"), "h1");
+		Assert.assertEquals(results[0].getDps().getMap().get("1438383600"), 1.5);
+		Assert.assertEquals(results[0].getDps().getMap().get("1438383660"), 2L);
+		Assert.assertEquals(results[1].getDps().getMap().size(), 0);
+
+		Assert.assertEquals(TsdbResult.fromStream(new ByteArrayInputStream(
+				"null".getBytes(StandardCharsets.UTF_8))).length, 0);
+	}
+
+	@Test(expectedExceptions = MergeException.class)
+	public void deserializeStreamBadPoint() throws IOException
+	{
+		String j = "[{\"metric\":\"a.b.c\",\"dps\":{\"1438383600\":\"x\"}}]";
+		TsdbResult.fromStream(new ByteArrayInputStream(j.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testPoints() throws IOException
+	{
+		TsdbResult.Points points = new TsdbResult.Points();
+		points.add(120, 2L);
+		points.add(60, 1.5);
+		points.add(180, 3L);
+		// replaces the point at 120
+		points.add(120, 4L);
+
+		Assert.assertEquals(points.size(), 3);
+		Assert.assertEquals(points.timestamp(0), 60);
+		Assert.assertFalse(points.isInteger(0));
+		Assert.assertEquals(points.doubleValue(0), 1.5);
+		Assert.assertEquals(points.longValue(1), 4);
+		Assert.assertEquals(points.indexOf(180), 2);
+		Assert.assertEquals(points.indexOf(100), -1);
+
+		Assert.assertEquals(points.range(61, 180).size(), 2);
+		Assert.assertEquals(points.range(0, 59).size(), 0);
+		Assert.assertEquals(points.shift(60).timestamp(0), 120);
+
+		TsdbResult.Points other = new TsdbResult.Points();
+		other.add(180, 5L);
+		other.add(240, 6L);
+		TsdbResult.Points union = TsdbResult.Points.union(points, other);
+		Assert.assertEquals(union.size(), 4);
+		Assert.assertEquals(union.longValue(2), 5);
+
+		String json = TsdbResult.JSON_MAPPER.writeValueAsString(points);
+		Assert.assertEquals(json, "{\"60\":1.5,\"120\":4,\"180\":3}");
+		Assert.assertEquals(TsdbResult.JSON_MAPPER.readValue(json, TsdbResult.Points.class), points);
+	}
+
 	@Test
 	public void testEquals() {
 		TsdbResult result1 = new TsdbResult();
@@ -169,23 +233,27 @@ public class TsdbResultTest {
 		Assert.assertTrue(result1.equals(result2));
 		Assert.assertTrue(result2.equals(result1));
 
-		Map<String, Object> result1map = new HashMap<String, Object>();
-		result1.setDps(new TsdbResult.Points(result1map));
+		result1.setDps(new TsdbResult.Points());
 		Assert.assertFalse(result1.equals(result2));
 		Assert.assertFalse(result2.equals(result1));
 
-		Map<String, Object> result2map = new HashMap<String, Object>();
-		result2.setDps(new TsdbResult.Points(result2map));
+		result2.setDps(new TsdbResult.Points());
 		Assert.assertTrue(result1.equals(result2));
 		Assert.assertTrue(result2.equals(result1));
 
-		result1map.put("point1", "point1val");
+		result1.getDps().add(1438383600, 1.5);
 		Assert.assertFalse(result1.equals(result2));
 		Assert.assertFalse(result2.equals(result1));
 
-		result2map.put("point1", "point1val");
+		result2.getDps().add(1438383600, 1.5);
 		Assert.assertTrue(result1.equals(result2));
 		Assert.assertTrue(result2.equals(result1));
+
+		// same number, different type
+		result1.getDps().add(1438383660, 2L);
+		result2.getDps().add(1438383660, 2.0);
+		Assert.assertFalse(result1.equals(result2));
+		Assert.assertFalse(result2.equals(result1));
 	}
 
 }
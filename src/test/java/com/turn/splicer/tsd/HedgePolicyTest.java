@@ -0,0 +1,74 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class HedgePolicyTest {
+
+	@Test
+	public void testHedgeDelay()
+	{
+		HedgePolicy policy = new HedgePolicy(true, 90, 10, 10);
+
+		// not enough samples yet
+		policy.recordLatency(100);
+		Assert.assertEquals(policy.hedgeDelayMs(), -1);
+
+		for (int i = 1; i <= 100; i++) {
+			policy.recordLatency(i * 100);
+		}
+		Assert.assertEquals(policy.hedgeDelayMs(), 9000);
+
+		// the percentile is only computed again once enough new latencies are in
+		for (int i = 0; i < 63; i++) {
+			policy.recordLatency(100000);
+		}
+		Assert.assertEquals(policy.hedgeDelayMs(), 9000);
+		policy.recordLatency(100000);
+		Assert.assertEquals(policy.hedgeDelayMs(), 100000);
+
+		// never hedge sooner than the min delay
+		HedgePolicy fast = new HedgePolicy(true, 50, 500, 10);
+		for (int i = 0; i < 100; i++) {
+			fast.recordLatency(1);
+		}
+		Assert.assertEquals(fast.hedgeDelayMs(), 500);
+	}
+
+	@Test
+	public void testBudget()
+	{
+		HedgePolicy policy = new HedgePolicy(true, 95, 10, 10);
+		Assert.assertFalse(policy.tryHedge());
+
+		// ten requests pay for one hedge
+		for (int i = 0; i < 9; i++) {
+			policy.onRequest();
+		}
+		Assert.assertFalse(policy.tryHedge());
+		policy.onRequest();
+		policy.onRequest();
+		Assert.assertTrue(policy.tryHedge());
+		Assert.assertFalse(policy.tryHedge());
+
+		// a hedge which could not be sent is paid back
+		policy.refund();
+		Assert.assertTrue(policy.tryHedge());
+	}
+}
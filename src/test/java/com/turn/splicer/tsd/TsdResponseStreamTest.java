@@ -0,0 +1,83 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import com.turn.splicer.merge.TsdbResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.BasicHttpEntity;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TsdResponseStreamTest {
+
+	private static final String JSON = "[{\"metric\":\"sys.cpu\",\"tags\":{\"host\":\"a\"},"
+			+ "\"aggregateTags\":[],\"dps\":{\"1000\":1,\"2000\":2,\"3000\":3,\"4000\":4}}]";
+
+	@Test
+	public void testGzip() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+			gzip.write(JSON.getBytes(StandardCharsets.UTF_8));
+		}
+
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContent(new ByteArrayInputStream(bytes.toByteArray()));
+		entity.setContentEncoding("gzip");
+
+		TransferStats stats = new TransferStats();
+		try (TsdResponseStream in = TsdResponseStream.open(entity)) {
+			TsdbResult[] results = TsdbResult.fromStream(in);
+			Assert.assertEquals(results.length, 1);
+			Assert.assertEquals(results[0].getMetric(), "sys.cpu");
+
+			Assert.assertTrue(in.isCompressed());
+			Assert.assertEquals(in.getWireBytes(), bytes.size());
+			Assert.assertEquals(in.getDecodedBytes(), JSON.length());
+			stats.record(in);
+		}
+		Assert.assertEquals(stats.compressionRatio(), (double) JSON.length() / bytes.size());
+	}
+
+	@Test
+	public void testIdentity() throws IOException
+	{
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContent(new ByteArrayInputStream(JSON.getBytes(StandardCharsets.UTF_8)));
+
+		try (TsdResponseStream in = TsdResponseStream.open(entity)) {
+			Assert.assertEquals(TsdbResult.fromStream(in).length, 1);
+			Assert.assertFalse(in.isCompressed());
+			Assert.assertEquals(in.getWireBytes(), in.getDecodedBytes());
+		}
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testUnknownEncoding() throws IOException
+	{
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContent(new ByteArrayInputStream(new byte[0]));
+		entity.setContentEncoding("br");
+		TsdResponseStream.open(entity);
+	}
+}
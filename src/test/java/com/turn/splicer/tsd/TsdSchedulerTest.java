@@ -0,0 +1,255 @@
+/**
+ * Copyright 2015-2016 The Splicer Query Engine Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turn.splicer.tsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TsdSchedulerTest {
+
+	@Test
+	public void testPrefersRequestedHost() throws Exception
+	{
+		TsdScheduler scheduler = new TsdScheduler(100, 50);
+		scheduler.register("a", "a:4242", 1);
+		scheduler.register("a", "a:4243", 1);
+		scheduler.register("b", "b:4242", 1);
+
+		TsdPermit p1 = scheduler.acquire("q", "a");
+		TsdPermit p2 = scheduler.acquire("q", "a");
+		Assert.assertEquals(p1.getEndpoint().getHost(), "a");
+		Assert.assertEquals(p2.getEndpoint().getHost(), "a");
+		Assert.assertNotEquals(p1.getAddress(), p2.getAddress());
+
+		// unknown host uses any host
+		TsdPermit p3 = scheduler.acquire("q", "unknown");
+		Assert.assertEquals(p3.getAddress(), "b:4242");
+
+		p1.close();
+		p1.close(); // double close is a no-op
+		p2.close();
+		p3.close();
+		for (int inFlight: scheduler.inFlightByAddress().values()) {
+			Assert.assertEquals(inFlight, 0);
+		}
+	}
+
+	@Test
+	public void testFailover() throws Exception
+	{
+		TsdScheduler scheduler = new TsdScheduler(1000, 20);
+		scheduler.register("a", "a:4242", 1);
+		scheduler.register("b", "b:4242", 1);
+
+		TsdPermit p1 = scheduler.acquire("q", "a");
+		TsdPermit p2 = scheduler.acquire("q", "a");
+		Assert.assertEquals(p1.getAddress(), "a:4242");
+		Assert.assertEquals(p2.getAddress(), "b:4242");
+	}
+
+	@Test
+	public void testPrefersFastEndpoint() throws Exception
+	{
+		TsdScheduler scheduler = new TsdScheduler(100, 0);
+		scheduler.register("a", "a:4242", 2);
+		scheduler.register("a", "a:4243", 2);
+
+		TsdPermit p = scheduler.acquire("q", "a");
+		p.recordLatency(1000);
+		p.close();
+		p = scheduler.acquire("q", "a");
+		p.recordLatency(10);
+		p.close();
+
+		// both idle, the faster one wins
+		TsdPermit fast = scheduler.acquire("q", "a");
+		Assert.assertEquals(fast.getEndpoint().getLatencyMs(), 10.0);
+		// still cheaper with one request in flight
+		TsdPermit fast2 = scheduler.acquire("q", "a");
+		Assert.assertEquals(fast2.getAddress(), fast.getAddress());
+		// full, so the slow one gets it
+		TsdPermit slow = scheduler.acquire("q", "a");
+		Assert.assertNotEquals(slow.getAddress(), fast.getAddress());
+	}
+
+	@Test
+	public void testGroupFallback() throws Exception
+	{
+		Map<String, String> groups = TsdScheduler.groups("a=r1, b=r2, c=r1, d=r1");
+		TsdScheduler scheduler = new TsdScheduler(100, 0, new LeastLoadedSelector(), groups);
+		scheduler.register("a", "a:4242", 1);
+		scheduler.register("b", "b:4242", 1);
+		scheduler.register("c", "c:4242", 1);
+
+		Assert.assertEquals(scheduler.acquire("q", "a").getAddress(), "a:4242");
+		// a is busy, c is in the same rack
+		Assert.assertEquals(scheduler.acquire("q", "a").getAddress(), "c:4242");
+		Assert.assertEquals(scheduler.acquire("q", "a").getAddress(), "b:4242");
+
+		// d has no TSD of its own but is in a group with a and c
+		TsdScheduler other = new TsdScheduler(100, 0, new LeastLoadedSelector(), groups);
+		other.register("b", "b:4242", 1);
+		other.register("c", "c:4242", 1);
+		Assert.assertEquals(other.acquire("q", "d").getAddress(), "c:4242");
+	}
+
+	@Test
+	public void testEjection() throws Exception
+	{
+		TsdScheduler scheduler = new TsdScheduler(100, 0, new LeastLoadedSelector(),
+				Collections.<String, String>emptyMap(), new EjectionPolicy(2, 50, 1000));
+		scheduler.register("a", "a:4242", 1);
+		scheduler.register("b", "b:4242", 1);
+
+		TsdEndpoint a = scheduler.acquire("q", "a").getEndpoint();
+		scheduler.recordFailure(a);
+		Assert.assertFalse(a.isEjected());
+		scheduler.recordFailure(a);
+		Assert.assertTrue(a.isEjected());
+		scheduler.release(a);
+
+		// a is out of rotation, so slices for a go to b
+		TsdPermit p = scheduler.acquire("q", "a");
+		Assert.assertEquals(p.getAddress(), "b:4242");
+		p.close();
+
+		// back on probation, where a single failure ejects it for twice as long
+		Thread.sleep(60);
+		Assert.assertFalse(a.isEjected());
+		scheduler.recordFailure(a);
+		Assert.assertTrue(a.ejectedUntilMs - System.currentTimeMillis() > 50);
+
+		Thread.sleep(110);
+		scheduler.recordSuccess(a);
+		Assert.assertEquals(a.ejections, 0);
+		Assert.assertEquals(scheduler.acquire("q", "a").getAddress(), "a:4242");
+	}
+
+	@Test
+	public void testExclude() throws Exception
+	{
+		TsdScheduler scheduler = new TsdScheduler(100, -1);
+		scheduler.register("a", "a:4242", 1);
+		scheduler.register("b", "b:4242", 1);
+
+		// failover is disabled, but a is excluded so we don't wait for it
+		TsdPermit p = scheduler.acquire("q", "a", Collections.singleton("a:4242"));
+		Assert.assertEquals(p.getAddress(), "b:4242");
+	}
+
+	@Test(expectedExceptions = TsdUnavailableException.class)
+	public void testAllExcluded() throws Exception
+	{
+		TsdScheduler scheduler = new TsdScheduler(1000, 0);
+		scheduler.register("a", "a:4242", 1);
+		scheduler.acquire("q", "a", Collections.singleton("a:4242"));
+	}
+
+	@Test
+	public void testBackoff()
+	{
+		EjectionPolicy policy = new EjectionPolicy(3, 100, 500);
+		Assert.assertEquals(policy.backoffMs(1), 100);
+		Assert.assertEquals(policy.backoffMs(2), 200);
+		Assert.assertEquals(policy.backoffMs(3), 400);
+		Assert.assertEquals(policy.backoffMs(4), 500);
+		Assert.assertEquals(policy.backoffMs(100), 500);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testBadGroups()
+	{
+		TsdScheduler.groups("a=r1,b");
+	}
+
+	@Test
+	public void testSelectorConfig()
+	{
+		Assert.assertTrue(TsdScheduler.selector(null) instanceof LeastLoadedSelector);
+		Assert.assertTrue(TsdScheduler.selector("random") instanceof RandomSelector);
+		Assert.assertTrue(TsdScheduler.selector(RandomSelector.class.getName()) instanceof RandomSelector);
+	}
+
+	@Test(expectedExceptions = TsdUnavailableException.class)
+	public void testTimeout() throws Exception
+	{
+		TsdScheduler scheduler = new TsdScheduler(1000, -1);
+		scheduler.register("a", "a:4242", 1);
+		scheduler.register("b", "b:4242", 1);
+
+		scheduler.acquire("q", "a");
+		// failover is disabled, so we must not get b
+		scheduler.acquire("q", "a", 20);
+	}
+
+	@Test
+	public void testQueriesTakeTurns() throws Exception
+	{
+		final TsdScheduler scheduler = new TsdScheduler(5000, -1);
+		scheduler.register("a", "a:4242", 1);
+
+		TsdPermit held = scheduler.acquire("big", "a");
+
+		final List<String> order = new ArrayList<>();
+		ExecutorService svc = Executors.newCachedThreadPool();
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			// three slices of the big query queue up before the small query
+			for (String q: new String[]{"big", "big", "big", "small"}) {
+				futures.add(svc.submit(waitFor(scheduler, q, order)));
+				Thread.sleep(50);
+			}
+
+			held.close();
+			for (Future<?> f: futures) {
+				f.get(5, TimeUnit.SECONDS);
+			}
+		} finally {
+			svc.shutdownNow();
+		}
+
+		// the small query gets its turn right after the first big slice
+		Assert.assertEquals(order.get(0), "big");
+		Assert.assertEquals(order.get(1), "small");
+	}
+
+	private static Callable<Void> waitFor(final TsdScheduler scheduler, final String queryId,
+	                                      final List<String> order) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				TsdPermit permit = scheduler.acquire(queryId, "a");
+				synchronized (order) {
+					order.add(queryId);
+				}
+				Thread.sleep(10);
+				permit.close();
+				return null;
+			}
+		};
+	}
+}
@@ -85,10 +85,10 @@ public class TsdbResultMergerTests {
 
 		Assert.assertEquals(result.getDps().getMap().size(), 4);
 
-		Assert.assertEquals(result.getDps().getMap().get("1234500000"), 11);
-		Assert.assertEquals(result.getDps().getMap().get("1234501000"), 12);
-		Assert.assertEquals(result.getDps().getMap().get("1234502000"), 13);
-		Assert.assertEquals(result.getDps().getMap().get("1234503000"), 14);
+		Assert.assertEquals(result.getDps().getMap().get("1234500000"), 11L);
+		Assert.assertEquals(result.getDps().getMap().get("1234501000"), 12L);
+		Assert.assertEquals(result.getDps().getMap().get("1234502000"), 13L);
+		Assert.assertEquals(result.getDps().getMap().get("1234503000"), 14L);
 	}
 
 	@Test
@@ -163,7 +163,7 @@ public class TsdbResultMergerTests {
 						+ ",\nresult=" + result.getDps().getMap());
 
 		for (int i=1; i<=20; i++) {
-			Assert.assertEquals(result.getDps().getMap().get(String.valueOf(1000+i)), 1000 + i);
+			Assert.assertEquals(result.getDps().getMap().get(String.valueOf(1000+i)), 1000L + i);
 		}
 	}
 
@@ -324,12 +324,12 @@ public class TsdbResultMergerTests {
 	}
 
 
-	static TsdbResult putPoint(TsdbResult result, long timestamp, Object value)
+	static TsdbResult putPoint(TsdbResult result, long timestamp, long value)
 	{
-		if (result.getDps() == null || result.getDps().getMap() == null) {
-			result.setDps(new TsdbResult.Points(new HashMap<String, Object>()));
+		if (result.getDps() == null) {
+			result.setDps(new TsdbResult.Points());
 		}
-		result.getDps().getMap().put(String.valueOf(timestamp), value);
+		result.getDps().add(timestamp, value);
 		return result;
 	}
 
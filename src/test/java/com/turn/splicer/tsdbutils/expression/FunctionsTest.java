@@ -16,6 +16,7 @@
 
 package com.turn.splicer.tsdbutils.expression;
 
+import com.turn.splicer.QueryContext;
 import com.turn.splicer.hbase.RegionChecker;
 import com.turn.splicer.merge.TsdbResult;
 import com.turn.splicer.tsdbutils.SplicerQueryRunner;
@@ -30,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
+import com.google.common.util.concurrent.Futures;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -130,7 +132,7 @@ public class FunctionsTest {
 
 	/**
 	 * builds an ExpressionTree off of query param, evaluates that expression tree
-	 * mocking results from Tsdb. Instead of calling tsdb in sliceAndRunQuery
+	 * mocking results from Tsdb. Instead of calling tsdb in sliceAndRunQueryAsync
 	 * it will just return mockQueryResult in all cases. toCompare is the result
 	 * to test equality against your expressions evaluation.
 	 * @param query
@@ -150,11 +152,14 @@ public class FunctionsTest {
 		TsdbResult[] mockQueryResultArray = new TsdbResult[1];
 		mockQueryResultArray[0] = mockQueryResult;
 
-		when(queryRunner.sliceAndRunQuery(any(TsQuery.class), any(RegionChecker.class))).thenReturn(mockQueryResultArray);
+		when(queryRunner.sliceAndRunQueryAsync(any(TsQuery.class), any(RegionChecker.class),
+				any(QueryContext.class))).thenReturn(Futures.immediateFuture(mockQueryResultArray));
 
 		TsdbResult[] tsdbResults = null;
 
-		tsdbResults = expressionTree.evaluateAll();
+		try (QueryContext context = new QueryContext(60000)) {
+			tsdbResults = expressionTree.evaluateAll(context);
+		}
 
 		for(TsdbResult ts: tsdbResults) {
 			System.out.println("res: " + ts.toString());